@@ -0,0 +1,48 @@
+/**
+ * 
+ */
+package com.shtick.math.statistics;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Writes files by way of a temporary file that is moved into place once complete, so an existing file is never left half written.
+ *
+ * @author scox
+ *
+ */
+class AtomicFileWriter {
+	/**
+	 * Writes the content of a file to a stream.
+	 */
+	interface StreamWriter{
+		public void write(OutputStream out) throws IOException;
+	}
+
+	private AtomicFileWriter() {}
+
+	/**
+	 * @param file The file to write.
+	 * @param writer Writes the content of the file.
+	 * @throws IOException
+	 */
+	static void save(File file, StreamWriter writer) throws IOException{
+		File temp = new File(file.getAbsoluteFile().getParentFile(), file.getName()+".tmp");
+		try(OutputStream out = new BufferedOutputStream(new FileOutputStream(temp))){
+			writer.write(out);
+		}
+		try {
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch(AtomicMoveNotSupportedException t) {
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+}
@@ -0,0 +1,236 @@
+/**
+ * 
+ */
+package com.shtick.math.statistics;
+
+import java.util.Arrays;
+
+/**
+ * Collects the strongest correlations between pairs of variables, keeping at most a fixed number of pairs.
+ *
+ * Pairs are held as primitives in parallel arrays, arranged as a min-heap on the strength |r|,
+ * so offering a pair costs O(log capacity) and no object is allocated per pair, however many pairs are offered.
+ * Pairs with equal r are distinct entries, so none is lost to another with the same correlation.
+ * Where pairs are equally strong, the pair with the lower variable indexes is the stronger,
+ * so the pairs kept at the capacity boundary don't depend on the order the pairs are offered in.
+ *
+ * After sort(), the pairs are in order from strongest to weakest and can be read with getRow(), getColumn() and getCorrelation().
+ *
+ * @author scox
+ *
+ */
+public class CorrelationPairCollector {
+	private static final int INITIAL_CAPACITY = 64;
+
+	private int capacity;
+	private double threshold;
+	private int size;
+	private int[] rows;
+	private int[] columns;
+	private double[] correlations;
+	private boolean sorted;
+
+	/**
+	 * @param capacity The largest number of pairs to keep.
+	 * @param threshold Only pairs where |r| is greater than the threshold are kept. 0 keeps every pair except those with r of 0 or NaN.
+	 */
+	public CorrelationPairCollector(int capacity, double threshold) {
+		if(capacity<=0)
+			throw new IllegalArgumentException("Capacity must be positive.");
+		if(!(threshold>=0))
+			throw new IllegalArgumentException("Threshold must not be negative.");
+		this.capacity = capacity;
+		this.threshold = threshold;
+		int initialCapacity = Math.min(capacity, INITIAL_CAPACITY);
+		rows = new int[initialCapacity];
+		columns = new int[initialCapacity];
+		correlations = new double[initialCapacity];
+	}
+
+	/**
+	 * Collects the strongest correlations implied by a covariance matrix, such as one from CovarianceAccumulator.getCovariance().
+	 * Pairs involving a variable with no variance are skipped.
+	 *
+	 * @param covariance
+	 * @param capacity The largest number of pairs to keep.
+	 * @param threshold Only pairs where |r| is greater than the threshold are kept.
+	 * @return A collector holding the strongest pairs (i,j) where i&lt;j, sorted from strongest to weakest.
+	 */
+	public static CorrelationPairCollector fromCovariance(SymmetricMatrix covariance, int capacity, double threshold) {
+		CorrelationPairCollector retval = new CorrelationPairCollector(capacity, threshold);
+		int size = covariance.getSize();
+		double[] standardDeviations = covariance.getDiagonal();
+		for(int i=0;i<size;i++)
+			standardDeviations[i] = Math.sqrt(standardDeviations[i]);
+		for(int i=0;i<size;i++) {
+			if(!(standardDeviations[i]>0))
+				continue;
+			for(int j=i+1;j<size;j++) {
+				if(standardDeviations[j]>0)
+					retval.offer(i, j, covariance.getElementAt(i, j)/(standardDeviations[i]*standardDeviations[j]));
+			}
+		}
+		retval.sort();
+		return retval;
+	}
+
+	/**
+	 * Offers a pair, which is kept if it passes the threshold and is among the strongest pairs offered so far.
+	 *
+	 * @param row The index of the first variable of the pair.
+	 * @param column The index of the second variable of the pair.
+	 * @param r The correlation of the pair.
+	 */
+	public void offer(int row, int column, double r) {
+		if(!(Math.abs(r)>threshold))
+			return;
+		if(sorted) {
+			// A sorted array is a max-heap, so the heap is rebuilt before it is added to.
+			for(int k=size/2-1;k>=0;k--)
+				siftDown(k);
+			sorted = false;
+		}
+		if(size<capacity) {
+			if(size==rows.length) {
+				int newLength = (int)Math.min(capacity, 2L*rows.length);
+				rows = Arrays.copyOf(rows, newLength);
+				columns = Arrays.copyOf(columns, newLength);
+				correlations = Arrays.copyOf(correlations, newLength);
+			}
+			set(size, row, column, r);
+			siftUp(size++);
+			return;
+		}
+		// The root is the weakest pair kept.
+		if(!isWeaker(rows[0], columns[0], correlations[0], row, column, r))
+			return;
+		set(0, row, column, r);
+		siftDown(0);
+	}
+
+	/**
+	 * Offers every pair kept by another collector, so collectors filled from separate portions of the pairs can be combined.
+	 * The result is the same as if every pair had been offered to this collector, provided the collectors have the same capacity and threshold.
+	 *
+	 * @param other
+	 */
+	public void merge(CorrelationPairCollector other) {
+		for(int k=0;k<other.size;k++)
+			offer(other.rows[k], other.columns[k], other.correlations[k]);
+	}
+
+	/**
+	 *
+	 * @return The number of pairs kept.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Arranges the pairs kept from strongest to weakest.
+	 */
+	public void sort() {
+		if(sorted)
+			return;
+		// Heap sort: the weakest pair is repeatedly moved from the root to the end of the shrinking heap.
+		int heapSize = size;
+		while(heapSize>1) {
+			heapSize--;
+			swap(0, heapSize);
+			siftDown(0, heapSize);
+		}
+		sorted = true;
+	}
+
+	/**
+	 * @param index The position of the pair, from 0 for the strongest once sort() has been called.
+	 * @return The index of the first variable of the pair.
+	 */
+	public int getRow(int index) {
+		checkIndex(index);
+		return rows[index];
+	}
+
+	/**
+	 * @param index The position of the pair, from 0 for the strongest once sort() has been called.
+	 * @return The index of the second variable of the pair.
+	 */
+	public int getColumn(int index) {
+		checkIndex(index);
+		return columns[index];
+	}
+
+	/**
+	 * @param index The position of the pair, from 0 for the strongest once sort() has been called.
+	 * @return The correlation of the pair.
+	 */
+	public double getCorrelation(int index) {
+		checkIndex(index);
+		return correlations[index];
+	}
+
+	private void checkIndex(int index) {
+		if((index<0)||(index>=size))
+			throw new IndexOutOfBoundsException("Index "+index+" outside of "+size+" pairs.");
+	}
+
+	/**
+	 * @return true if pair a is weaker than pair b.
+	 */
+	private static boolean isWeaker(int rowA, int columnA, double rA, int rowB, int columnB, double rB) {
+		double strengthA = Math.abs(rA);
+		double strengthB = Math.abs(rB);
+		if(strengthA!=strengthB)
+			return strengthA<strengthB;
+		if(rowA!=rowB)
+			return rowA>rowB;
+		return columnA>columnB;
+	}
+
+	private boolean isWeaker(int a, int b) {
+		return isWeaker(rows[a], columns[a], correlations[a], rows[b], columns[b], correlations[b]);
+	}
+
+	private void siftUp(int k) {
+		while(k>0) {
+			int parent = (k-1)/2;
+			if(!isWeaker(k, parent))
+				return;
+			swap(k, parent);
+			k = parent;
+		}
+	}
+
+	private void siftDown(int k) {
+		siftDown(k, size);
+	}
+
+	private void siftDown(int k, int heapSize) {
+		while(true) {
+			int child = 2*k+1;
+			if(child>=heapSize)
+				return;
+			if((child+1<heapSize)&&isWeaker(child+1, child))
+				child++;
+			if(!isWeaker(child, k))
+				return;
+			swap(k, child);
+			k = child;
+		}
+	}
+
+	private void set(int k, int row, int column, double r) {
+		rows[k] = row;
+		columns[k] = column;
+		correlations[k] = r;
+	}
+
+	private void swap(int a, int b) {
+		int row = rows[a];
+		int column = columns[a];
+		double r = correlations[a];
+		set(a, rows[b], columns[b], correlations[b]);
+		set(b, row, column, r);
+	}
+}
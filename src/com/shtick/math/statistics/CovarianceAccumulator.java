@@ -0,0 +1,529 @@
+/**
+ * 
+ */
+package com.shtick.math.statistics;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.stream.Collector;
+
+/**
+ * Accumulates the weight total, means and covariance matrix of a data set in a single pass.
+ *
+ * Each datum is folded into running means and co-moments using a weighted form of Welford's update,
+ * so the data never needs to be centered before hand and only needs to be iterated once.
+ * Accumulators built over separate portions of a data set can be combined exactly with merge().
+ *
+ * The co-moment matrix is symmetric, so it is kept in a SymmetricMatrix, which stores each co-moment once in a single packed array.
+ *
+ * The accumulation can be saved and loaded, so that it can be kept as a persistent set of sufficient statistics for a growing data set.
+ * Each new batch of data is then added in O(batch*p^2) time, and the covariance matrix is available without rereading earlier data.
+ *
+ * An accumulator may be given a half-life, in which case the weight of everything accumulated so far is multiplied by 2^(-1/halfLife)
+ * each time a datum with non-zero weight is added, so a datum counts half as much once halfLife more data have arrived after it.
+ * This tracks a drifting population from a stream of data without keeping any history, and still costs O(p^2) per datum.
+ *
+ * @author scox
+ *
+ */
+public class CovarianceAccumulator {
+	private static final long MAGIC = 0x5053594348434F56L; // "PSYCHCOV"
+	private static final int VERSION = 2;
+	/**
+	 * The approximate number of bytes of block columns, weighted and unweighted, that addBlock() keeps in cache at once.
+	 */
+	private static final int TILE_BYTES = 1<<17;
+
+	private int variableCount;
+	private double halfLife = Double.POSITIVE_INFINITY;
+	private double decay = 1;
+	private long count;
+	private double weightTotal;
+	private double[] means;
+	private SymmetricMatrix comoments;
+	private double[] delta;
+	private double[] blockMeans;
+	private double[] blockColumns;
+	private double[] weightedBlockColumns;
+	private double[] decayedWeights;
+
+	/**
+	 * @param variableCount The number of variables in each datum to be accumulated.
+	 */
+	public CovarianceAccumulator(int variableCount) {
+		if(variableCount<=0)
+			throw new IllegalArgumentException("At least one variable required.");
+		this.variableCount = variableCount;
+		means = new double[variableCount];
+		comoments = new SymmetricMatrix(variableCount);
+		delta = new double[variableCount];
+	}
+
+	/**
+	 * Creates an accumulator whose accumulated weight decays as new data are added.
+	 *
+	 * @param variableCount The number of variables in each datum to be accumulated.
+	 * @param halfLife The number of data with non-zero weight after which the weight of a datum is halved. Double.POSITIVE_INFINITY disables decay.
+	 */
+	public CovarianceAccumulator(int variableCount, double halfLife) {
+		this(variableCount);
+		if(!(halfLife>0))
+			throw new IllegalArgumentException("Half-life must be positive.");
+		this.halfLife = halfLife;
+		decay = Math.pow(0.5, 1/halfLife);
+	}
+
+	/**
+	 * Creates an accumulator from statistics that have already been calculated by other means.
+	 *
+	 * @param count The number of data with non-zero weight.
+	 * @param weightTotal The sum of the weights of the data.
+	 * @param means The weighted mean of each variable.
+	 * @param comoments The weighted sums of the products of deviations from the means. Only the lower triangle (comoments[i][j] where j&lt;=i) is read, so the rows may be jagged.
+	 */
+	public CovarianceAccumulator(long count, double weightTotal, double[] means, double[][] comoments) {
+		this(means.length);
+		if(comoments.length!=variableCount)
+			throw new IllegalArgumentException("Co-moment matrix size does not match variable count.");
+		if(weightTotal<0)
+			throw new IllegalArgumentException("Negative weights not supported.");
+		this.count = count;
+		this.weightTotal = weightTotal;
+		System.arraycopy(means, 0, this.means, 0, variableCount);
+		for(int i=0;i<variableCount;i++)
+			for(int j=0;j<=i;j++)
+				this.comoments.setElementAt(i, j, comoments[i][j]);
+	}
+
+	/**
+	 * Creates a Collector which accumulates a stream of data, such as StatsDataSet.parallelStream(), into a CovarianceAccumulator.
+	 * Each thread accumulates into its own CovarianceAccumulator, and these are combined with merge().
+	 * The stream is unordered, so the accumulator has no half-life.
+	 * No datum is retained, so this is safe for data sets that reuse their WeightedDatum instances.
+	 *
+	 * @param variableCount The number of variables in each datum.
+	 * @return A Collector producing a CovarianceAccumulator.
+	 */
+	public static Collector<WeightedDatum,CovarianceAccumulator,CovarianceAccumulator> collector(int variableCount) {
+		return Collector.of(
+				()->new CovarianceAccumulator(variableCount),
+				CovarianceAccumulator::add,
+				(a,b)->{
+					a.merge(b);
+					return a;
+				},
+				Collector.Characteristics.IDENTITY_FINISH,
+				Collector.Characteristics.UNORDERED);
+	}
+
+	/**
+	 * Adds every datum provided by the given data to the accumulation.
+	 * No datum is retained, so this is safe for data sets that reuse their WeightedDatum instances.
+	 *
+	 * @param data
+	 */
+	public void addAll(Iterable<WeightedDatum> data) {
+		for(WeightedDatum datum:data)
+			add(datum.datum,datum.weight);
+	}
+
+	/**
+	 * @param datum
+	 */
+	public void add(WeightedDatum datum) {
+		add(datum.datum,datum.weight);
+	}
+
+	/**
+	 * Adds a single datum to the accumulation. The datum array is not retained, so it may be reused by the caller.
+	 * If the accumulator has a half-life, the accumulation so far is decayed first.
+	 *
+	 * @param datum The values of the variables for this datum.
+	 * @param weight The weight of this datum. Data with a weight of zero are ignored.
+	 * @throws IllegalArgumentException if the datum is not of the expected size or the weight is negative.
+	 */
+	public void add(double[] datum, double weight) {
+		if(datum.length!=variableCount)
+			throw new IllegalArgumentException("Datum size does not match variable count.");
+		if(weight<0)
+			throw new IllegalArgumentException("Negative weights not supported.");
+		if(weight==0)
+			return;
+		count++;
+		// Decaying the weight total leaves the means unchanged, and the co-moments are decayed in the same pass as the update.
+		weightTotal *= decay;
+		double newWeightTotal = weightTotal+weight;
+		double meanScale = weight/newWeightTotal;
+		// Equivalent to weight*delta[i]*(datum[j]-newMean[j]), but without needing the updated means.
+		double comomentScale = weightTotal*meanScale;
+		for(int i=0;i<variableCount;i++) {
+			delta[i] = datum[i]-means[i];
+			means[i] += delta[i]*meanScale;
+		}
+		comoments.scaleAndAddOuterProduct(decay, delta, comomentScale);
+		weightTotal = newWeightTotal;
+	}
+
+	/**
+	 * Adds a block of data to the accumulation as a single rank-k update.
+	 * The block is centered on its own weighted means and transposed, so that each co-moment of the block
+	 * is a dot product of two contiguous columns. The block is then merged in the same way as merge().
+	 * If the accumulator has a half-life, each row is weighted as though the rows had been added one at a time with add().
+	 * The arrays are not retained, so they may be reused by the caller.
+	 *
+	 * @param block The values of each datum, row-major, so variable i of row r is block[r*getVariableCount()+i].
+	 * @param weights The weight of each row. Rows with a weight of zero are ignored.
+	 * @param rows The number of rows in the block.
+	 * @throws IllegalArgumentException if any weight is negative.
+	 */
+	public void addBlock(double[] block, double[] weights, int rows) {
+		if(rows<=0)
+			return;
+		if(block.length<rows*variableCount)
+			throw new IllegalArgumentException("Block is smaller than the given number of rows.");
+		int i,j,r;
+		long blockCount = 0;
+		double blockWeightTotal = 0;
+		for(r=0;r<rows;r++) {
+			if(weights[r]<0)
+				throw new IllegalArgumentException("Negative weights not supported.");
+			if(weights[r]>0) {
+				blockCount++;
+				blockWeightTotal += weights[r];
+			}
+		}
+		if(blockWeightTotal==0)
+			return;
+		double priorScale = 1;
+		if(decay<1) {
+			if((decayedWeights==null)||(decayedWeights.length<rows))
+				decayedWeights = new double[rows];
+			blockWeightTotal = 0;
+			for(r=rows-1;r>=0;r--) {
+				if(weights[r]>0) {
+					decayedWeights[r] = weights[r]*priorScale;
+					blockWeightTotal += decayedWeights[r];
+					priorScale *= decay;
+				}
+				else {
+					decayedWeights[r] = 0;
+				}
+			}
+			weights = decayedWeights;
+			weightTotal *= priorScale;
+		}
+		if((blockColumns==null)||(blockColumns.length<rows*variableCount)) {
+			blockColumns = new double[rows*variableCount];
+			weightedBlockColumns = new double[rows*variableCount];
+			blockMeans = new double[variableCount];
+		}
+		Arrays.fill(blockMeans, 0);
+		for(r=0;r<rows;r++) {
+			double weight = weights[r];
+			int base = r*variableCount;
+			for(i=0;i<variableCount;i++)
+				blockMeans[i] += block[base+i]*weight;
+		}
+		for(i=0;i<variableCount;i++) {
+			blockMeans[i] /= blockWeightTotal;
+			int column = i*rows;
+			double mean = blockMeans[i];
+			for(r=0;r<rows;r++) {
+				double centered = block[r*variableCount+i]-mean;
+				blockColumns[column+r] = centered;
+				weightedBlockColumns[column+r] = centered*weights[r];
+			}
+		}
+
+		double newWeightTotal = weightTotal+blockWeightTotal;
+		double meanScale = blockWeightTotal/newWeightTotal;
+		double comomentScale = weightTotal*meanScale;
+		for(i=0;i<variableCount;i++) {
+			delta[i] = blockMeans[i]-means[i];
+			means[i] += delta[i]*meanScale;
+		}
+		// The triangle is updated a square tile at a time, so that the columns of both tiles stay in cache
+		// while every pair between them is visited, rather than streaming every column once for each variable.
+		int tile = Math.max(1, TILE_BYTES/(16*rows));
+		for(int iStart=0;iStart<variableCount;iStart+=tile) {
+			int iEnd = Math.min(variableCount, iStart+tile);
+			for(int jStart=0;jStart<iEnd;jStart+=tile) {
+				int jEnd = Math.min(iEnd, jStart+tile);
+				// Rows of the tile are taken two at a time, and paired with two columns at a time where possible.
+				for(i=iStart;i<iEnd;i+=2) {
+					if(i+1==iEnd) {
+						for(j=jStart;j<=Math.min(jEnd-1, i);j++)
+							updateComoment(i, j, rows, priorScale, comomentScale);
+						break;
+					}
+					int jLast = Math.min(jEnd-1, i);
+					for(j=jStart;j<jLast;j+=2)
+						updateComoments(i, j, rows, priorScale, comomentScale);
+					if(j==jLast) {
+						updateComoment(i, j, rows, priorScale, comomentScale);
+						updateComoment(i+1, j, rows, priorScale, comomentScale);
+					}
+					if(i+1<jEnd)
+						updateComoment(i+1, i+1, rows, priorScale, comomentScale);
+				}
+			}
+		}
+		count += blockCount;
+		weightTotal = newWeightTotal;
+	}
+
+	/**
+	 * Adds the co-moment of variables i and j, where j&lt;=i, within the current block to the decayed co-moment of the accumulation.
+	 */
+	private void updateComoment(int i, int j, int rows, double priorScale, double comomentScale) {
+		double sum = VectorMath.dotProduct(weightedBlockColumns, i*rows, blockColumns, j*rows, rows);
+		// Element (j,i) is in the packed upper triangle.
+		int k = comoments.rowOffsets[j]+i;
+		comoments.elements[k] = comoments.elements[k]*priorScale+sum+delta[i]*comomentScale*delta[j];
+	}
+
+	/**
+	 * Updates the co-moments of variables i and i+1 with variables j and j+1, where j+1&lt;=i, as in updateComoment().
+	 * Each value loaded from a column is used in two products, and the four sums are independent,
+	 * so this does about twice the arithmetic per load of four separate dot products.
+	 */
+	private void updateComoments(int i, int j, int rows, double priorScale, double comomentScale) {
+		double[] weighted = weightedBlockColumns;
+		double[] centered = blockColumns;
+		int i0 = i*rows;
+		int i1 = i0+rows;
+		int j0 = j*rows;
+		int j1 = j0+rows;
+		double s00=0,s01=0,s10=0,s11=0;
+		for(int r=0;r<rows;r++) {
+			double wi0 = weighted[i0+r];
+			double wi1 = weighted[i1+r];
+			double cj0 = centered[j0+r];
+			double cj1 = centered[j1+r];
+			s00 += wi0*cj0;
+			s01 += wi0*cj1;
+			s10 += wi1*cj0;
+			s11 += wi1*cj1;
+		}
+		// Elements (j,i), (j,i+1), (j+1,i) and (j+1,i+1) are in the packed upper triangle, since j+1&lt;=i.
+		double[] elements = comoments.elements;
+		int k0 = comoments.rowOffsets[j]+i;
+		int k1 = comoments.rowOffsets[j+1]+i;
+		double scaledDelta0 = delta[i]*comomentScale;
+		double scaledDelta1 = delta[i+1]*comomentScale;
+		elements[k0] = elements[k0]*priorScale+s00+scaledDelta0*delta[j];
+		elements[k1] = elements[k1]*priorScale+s01+scaledDelta0*delta[j+1];
+		elements[k0+1] = elements[k0+1]*priorScale+s10+scaledDelta1*delta[j];
+		elements[k1+1] = elements[k1+1]*priorScale+s11+scaledDelta1*delta[j+1];
+	}
+
+	/**
+	 * Adds every row read from the given reader to the accumulation, a block at a time, using addBlock().
+	 * The reader is closed once it has been read, or if the accumulation fails.
+	 *
+	 * @param reader
+	 * @param blockRows The number of rows to read in each block.
+	 */
+	public void addBlocks(RowBlockReader reader, int blockRows) {
+		double[] block = new double[blockRows*variableCount];
+		double[] weights = new double[blockRows];
+		try(RowBlockReader blocks = reader){
+			int rows;
+			while((rows = blocks.readBlock(block, weights, blockRows))>0)
+				addBlock(block, weights, rows);
+		}
+	}
+
+	/**
+	 * Merges the accumulation of another accumulator into this one.
+	 * The result is the same as if all the data added to the other accumulator had been added to this one.
+	 * If the accumulators have a half-life, the data of the other accumulator are taken to follow the data of this one,
+	 * so this accumulation is decayed by the number of data in the other.
+	 *
+	 * @param other
+	 * @throws IllegalArgumentException if the other accumulator is for a different number of variables or has a different half-life.
+	 */
+	public void merge(CovarianceAccumulator other) {
+		if(other.variableCount!=variableCount)
+			throw new IllegalArgumentException("Variable counts do not match.");
+		if(other.halfLife!=halfLife)
+			throw new IllegalArgumentException("Half-lives do not match.");
+		if(other.weightTotal==0)
+			return;
+		if(weightTotal==0) {
+			count = other.count;
+			weightTotal = other.weightTotal;
+			System.arraycopy(other.means, 0, means, 0, variableCount);
+			System.arraycopy(other.comoments.elements, 0, comoments.elements, 0, comoments.elements.length);
+			return;
+		}
+		double priorScale = (decay==1)?1:Math.pow(decay, other.count);
+		weightTotal *= priorScale;
+		double newWeightTotal = weightTotal+other.weightTotal;
+		double meanScale = other.weightTotal/newWeightTotal;
+		double comomentScale = weightTotal*meanScale;
+		for(int i=0;i<variableCount;i++) {
+			delta[i] = other.means[i]-means[i];
+			means[i] += delta[i]*meanScale;
+		}
+		comoments.scaleAndAddOuterProduct(priorScale, delta, comomentScale);
+		comoments.add(other.comoments);
+		count += other.count;
+		weightTotal = newWeightTotal;
+	}
+
+	/**
+	 * Writes the accumulation to the given stream, so that it can be restored with read().
+	 *
+	 * @param out
+	 * @throws IOException
+	 */
+	public void write(OutputStream out) throws IOException{
+		DataOutputStream data = new DataOutputStream(out);
+		data.writeLong(MAGIC);
+		data.writeInt(VERSION);
+		data.writeInt(variableCount);
+		data.writeDouble(halfLife);
+		data.writeLong(count);
+		data.writeDouble(weightTotal);
+		for(int i=0;i<variableCount;i++)
+			data.writeDouble(means[i]);
+		for(int i=0;i<variableCount;i++)
+			for(int j=0;j<=i;j++)
+				data.writeDouble(comoments.getElementAt(i, j));
+		data.flush();
+	}
+
+	/**
+	 * Reads an accumulation written by write().
+	 *
+	 * @param in
+	 * @return The restored accumulator, which can continue to accumulate data.
+	 * @throws IOException If the stream doesn't hold an accumulation, or is truncated.
+	 */
+	public static CovarianceAccumulator read(InputStream in) throws IOException{
+		DataInputStream data = new DataInputStream(in);
+		if(data.readLong()!=MAGIC)
+			throw new IOException("Not a covariance accumulation.");
+		int version = data.readInt();
+		if((version<1)||(version>VERSION))
+			throw new IOException("Unsupported covariance accumulation version.");
+		int variableCount = data.readInt();
+		if(variableCount<=0)
+			throw new IOException("Invalid variable count: "+variableCount);
+		// Version 1 had no half-life.
+		double halfLife = (version>=2)?data.readDouble():Double.POSITIVE_INFINITY;
+		if(!(halfLife>0))
+			throw new IOException("Invalid half-life: "+halfLife);
+		CovarianceAccumulator retval = new CovarianceAccumulator(variableCount, halfLife);
+		retval.count = data.readLong();
+		retval.weightTotal = data.readDouble();
+		for(int i=0;i<variableCount;i++)
+			retval.means[i] = data.readDouble();
+		for(int i=0;i<variableCount;i++)
+			for(int j=0;j<=i;j++)
+				retval.comoments.setElementAt(i, j, data.readDouble());
+		return retval;
+	}
+
+	/**
+	 * Saves the accumulation to the given file.
+	 * The file is written to a temporary file first and then moved into place, so an existing file is never left half written.
+	 *
+	 * @param file
+	 * @throws IOException
+	 */
+	public void save(File file) throws IOException{
+		AtomicFileWriter.save(file, this::write);
+	}
+
+	/**
+	 * @param file A file written by save().
+	 * @return The restored accumulator, which can continue to accumulate data.
+	 * @throws IOException
+	 */
+	public static CovarianceAccumulator load(File file) throws IOException{
+		try(InputStream in = new BufferedInputStream(new FileInputStream(file))){
+			return read(in);
+		}
+	}
+
+	/**
+	 *
+	 * @return The number of variables in each datum.
+	 */
+	public int getVariableCount() {
+		return variableCount;
+	}
+
+	/**
+	 *
+	 * @return The number of data with non-zero weight after which the weight of a datum is halved, or Double.POSITIVE_INFINITY if the accumulation doesn't decay.
+	 */
+	public double getHalfLife() {
+		return halfLife;
+	}
+
+	/**
+	 *
+	 * @return The number of data with non-zero weight accumulated.
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 *
+	 * @return The sum of the weights of all data accumulated, after any decay.
+	 */
+	public double getWeightTotal() {
+		return weightTotal;
+	}
+
+	/**
+	 *
+	 * @return A copy of the weighted mean of each variable.
+	 */
+	public double[] getMeans() {
+		double[] retval = new double[variableCount];
+		System.arraycopy(means, 0, retval, 0, variableCount);
+		return retval;
+	}
+
+	/**
+	 *
+	 * @return The weighted covariance matrix of the accumulated data, calculated as the co-moments divided by the weight total.
+	 */
+	public double[][] getCovarianceMatrix() {
+		double[][] retval = new double[variableCount][variableCount];
+		if(weightTotal==0)
+			return retval;
+		double[] elements = comoments.elements;
+		for(int i=0;i<variableCount;i++) {
+			int offset = comoments.rowOffsets[i];
+			for(int j=i;j<variableCount;j++) {
+				retval[i][j] = elements[offset+j]/weightTotal;
+				retval[j][i] = retval[i][j];
+			}
+		}
+		return retval;
+	}
+
+	/**
+	 *
+	 * @return A copy of the weighted covariance matrix of the accumulated data, as with getCovarianceMatrix(), but with each covariance stored once.
+	 */
+	public SymmetricMatrix getCovariance() {
+		SymmetricMatrix retval = new SymmetricMatrix(comoments);
+		if(weightTotal!=0)
+			retval.scale(1/weightTotal);
+		return retval;
+	}
+}
@@ -0,0 +1,150 @@
+/**
+ * 
+ */
+package com.shtick.math.statistics;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * The sufficient statistics of a PCA over one slice of a data set, labelled with the names of the variables,
+ * so that slices processed by separate jobs can be written to files, merged exactly, and analyzed together.
+ *
+ * The binary format is the magic number "PSYCHPRT", a version, the variable names,
+ * and then the accumulation as written by CovarianceAccumulator.write(): the count, weight total, means and a triangle of the co-moments.
+ * Partials are only merged if their variable names match, in order.
+ *
+ * @author scox
+ *
+ */
+public class CovariancePartial {
+	private static final long MAGIC = 0x5053594348505254L; // "PSYCHPRT"
+	private static final int VERSION = 1;
+
+	private String[] variableNames;
+	private CovarianceAccumulator accumulator;
+
+	/**
+	 * @param variableNames The names of the variables accumulated, in datum order.
+	 * @param accumulator The accumulation of the slice. It is not copied, so merges update it.
+	 */
+	public CovariancePartial(String[] variableNames, CovarianceAccumulator accumulator) {
+		if(variableNames.length!=accumulator.getVariableCount())
+			throw new IllegalArgumentException("Variable names do not match variable count.");
+		this.variableNames = Arrays.copyOf(variableNames, variableNames.length);
+		this.accumulator = accumulator;
+	}
+
+	/**
+	 *
+	 * @return The names of the variables, in datum order.
+	 */
+	public String[] getVariableNames() {
+		return Arrays.copyOf(variableNames, variableNames.length);
+	}
+
+	/**
+	 *
+	 * @return The accumulation of the data in this partial.
+	 */
+	public CovarianceAccumulator getAccumulator() {
+		return accumulator;
+	}
+
+	/**
+	 * Merges another partial into this one, as with CovarianceAccumulator.merge().
+	 *
+	 * @param other
+	 * @throws IllegalArgumentException if the variable names of the partials do not match.
+	 */
+	public void merge(CovariancePartial other) {
+		if(!Arrays.equals(variableNames, other.variableNames))
+			throw new IllegalArgumentException("Variable names do not match.");
+		accumulator.merge(other.accumulator);
+	}
+
+	/**
+	 * @param out
+	 * @throws IOException
+	 */
+	public void write(OutputStream out) throws IOException{
+		DataOutputStream data = new DataOutputStream(out);
+		data.writeLong(MAGIC);
+		data.writeInt(VERSION);
+		data.writeInt(variableNames.length);
+		for(String name:variableNames)
+			data.writeUTF(name);
+		accumulator.write(data);
+	}
+
+	/**
+	 * @param in
+	 * @return The partial read from the stream.
+	 * @throws IOException If the stream doesn't hold a partial, or is truncated.
+	 */
+	public static CovariancePartial read(InputStream in) throws IOException{
+		DataInputStream data = new DataInputStream(in);
+		if(data.readLong()!=MAGIC)
+			throw new IOException("Not a covariance partial.");
+		if(data.readInt()!=VERSION)
+			throw new IOException("Unsupported covariance partial version.");
+		int variableCount = data.readInt();
+		if(variableCount<=0)
+			throw new IOException("Invalid variable count: "+variableCount);
+		String[] variableNames = new String[variableCount];
+		for(int i=0;i<variableCount;i++)
+			variableNames[i] = data.readUTF();
+		CovarianceAccumulator accumulator = CovarianceAccumulator.read(data);
+		if(accumulator.getVariableCount()!=variableCount)
+			throw new IOException("Variable names do not match variable count.");
+		return new CovariancePartial(variableNames, accumulator);
+	}
+
+	/**
+	 * Saves the partial to the given file, writing a temporary file first and then moving it into place.
+	 *
+	 * @param file
+	 * @throws IOException
+	 */
+	public void save(File file) throws IOException{
+		AtomicFileWriter.save(file, this::write);
+	}
+
+	/**
+	 * @param file A file written by save().
+	 * @return The partial read from the file.
+	 * @throws IOException
+	 */
+	public static CovariancePartial load(File file) throws IOException{
+		try(InputStream in = new BufferedInputStream(new FileInputStream(file))){
+			return read(in);
+		}
+	}
+
+	/**
+	 * Loads and merges the partials in the given files, in order.
+	 *
+	 * @param files Files written by save().
+	 * @return The merged partial.
+	 * @throws IOException If a file can't be read, or its variable names don't match those of the first file.
+	 */
+	public static CovariancePartial load(File[] files) throws IOException{
+		if(files.length==0)
+			throw new IllegalArgumentException("At least one file required.");
+		CovariancePartial retval = load(files[0]);
+		for(int i=1;i<files.length;i++) {
+			CovariancePartial partial = load(files[i]);
+			if(!Arrays.equals(retval.variableNames, partial.variableNames))
+				throw new IOException("Variable names of "+files[i]+" do not match those of "+files[0]+".");
+			retval.merge(partial);
+		}
+		return retval;
+	}
+}
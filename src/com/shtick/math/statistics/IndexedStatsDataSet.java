@@ -0,0 +1,163 @@
+/**
+ * 
+ */
+package com.shtick.math.statistics;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * A StatsDataSet whose rows can be read in any order by index.
+ *
+ * Iterators and spliterators each refill a single WeightedDatum, so reusesDatum() is true.
+ * Spliterators split by halving their range of rows without copying any data,
+ * so parallel streams of these data sets scale with the number of cores.
+ *
+ * @author scox
+ *
+ */
+public abstract class IndexedStatsDataSet extends StatsDataSet {
+	/**
+	 * Fills the given datum with the weight and values of the given row, adjusted by any means set with setMean().
+	 *
+	 * @param row The index of the row, from 0 to size()-1.
+	 * @param datum A datum whose datum array is at least getVariableCount() in length.
+	 *        If allowsMissingValues() is true, the datum's presence bitmask should be filled too, if it isn't null.
+	 */
+	public abstract void getRow(int row, WeightedDatum datum);
+
+	/* (non-Javadoc)
+	 * @see java.lang.Iterable#iterator()
+	 */
+	@Override
+	public Iterator<WeightedDatum> iterator() {
+		return new RowIterator();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.shtick.math.statistics.StatsDataSet#spliterator()
+	 */
+	@Override
+	public Spliterator<WeightedDatum> spliterator() {
+		return new RowSpliterator(0, size());
+	}
+
+	/* (non-Javadoc)
+	 * @see com.shtick.math.statistics.StatsDataSet#reusesDatum()
+	 */
+	@Override
+	public boolean reusesDatum() {
+		return true;
+	}
+
+	private WeightedDatum createDatum() {
+		WeightedDatum datum = new WeightedDatum();
+		datum.datum = new double[getVariableCount()];
+		if(allowsMissingValues())
+			datum.presence = new long[WeightedDatum.getPresenceLength(datum.datum.length)];
+		return datum;
+	}
+
+	private class RowIterator implements Iterator<WeightedDatum>{
+		private int row;
+		private int end;
+		private WeightedDatum datum;
+
+		public RowIterator() {
+			end = size();
+			datum = createDatum();
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.Iterator#hasNext()
+		 */
+		@Override
+		public boolean hasNext() {
+			return row<end;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.Iterator#next()
+		 */
+		@Override
+		public WeightedDatum next() {
+			if(row>=end)
+				throw new NoSuchElementException();
+			getRow(row, datum);
+			row++;
+			return datum;
+		}
+	}
+
+	private class RowSpliterator implements Spliterator<WeightedDatum>{
+		private int row;
+		private int end;
+		private WeightedDatum datum;
+
+		public RowSpliterator(int start, int end) {
+			this.row = start;
+			this.end = end;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.Spliterator#tryAdvance(java.util.function.Consumer)
+		 */
+		@Override
+		public boolean tryAdvance(Consumer<? super WeightedDatum> action) {
+			if(row>=end)
+				return false;
+			if(datum==null)
+				datum = createDatum();
+			getRow(row, datum);
+			row++;
+			action.accept(datum);
+			return true;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.Spliterator#forEachRemaining(java.util.function.Consumer)
+		 */
+		@Override
+		public void forEachRemaining(Consumer<? super WeightedDatum> action) {
+			if(row>=end)
+				return;
+			if(datum==null)
+				datum = createDatum();
+			for(;row<end;row++) {
+				getRow(row, datum);
+				action.accept(datum);
+			}
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.Spliterator#trySplit()
+		 */
+		@Override
+		public Spliterator<WeightedDatum> trySplit() {
+			int middle = (row+end)>>>1;
+			if(middle<=row)
+				return null;
+			RowSpliterator retval = new RowSpliterator(row, middle);
+			row = middle;
+			return retval;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.Spliterator#estimateSize()
+		 */
+		@Override
+		public long estimateSize() {
+			return end-row;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.Spliterator#characteristics()
+		 */
+		@Override
+		public int characteristics() {
+			return ORDERED|SIZED|SUBSIZED|NONNULL;
+		}
+	}
+}
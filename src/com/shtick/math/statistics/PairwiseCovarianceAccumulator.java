@@ -0,0 +1,402 @@
+/**
+ * 
+ */
+package com.shtick.math.statistics;
+
+import java.util.stream.Collector;
+
+/**
+ * Accumulates the means and pairwise-complete covariance matrix of a data set with missing values in a single pass.
+ *
+ * Each covariance is calculated from only those data where both of its variables are present,
+ * and each mean from only those data where its variable is present, so no datum needs to be dropped.
+ * For every pair of variables, the count, weight total, sums and sum of products over the data where both are present are kept.
+ * Values are shifted by the first value seen for their variable before being summed, to limit cancellation.
+ *
+ * Data are accumulated in blocks of up to 64 rows per long of a presence bitmask for each variable.
+ * The count for a pair is the popcount of the AND of their bitmasks, and a pair that are both fully present
+ * in a block needs only the single dot product of a complete-case covariance, so wide data with few missing values
+ * costs about the same as with none.
+ *
+ * Only the lower triangle of each pairwise matrix is stored.
+ * Note that a pairwise-complete covariance matrix need not be positive semi-definite.
+ *
+ * @author scox
+ *
+ */
+public class PairwiseCovarianceAccumulator {
+	private static final int BLOCK_ROWS = 256;
+	private static final int BLOCK_WORDS = BLOCK_ROWS>>>6;
+
+	private int variableCount;
+	private double[] shifts;
+	private boolean[] shifted;
+	private long[][] pairCounts;
+	private double[][] pairWeights;
+	private double[][] sums;
+	private double[][] pairedSums;
+	private double[][] products;
+
+	private double[] values;
+	private double[] weightedValues;
+	private double[] indicators;
+	private double[] weightedIndicators;
+	private long[] masks;
+	private boolean[] complete;
+	private double[] weightedSums;
+	private double[] row;
+	private double[] rowWeight = new double[1];
+
+	/**
+	 * @param variableCount The number of variables in each datum to be accumulated.
+	 */
+	public PairwiseCovarianceAccumulator(int variableCount) {
+		if(variableCount<=0)
+			throw new IllegalArgumentException("At least one variable required.");
+		this.variableCount = variableCount;
+		shifts = new double[variableCount];
+		shifted = new boolean[variableCount];
+		pairCounts = new long[variableCount][];
+		pairWeights = new double[variableCount][];
+		sums = new double[variableCount][];
+		pairedSums = new double[variableCount][];
+		products = new double[variableCount][];
+		for(int i=0;i<variableCount;i++) {
+			pairCounts[i] = new long[i+1];
+			pairWeights[i] = new double[i+1];
+			sums[i] = new double[i+1];
+			pairedSums[i] = new double[i+1];
+			products[i] = new double[i+1];
+		}
+	}
+
+	/**
+	 * Creates a Collector which accumulates a stream of data, such as StatsDataSet.parallelStream(), into a PairwiseCovarianceAccumulator.
+	 * Each thread accumulates into its own PairwiseCovarianceAccumulator, and these are combined with merge().
+	 * No datum is retained, so this is safe for data sets that reuse their WeightedDatum instances.
+	 *
+	 * @param variableCount The number of variables in each datum.
+	 * @return A Collector producing a PairwiseCovarianceAccumulator.
+	 */
+	public static Collector<WeightedDatum,PairwiseCovarianceAccumulator,PairwiseCovarianceAccumulator> collector(int variableCount) {
+		return Collector.of(
+				()->new PairwiseCovarianceAccumulator(variableCount),
+				PairwiseCovarianceAccumulator::add,
+				(a,b)->{
+					a.merge(b);
+					return a;
+				},
+				Collector.Characteristics.IDENTITY_FINISH,
+				Collector.Characteristics.UNORDERED);
+	}
+
+	/**
+	 * Adds every datum provided by the given data to the accumulation.
+	 * No datum is retained, so this is safe for data sets that reuse their WeightedDatum instances.
+	 *
+	 * @param data
+	 */
+	public void addAll(Iterable<WeightedDatum> data) {
+		for(WeightedDatum datum:data)
+			add(datum);
+	}
+
+	/**
+	 * Adds a single datum to the accumulation. Variables that are NaN, or clear in the datum's presence bitmask, are treated as missing.
+	 *
+	 * @param datum
+	 */
+	public void add(WeightedDatum datum) {
+		if(datum.presence==null) {
+			add(datum.datum, datum.weight);
+			return;
+		}
+		if(datum.datum.length!=variableCount)
+			throw new IllegalArgumentException("Datum size does not match variable count.");
+		if(row==null)
+			row = new double[variableCount];
+		for(int i=0;i<variableCount;i++)
+			row[i] = datum.isPresent(i)?datum.datum[i]:Double.NaN;
+		rowWeight[0] = datum.weight;
+		addBlock(row, rowWeight, 1);
+	}
+
+	/**
+	 * Adds a single datum to the accumulation. The datum array is not retained, so it may be reused by the caller.
+	 *
+	 * @param datum The values of the variables for this datum, where missing values are NaN.
+	 * @param weight The weight of this datum. Data with a weight of zero are ignored.
+	 * @throws IllegalArgumentException if the datum is not of the expected size or the weight is negative.
+	 */
+	public void add(double[] datum, double weight) {
+		if(datum.length!=variableCount)
+			throw new IllegalArgumentException("Datum size does not match variable count.");
+		rowWeight[0] = weight;
+		addBlock(datum, rowWeight, 1);
+	}
+
+	/**
+	 * Adds a block of data to the accumulation.
+	 * The arrays are not retained, so they may be reused by the caller.
+	 *
+	 * @param block The values of each datum, row-major, so variable i of row r is block[r*getVariableCount()+i]. Missing values are NaN.
+	 * @param weights The weight of each row. Rows with a weight of zero are ignored.
+	 * @param rows The number of rows in the block.
+	 * @throws IllegalArgumentException if any weight is negative.
+	 */
+	public void addBlock(double[] block, double[] weights, int rows) {
+		if(block.length<rows*variableCount)
+			throw new IllegalArgumentException("Block is smaller than the given number of rows.");
+		for(int start=0;start<rows;start+=BLOCK_ROWS)
+			addSubBlock(block, weights, start, Math.min(BLOCK_ROWS, rows-start));
+	}
+
+	/**
+	 * Adds every row read from the given reader to the accumulation, a block at a time, using addBlock().
+	 * The reader is closed once it has been read, or if the accumulation fails.
+	 *
+	 * @param reader
+	 * @param blockRows The number of rows to read in each block.
+	 */
+	public void addBlocks(RowBlockReader reader, int blockRows) {
+		double[] block = new double[blockRows*variableCount];
+		double[] weights = new double[blockRows];
+		try(RowBlockReader blocks = reader){
+			int rows;
+			while((rows = blocks.readBlock(block, weights, blockRows))>0)
+				addBlock(block, weights, rows);
+		}
+	}
+
+	private void addSubBlock(double[] block, double[] weights, int start, int rows) {
+		int i,j,r,w;
+		long blockCount = 0;
+		double blockWeightTotal = 0;
+		boolean unitWeights = true;
+		for(r=0;r<rows;r++) {
+			double weight = weights[start+r];
+			if(weight<0)
+				throw new IllegalArgumentException("Negative weights not supported.");
+			if(weight>0) {
+				blockCount++;
+				blockWeightTotal += weight;
+				unitWeights &= (weight==1);
+			}
+		}
+		if(blockCount==0)
+			return;
+		if(values==null) {
+			values = new double[variableCount*BLOCK_ROWS];
+			weightedValues = new double[variableCount*BLOCK_ROWS];
+			indicators = new double[variableCount*BLOCK_ROWS];
+			weightedIndicators = new double[variableCount*BLOCK_ROWS];
+			masks = new long[variableCount*BLOCK_WORDS];
+			complete = new boolean[variableCount];
+			weightedSums = new double[variableCount];
+		}
+		int words = (rows+63)>>>6;
+
+		// Transpose into zero-filled columns, with a presence bitmask for each column.
+		for(i=0;i<variableCount;i++) {
+			int column = i*BLOCK_ROWS;
+			int maskBase = i*BLOCK_WORDS;
+			for(w=0;w<words;w++)
+				masks[maskBase+w] = 0;
+			boolean isComplete = true;
+			double weightedSum = 0;
+			for(r=0;r<rows;r++) {
+				double weight = weights[start+r];
+				if(weight==0) {
+					values[column+r] = 0;
+					weightedValues[column+r] = 0;
+					indicators[column+r] = 0;
+					weightedIndicators[column+r] = 0;
+					continue;
+				}
+				double value = block[(start+r)*variableCount+i];
+				if(Double.isNaN(value)) {
+					isComplete = false;
+					values[column+r] = 0;
+					weightedValues[column+r] = 0;
+					indicators[column+r] = 0;
+					weightedIndicators[column+r] = 0;
+					continue;
+				}
+				if(!shifted[i]) {
+					shifts[i] = value;
+					shifted[i] = true;
+				}
+				value -= shifts[i];
+				values[column+r] = value;
+				weightedValues[column+r] = value*weight;
+				indicators[column+r] = 1;
+				weightedIndicators[column+r] = weight;
+				weightedSum += value*weight;
+				masks[maskBase+(r>>>6)] |= 1L<<r;
+			}
+			complete[i] = isComplete;
+			weightedSums[i] = weightedSum;
+		}
+
+		for(i=0;i<variableCount;i++) {
+			int columnI = i*BLOCK_ROWS;
+			int maskI = i*BLOCK_WORDS;
+			for(j=0;j<=i;j++) {
+				int columnJ = j*BLOCK_ROWS;
+				double product = 0;
+				for(r=0;r<rows;r++)
+					product += weightedValues[columnI+r]*values[columnJ+r];
+				products[i][j] += product;
+				if(complete[i]&&complete[j]) {
+					pairCounts[i][j] += blockCount;
+					pairWeights[i][j] += blockWeightTotal;
+					sums[i][j] += weightedSums[i];
+					pairedSums[i][j] += weightedSums[j];
+					continue;
+				}
+				int maskJ = j*BLOCK_WORDS;
+				long pairCount = 0;
+				for(w=0;w<words;w++)
+					pairCount += Long.bitCount(masks[maskI+w]&masks[maskJ+w]);
+				if(pairCount==0)
+					continue;
+				double pairWeight = 0;
+				double sum = 0;
+				double pairedSum = 0;
+				if(unitWeights) {
+					pairWeight = pairCount;
+				}
+				else {
+					for(r=0;r<rows;r++)
+						pairWeight += weightedIndicators[columnI+r]*indicators[columnJ+r];
+				}
+				if(complete[j]) {
+					sum = weightedSums[i];
+				}
+				else {
+					for(r=0;r<rows;r++)
+						sum += weightedValues[columnI+r]*indicators[columnJ+r];
+				}
+				if(complete[i]) {
+					pairedSum = weightedSums[j];
+				}
+				else {
+					for(r=0;r<rows;r++)
+						pairedSum += weightedValues[columnJ+r]*indicators[columnI+r];
+				}
+				pairCounts[i][j] += pairCount;
+				pairWeights[i][j] += pairWeight;
+				sums[i][j] += sum;
+				pairedSums[i][j] += pairedSum;
+			}
+		}
+	}
+
+	/**
+	 * Merges the accumulation of another accumulator into this one.
+	 * The result is the same as if all the data added to the other accumulator had been added to this one.
+	 *
+	 * @param other
+	 * @throws IllegalArgumentException if the other accumulator is for a different number of variables.
+	 */
+	public void merge(PairwiseCovarianceAccumulator other) {
+		if(other.variableCount!=variableCount)
+			throw new IllegalArgumentException("Variable counts do not match.");
+		int i,j;
+		// The difference between the other accumulator's shift and this one's, for each variable.
+		double[] delta = new double[variableCount];
+		for(i=0;i<variableCount;i++) {
+			if(!other.shifted[i])
+				continue;
+			if(!shifted[i]) {
+				shifts[i] = other.shifts[i];
+				shifted[i] = true;
+			}
+			delta[i] = other.shifts[i]-shifts[i];
+		}
+		for(i=0;i<variableCount;i++) {
+			for(j=0;j<=i;j++) {
+				double weight = other.pairWeights[i][j];
+				double sum = other.sums[i][j];
+				double pairedSum = other.pairedSums[i][j];
+				pairCounts[i][j] += other.pairCounts[i][j];
+				pairWeights[i][j] += weight;
+				sums[i][j] += sum+delta[i]*weight;
+				pairedSums[i][j] += pairedSum+delta[j]*weight;
+				products[i][j] += other.products[i][j]+delta[j]*sum+delta[i]*pairedSum+delta[i]*delta[j]*weight;
+			}
+		}
+	}
+
+	/**
+	 *
+	 * @return The number of variables in each datum.
+	 */
+	public int getVariableCount() {
+		return variableCount;
+	}
+
+	/**
+	 *
+	 * @return The number of data with non-zero weight where both variables are present, for each pair of variables.
+	 *         The diagonal holds the number of data where each variable is present.
+	 */
+	public long[][] getPairCounts() {
+		long[][] retval = new long[variableCount][variableCount];
+		for(int i=0;i<variableCount;i++) {
+			for(int j=0;j<=i;j++) {
+				retval[i][j] = pairCounts[i][j];
+				retval[j][i] = pairCounts[i][j];
+			}
+		}
+		return retval;
+	}
+
+	/**
+	 *
+	 * @return The sum of the weights of the data where both variables are present, for each pair of variables.
+	 */
+	public double[][] getPairWeights() {
+		double[][] retval = new double[variableCount][variableCount];
+		for(int i=0;i<variableCount;i++) {
+			for(int j=0;j<=i;j++) {
+				retval[i][j] = pairWeights[i][j];
+				retval[j][i] = pairWeights[i][j];
+			}
+		}
+		return retval;
+	}
+
+	/**
+	 *
+	 * @return The weighted mean of each variable over the data where it is present, or NaN if it was never present.
+	 */
+	public double[] getMeans() {
+		double[] retval = new double[variableCount];
+		for(int i=0;i<variableCount;i++) {
+			double weight = pairWeights[i][i];
+			retval[i] = (weight==0)?Double.NaN:shifts[i]+sums[i][i]/weight;
+		}
+		return retval;
+	}
+
+	/**
+	 *
+	 * @return The weighted pairwise-complete covariance matrix, where each covariance is calculated over the data where both variables are present,
+	 *         and is NaN if there are no such data.
+	 */
+	public double[][] getCovarianceMatrix() {
+		double[][] retval = new double[variableCount][variableCount];
+		for(int i=0;i<variableCount;i++) {
+			for(int j=0;j<=i;j++) {
+				double weight = pairWeights[i][j];
+				if(weight==0)
+					retval[i][j] = Double.NaN;
+				else
+					retval[i][j] = (products[i][j]-sums[i][j]*pairedSums[i][j]/weight)/weight;
+				retval[j][i] = retval[i][j];
+			}
+		}
+		return retval;
+	}
+}
@@ -0,0 +1,236 @@
+/**
+ * 
+ */
+package com.shtick.math.statistics;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+/**
+ * Accumulates the means and covariance matrix of a StatsDataSet on a ForkJoinPool.
+ *
+ * The rows are split across the pool using the data set's spliterator, so IndexedStatsDataSets split without copying.
+ * Each worker thread adds the rows it is given, a block at a time, into its own accumulator,
+ * so only one triangle of co-moments is allocated per thread however finely the rows are split.
+ * The accumulators are held by the accumulation itself, indexed by the thread's pool index, so none is left with the pool's threads afterwards.
+ * The per-thread accumulators are then merged pairwise, as a balanced tree.
+ *
+ * Progress is counted across all workers and reported to a single StatusTracker, at most once per percent,
+ * from whichever worker crosses each step. Calls to the tracker are synchronized, so it need not be thread-safe.
+ * Data sets are never read just to be counted, so progress is only reported when StatsDataSet.isSizeKnown() is true.
+ *
+ * @author scox
+ *
+ */
+public class ParallelCovarianceEngine {
+	private static final int BLOCK_ROWS = 256;
+	private static final int PROGRESS_STEPS = 100;
+
+	private ForkJoinPool pool;
+
+	/**
+	 * @param pool The pool on which to accumulate.
+	 */
+	public ParallelCovarianceEngine(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 * @param data The data to accumulate. Data sets that reuse their WeightedDatum instances are supported, since no datum is retained.
+	 * @param statusTracker A StatusTracker for reporting progress. Can be null.
+	 * @return A CovarianceAccumulator holding the accumulation of every datum in data.
+	 */
+	public CovarianceAccumulator accumulate(StatsDataSet data, StatusTracker statusTracker) {
+		int variableCount = data.getVariableCount();
+		return accumulate(data, ()->new CovarianceAccumulator(variableCount), CovarianceAccumulator::addBlock, CovarianceAccumulator::merge, statusTracker);
+	}
+
+	/**
+	 * @param data The data to accumulate. Missing values are left out pair by pair.
+	 * @param statusTracker A StatusTracker for reporting progress. Can be null.
+	 * @return A PairwiseCovarianceAccumulator holding the accumulation of every datum in data.
+	 */
+	public PairwiseCovarianceAccumulator accumulatePairwise(StatsDataSet data, StatusTracker statusTracker) {
+		int variableCount = data.getVariableCount();
+		return accumulate(data, ()->new PairwiseCovarianceAccumulator(variableCount), PairwiseCovarianceAccumulator::addBlock, PairwiseCovarianceAccumulator::merge, statusTracker);
+	}
+
+	private <T> T accumulate(StatsDataSet data, Supplier<T> supplier, BlockAccumulation<T> accumulation, BiConsumer<T,T> merge, StatusTracker statusTracker) {
+		Spliterator<WeightedDatum> spliterator = data.spliterator();
+		// Data sets that would have to be read to be counted give an unsized spliterator, so no progress is reported for them.
+		boolean sized = spliterator.hasCharacteristics(Spliterator.SIZED);
+		long total = sized?spliterator.estimateSize():-1;
+		Run<T> run = new Run<>(pool, data.getVariableCount(), supplier, accumulation, total, statusTracker);
+		if(statusTracker!=null)
+			statusTracker.updateStatus("Accumulating rows", 0, 0);
+		long splitSize = sized?Math.max(4*BLOCK_ROWS, total/(8L*pool.getParallelism())):16*BLOCK_ROWS;
+		pool.invoke(new RowTask<>(run, spliterator, splitSize));
+
+		// Merge the per-thread accumulators as a balanced tree.
+		List<T> accumulators = new ArrayList<>();
+		for(Worker<T> worker:run.workers) {
+			if(worker!=null)
+				accumulators.add(worker.accumulator);
+		}
+		if(accumulators.isEmpty())
+			return supplier.get();
+		while(accumulators.size()>1) {
+			List<T> merged = new ArrayList<>((accumulators.size()+1)/2);
+			for(int i=0;i<accumulators.size();i+=2) {
+				T accumulator = accumulators.get(i);
+				if(i+1<accumulators.size())
+					merge.accept(accumulator, accumulators.get(i+1));
+				merged.add(accumulator);
+			}
+			accumulators = merged;
+		}
+		if(statusTracker!=null)
+			statusTracker.updateStatus("Accumulating rows", 1, 1);
+		return accumulators.get(0);
+	}
+
+	private interface BlockAccumulation<T>{
+		public void addBlock(T accumulator, double[] block, double[] weights, int rows);
+	}
+
+	/**
+	 * The state shared by every task of a single accumulation.
+	 */
+	private static class Run<T>{
+		private ForkJoinPool pool;
+		private int variableCount;
+		private Supplier<T> supplier;
+		private BlockAccumulation<T> accumulation;
+		/**
+		 * The worker of each of the pool's threads at its pool index plus one.
+		 * Index 0 is shared by any other thread that runs a task, such as the thread that invoked the run.
+		 */
+		private Worker<T>[] workers;
+		private long total;
+		private AtomicLong processed = new AtomicLong();
+		private AtomicLong nextReport = new AtomicLong(1);
+		private double reportedProgress;
+		private StatusTracker statusTracker;
+
+		@SuppressWarnings("unchecked")
+		public Run(ForkJoinPool pool, int variableCount, Supplier<T> supplier, BlockAccumulation<T> accumulation, long total, StatusTracker statusTracker) {
+			this.pool = pool;
+			this.variableCount = variableCount;
+			this.supplier = supplier;
+			this.accumulation = accumulation;
+			this.total = total;
+			this.statusTracker = statusTracker;
+			workers = (Worker<T>[])new Worker<?>[pool.getParallelism()+1];
+		}
+
+		/**
+		 * @return The worker for the current thread, created on the thread's first task.
+		 */
+		private synchronized Worker<T> getWorker() {
+			Thread thread = Thread.currentThread();
+			int index = 0;
+			if((thread instanceof ForkJoinWorkerThread)&&(((ForkJoinWorkerThread)thread).getPool()==pool))
+				index = ((ForkJoinWorkerThread)thread).getPoolIndex()+1;
+			// Pool indexes may exceed the parallelism, since the pool can replace or compensate for blocked threads.
+			if(index>=workers.length)
+				workers = Arrays.copyOf(workers, Math.max(index+1, 2*workers.length));
+			if(workers[index]==null)
+				workers[index] = new Worker<>(supplier.get(), variableCount);
+			return workers[index];
+		}
+
+		private void progress(int rows) {
+			if((statusTracker==null)||(total<=0))
+				return;
+			long done = processed.addAndGet(rows);
+			long step = done*PROGRESS_STEPS/total;
+			long next = nextReport.get();
+			if((step>=next)&&nextReport.compareAndSet(next, step+1)) {
+				double progress = Math.min(1, (double)done/total);
+				synchronized(statusTracker) {
+					// Another worker may have reported a later step between the compareAndSet and this lock.
+					if(progress>reportedProgress) {
+						reportedProgress = progress;
+						statusTracker.updateStatus("Accumulating rows", progress, progress);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * The accumulator and block buffers of a single thread.
+	 * Tasks lock the worker while they use it, since the worker at index 0 may be shared.
+	 */
+	private static class Worker<T>{
+		private T accumulator;
+		private double[] block;
+		private double[] weights;
+
+		public Worker(T accumulator, int variableCount) {
+			this.accumulator = accumulator;
+			block = new double[BLOCK_ROWS*variableCount];
+			weights = new double[BLOCK_ROWS];
+		}
+	}
+
+	/**
+	 * Splits its rows until there are no more than splitSize, and then adds them to the current thread's accumulator.
+	 */
+	private static class RowTask<T> extends RecursiveAction{
+		private static final long serialVersionUID = 1L;
+		private Run<T> run;
+		private Spliterator<WeightedDatum> spliterator;
+		private long splitSize;
+
+		public RowTask(Run<T> run, Spliterator<WeightedDatum> spliterator, long splitSize) {
+			this.run = run;
+			this.spliterator = spliterator;
+			this.splitSize = splitSize;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.concurrent.RecursiveAction#compute()
+		 */
+		@Override
+		protected void compute() {
+			Spliterator<WeightedDatum> split;
+			ArrayList<RowTask<T>> forked = new ArrayList<>();
+			while((spliterator.estimateSize()>splitSize)&&((split = spliterator.trySplit())!=null)) {
+				RowTask<T> task = new RowTask<>(run, split, splitSize);
+				task.fork();
+				forked.add(task);
+			}
+			Worker<T> worker = run.getWorker();
+			int variableCount = run.variableCount;
+			int[] rows = new int[1];
+			synchronized(worker) {
+				while(spliterator.tryAdvance((datum)->{
+					System.arraycopy(datum.datum, 0, worker.block, rows[0]*variableCount, variableCount);
+					worker.weights[rows[0]] = datum.weight;
+					rows[0]++;
+				})) {
+					if(rows[0]==BLOCK_ROWS) {
+						run.accumulation.addBlock(worker.accumulator, worker.block, worker.weights, BLOCK_ROWS);
+						run.progress(BLOCK_ROWS);
+						rows[0] = 0;
+					}
+				}
+				if(rows[0]>0) {
+					run.accumulation.addBlock(worker.accumulator, worker.block, worker.weights, rows[0]);
+					run.progress(rows[0]);
+				}
+			}
+			for(RowTask<T> task:forked)
+				task.join();
+		}
+	}
+}
@@ -0,0 +1,35 @@
+/**
+ * 
+ */
+package com.shtick.math.statistics;
+
+/**
+ * Reads the entries of a StatsDataSet a block of rows at a time, into arrays supplied by the caller.
+ * A reader should be closed when it is no longer needed, so that any resources behind it,
+ * such as a decompression thread, are released even if it isn't read to the end.
+ * 
+ * @author scox
+ *
+ */
+public interface RowBlockReader extends AutoCloseable {
+
+	/**
+	 * Reads up to maxRows entries into the given arrays.
+	 * The values are written row-major, so variable i of the r'th row read is written to block[r*variableCount+i].
+	 * 
+	 * @param block The array to write values to. It must be at least maxRows*variableCount in length.
+	 * @param weights The array to write the weight of each row to. It must be at least maxRows in length.
+	 * @param maxRows The maximum number of rows to read.
+	 * @return The number of rows read, which will only be zero if there are no more rows.
+	 */
+	int readBlock(double[] block, double[] weights, int maxRows);
+
+	/**
+	 * Releases any resources held by the reader. Does nothing by default.
+	 *
+	 * @see java.lang.AutoCloseable#close()
+	 */
+	@Override
+	default void close() {
+	}
+}
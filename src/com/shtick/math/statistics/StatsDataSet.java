@@ -9,6 +9,15 @@
 
 package com.shtick.math.statistics;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
 /**
  * 
  *
@@ -38,4 +47,179 @@ public abstract class StatsDataSet implements Iterable<WeightedDatum>{
      * @return the size of a datum.
      */
     public abstract int getVariableCount();
+
+    /**
+     * Indicates whether the iterators of this data set reuse a single WeightedDatum (and its datum array) for every entry.
+     * When true, the values of a WeightedDatum returned by next() are only valid until next() is called again,
+     * so any consumer that needs to retain entries must copy them.
+     * Data sets that allocate a new WeightedDatum for every entry should return false, which is the default.
+     *
+     * @return true if WeightedDatum instances are reused between calls to next(), and false otherwise.
+     */
+    public boolean reusesDatum() {
+    	return false;
+    }
+
+    /**
+     * Indicates whether the entries of this data set may have missing values.
+     * Missing values are NaN in WeightedDatum.datum, and clear in WeightedDatum.presence.
+     * Consumers which can't handle missing values, such as CovarianceAccumulator, should only be given data sets for which this is false, which is the default.
+     *
+     * @return true if entries may have missing values, and false otherwise.
+     */
+    public boolean allowsMissingValues() {
+    	return false;
+    }
+
+    /**
+     * Indicates whether size() can be called without reading through the data set.
+     * Data sets which count their entries by reading them should return false until they have been counted.
+     *
+     * @return true if size() is cheap, which is the default.
+     */
+    public boolean isSizeKnown() {
+    	return true;
+    }
+
+    /**
+     * Returns a Spliterator over the data set, sized by size() if isSizeKnown() is true.
+     * Otherwise, the Spliterator is not SIZED, and its estimated size is Long.MAX_VALUE, so creating it doesn't read the data set.
+     * By default, the Spliterator splits by taking batches of entries from iterator(), copying each entry if reusesDatum() is true.
+     * Data sets that can read their entries in any order should override this to split without copying.
+     *
+     * @return A Spliterator over the data set.
+     */
+    @Override
+    public Spliterator<WeightedDatum> spliterator() {
+    	if(isSizeKnown())
+    		return new IteratorSpliterator(iterator(), size(), reusesDatum());
+    	return new IteratorSpliterator(iterator(), -1, reusesDatum());
+    }
+
+    /**
+     * @return A sequential Stream of the entries in the data set.
+     */
+    public Stream<WeightedDatum> stream() {
+    	return StreamSupport.stream(spliterator(), false);
+    }
+
+    /**
+     * Returns a parallel Stream of the entries in the data set.
+     * If reusesDatum() is true, each entry is only valid until the next entry is provided to the same thread,
+     * so operations which retain entries (such as sorting or collecting to a list) must copy them.
+     *
+     * @return A parallel Stream of the entries in the data set.
+     */
+    public Stream<WeightedDatum> parallelStream() {
+    	return StreamSupport.stream(spliterator(), true);
+    }
+
+    /**
+     * Returns a reader which fills caller supplied arrays with blocks of entries,
+     * so that kernels can process many rows at a time rather than one datum at a time.
+     * By default, the reader copies entries from iterator(), and closes the iterator when it is closed, if the iterator is Closeable.
+     * Missing values are copied as NaN.
+     *
+     * @return A RowBlockReader over the data set.
+     */
+    public RowBlockReader blockReader() {
+    	Iterator<WeightedDatum> iterator = iterator();
+    	int variableCount = getVariableCount();
+    	return new RowBlockReader() {
+    		@Override
+    		public int readBlock(double[] block, double[] weights, int maxRows) {
+    			int rows = 0;
+    			while((rows<maxRows)&&iterator.hasNext()) {
+    				WeightedDatum datum = iterator.next();
+    				System.arraycopy(datum.datum, 0, block, rows*variableCount, variableCount);
+    				weights[rows] = datum.weight;
+    				rows++;
+    			}
+    			return rows;
+    		}
+
+    		@Override
+    		public void close() {
+    			if(iterator instanceof Closeable) {
+    				try {
+    					((Closeable)iterator).close();
+    				}
+    				catch(IOException t) {
+    					throw new RuntimeException(t);
+    				}
+    			}
+    		}
+    	};
+    }
+
+    private static class IteratorSpliterator implements Spliterator<WeightedDatum>{
+    	private static final int BATCH_UNIT = 1<<10;
+    	private static final int MAX_BATCH = 1<<25;
+    	private Iterator<WeightedDatum> iterator;
+    	private long remaining;
+    	private boolean sized;
+    	private boolean copy;
+    	private int batch;
+
+    	/**
+    	 * @param size The number of entries, or -1 if unknown.
+    	 */
+    	public IteratorSpliterator(Iterator<WeightedDatum> iterator, long size, boolean copy) {
+    		this.iterator = iterator;
+    		sized = size>=0;
+    		this.remaining = sized?size:Long.MAX_VALUE;
+    		this.copy = copy;
+    	}
+
+    	@Override
+    	public boolean tryAdvance(Consumer<? super WeightedDatum> action) {
+    		if(!iterator.hasNext())
+    			return false;
+    		remaining--;
+    		action.accept(iterator.next());
+    		return true;
+    	}
+
+    	@Override
+    	public void forEachRemaining(Consumer<? super WeightedDatum> action) {
+    		while(iterator.hasNext()) {
+    			remaining--;
+    			action.accept(iterator.next());
+    		}
+    	}
+
+    	@Override
+    	public Spliterator<WeightedDatum> trySplit() {
+    		if((remaining<=1)||!iterator.hasNext())
+    			return null;
+    		int size = (int)Math.min(Math.min(batch+BATCH_UNIT, MAX_BATCH), remaining);
+    		WeightedDatum[] entries = new WeightedDatum[size];
+    		int i=0;
+    		do {
+    			WeightedDatum datum = iterator.next();
+    			if(copy) {
+    				WeightedDatum copied = new WeightedDatum();
+    				copied.weight = datum.weight;
+    				copied.datum = datum.datum.clone();
+    				if(datum.presence!=null)
+    					copied.presence = datum.presence.clone();
+    				datum = copied;
+    			}
+    			entries[i++] = datum;
+    		} while((i<size)&&iterator.hasNext());
+    		batch = i;
+    		remaining -= i;
+    		return Spliterators.spliterator(entries, 0, i, ORDERED|NONNULL);
+    	}
+
+    	@Override
+    	public long estimateSize() {
+    		return Math.max(remaining, 0);
+    	}
+
+    	@Override
+    	public int characteristics() {
+    		return sized?ORDERED|NONNULL|SIZED:ORDERED|NONNULL;
+    	}
+    }
 }
@@ -0,0 +1,198 @@
+/**
+ * 
+ */
+package com.shtick.math.statistics;
+
+/**
+ * A square symmetric matrix, such as a covariance matrix, storing only its upper triangle.
+ *
+ * The triangle is packed row by row into a single array, so row i holds columns i to getSize()-1,
+ * and each off-diagonal element is stored once, where a double[][] would store it twice.
+ * Every pass over the matrix, such as scale() or add(), touches half the memory of the full matrix,
+ * and that memory is contiguous. CovarianceAccumulator keeps its co-moments in a SymmetricMatrix.
+ *
+ * Unlike DoubleMatrix, the accumulating operations modify the matrix in place, so a matrix can be built up without copies.
+ * The eigen solvers need the full matrix, which toDoubleMatrix() provides.
+ *
+ * @author scox
+ *
+ */
+public class SymmetricMatrix {
+	private int size;
+	/**
+	 * The packed upper triangle. Kernels in this package update it directly.
+	 */
+	double[] elements;
+	/**
+	 * The index in elements of each row's element in column 0, were it stored, so element (i,j) where i&lt;=j is at rowOffsets[i]+j.
+	 */
+	int[] rowOffsets;
+
+	/**
+	 * Creates a matrix of zeros.
+	 *
+	 * @param size The number of rows and columns.
+	 * @throws IllegalArgumentException if size is not positive, or the packed triangle would not fit in an array.
+	 */
+	public SymmetricMatrix(int size) {
+		if(size<=0)
+			throw new IllegalArgumentException("Only non-empty matrix supported.");
+		long length = (long)size*(size+1)/2;
+		if(length>Integer.MAX_VALUE-8)
+			throw new IllegalArgumentException("Matrix too large: "+size);
+		this.size = size;
+		elements = new double[(int)length];
+		rowOffsets = new int[size];
+		for(int i=0;i<size;i++)
+			rowOffsets[i] = (int)((long)i*size-(long)i*(i+1)/2);
+	}
+
+	/**
+	 * Creates a copy of the given matrix.
+	 *
+	 * @param matrix
+	 */
+	public SymmetricMatrix(SymmetricMatrix matrix) {
+		size = matrix.size;
+		elements = matrix.elements.clone();
+		rowOffsets = matrix.rowOffsets;
+	}
+
+	/**
+	 * Creates a matrix from the upper triangle of a square array. The lower triangle is not read.
+	 *
+	 * @param matrix
+	 * @throws IllegalArgumentException if the array isn't square.
+	 */
+	public SymmetricMatrix(double[][] matrix) {
+		this(matrix.length);
+		for(int i=0;i<size;i++) {
+			if(matrix[i].length!=size)
+				throw new IllegalArgumentException("Matrix not square.");
+			System.arraycopy(matrix[i], i, elements, rowOffsets[i]+i, size-i);
+		}
+	}
+
+	/**
+	 *
+	 * @return The number of rows, which is also the number of columns.
+	 */
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 *
+	 * @param row
+	 * @param column
+	 * @return The matrix element at the given row and column position, which is also the element at the transposed position.
+	 */
+	public double getElementAt(int row, int column) {
+		return elements[getIndex(row, column)];
+	}
+
+	/**
+	 * Sets the element at the given position and at the transposed position.
+	 *
+	 * @param row
+	 * @param column
+	 * @param value
+	 */
+	public void setElementAt(int row, int column, double value) {
+		elements[getIndex(row, column)] = value;
+	}
+
+	/**
+	 * Multiplies the matrix by factor and adds scale*v*v^T, in a single pass,
+	 * as when folding a datum into a sum of squares and cross products that is decayed with each datum.
+	 *
+	 * @param factor
+	 * @param vector
+	 * @param scale
+	 * @throws IllegalArgumentException if the vector is not of the matrix's size.
+	 */
+	public void scaleAndAddOuterProduct(double factor, double[] vector, double scale) {
+		if(vector.length!=size)
+			throw new IllegalArgumentException("Vector size does not match matrix size.");
+		int k = 0;
+		if(factor==1) {
+			for(int i=0;i<size;i++) {
+				double scaled = vector[i]*scale;
+				for(int j=i;j<size;j++)
+					elements[k++] += scaled*vector[j];
+			}
+			return;
+		}
+		for(int i=0;i<size;i++) {
+			double scaled = vector[i]*scale;
+			for(int j=i;j<size;j++,k++)
+				elements[k] = elements[k]*factor+scaled*vector[j];
+		}
+	}
+
+	/**
+	 * Adds another matrix to this one, element by element.
+	 *
+	 * @param m
+	 * @throws IllegalArgumentException if the matrices are of different sizes.
+	 */
+	public void add(SymmetricMatrix m) {
+		if(m.size!=size)
+			throw new IllegalArgumentException("Matrix sizes do not match.");
+		for(int k=0;k<elements.length;k++)
+			elements[k] += m.elements[k];
+	}
+
+	/**
+	 * Multiplies every element of the matrix by the given factor.
+	 *
+	 * @param factor
+	 */
+	public void scale(double factor) {
+		for(int k=0;k<elements.length;k++)
+			elements[k] *= factor;
+	}
+
+	/**
+	 *
+	 * @return A copy of the diagonal of the matrix.
+	 */
+	public double[] getDiagonal() {
+		double[] retval = new double[size];
+		for(int i=0;i<size;i++)
+			retval[i] = elements[rowOffsets[i]+i];
+		return retval;
+	}
+
+	/**
+	 *
+	 * @return The full matrix, with both triangles filled in.
+	 */
+	public double[][] toArray() {
+		double[][] retval = new double[size][size];
+		for(int i=0;i<size;i++) {
+			int offset = rowOffsets[i];
+			for(int j=i;j<size;j++) {
+				retval[i][j] = elements[offset+j];
+				retval[j][i] = retval[i][j];
+			}
+		}
+		return retval;
+	}
+
+	/**
+	 *
+	 * @return A DoubleMatrix holding the full matrix, for operations that SymmetricMatrix doesn't provide, such as getEigensystem().
+	 */
+	public DoubleMatrix toDoubleMatrix() {
+		return new DoubleMatrix(toArray());
+	}
+
+	private int getIndex(int row, int column) {
+		if((row<0)||(column<0)||(row>=size)||(column>=size))
+			throw new IndexOutOfBoundsException("("+row+","+column+") outside of "+size+"x"+size+" matrix.");
+		if(row>column)
+			return rowOffsets[column]+row;
+		return rowOffsets[row]+column;
+	}
+}
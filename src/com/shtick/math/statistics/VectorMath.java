@@ -23,10 +23,32 @@ public class VectorMath {
 	public static double dotProduct(double[] a,double[] b){
 		if(a.length!=b.length)
 			throw new IllegalArgumentException("Incompatible vectors.");
-		double c=0;
-		for(int i = 0;i<a.length;i++)
-			c+=a[i]*b[i];
-		return c;
+		return dotProduct(a,0,b,0,a.length);
+	}
+
+	/**
+	 * The products are summed into four independent partial sums, so that each addition
+	 * doesn't have to wait for the one before it, and the loop can keep several multiplications in flight.
+	 *
+	 * @param a
+	 * @param aOffset The index of the first element of a to use.
+	 * @param b
+	 * @param bOffset The index of the first element of b to use.
+	 * @param length The number of elements to use from each array.
+	 * @return The dot product of the given ranges of the two arrays.
+	 */
+	public static double dotProduct(double[] a,int aOffset,double[] b,int bOffset,int length){
+		double c0=0,c1=0,c2=0,c3=0;
+		int i = 0;
+		for(;i<=length-4;i+=4) {
+			c0+=a[aOffset+i]*b[bOffset+i];
+			c1+=a[aOffset+i+1]*b[bOffset+i+1];
+			c2+=a[aOffset+i+2]*b[bOffset+i+2];
+			c3+=a[aOffset+i+3]*b[bOffset+i+3];
+		}
+		for(;i<length;i++)
+			c0+=a[aOffset+i]*b[bOffset+i];
+		return (c0+c1)+(c2+c3);
 	}
 
 	/**
@@ -6,7 +6,11 @@ package com.shtick.math.statistics;
 /**
  * This datum is designed, for the purposes of simplicity of memory management and speed, to be able to be reused and manipulated without creating new instances for each data point.
  * 
- * These objects may be modified when next() or previous() is called on the Iterator producing them. 
+ * These objects may be modified when next() or previous() is called on the Iterator producing them.
+ * Whether a StatsDataSet does so is reported by StatsDataSet.reusesDatum(). 
+ * 
+ * A datum may have missing values, if StatsDataSet.allowsMissingValues() is true for the data set producing it.
+ * Missing values are NaN in the datum array, and their bits are clear in the presence bitmask.
  * 
  * @author scox
  *
@@ -20,4 +24,39 @@ public class WeightedDatum {
 	 * 
 	 */
 	public double[] datum;
+	/**
+	 * A bitmask of the variables which have values, where variable i is present if bit (i%64) of presence[i/64] is set.
+	 * If null, every variable is present.
+	 */
+	public long[] presence;
+
+	/**
+	 * @param var
+	 * @return true if the given variable has a value, and false if it is missing.
+	 */
+	public boolean isPresent(int var) {
+		return (presence==null)||((presence[var>>>6]&(1L<<var))!=0);
+	}
+
+	/**
+	 * @param variableCount
+	 * @return The number of longs needed for a presence bitmask of the given number of variables.
+	 */
+	public static int getPresenceLength(int variableCount) {
+		return (variableCount+63)>>>6;
+	}
+
+	/**
+	 * Sets the bits of the given presence bitmask for every variable, and clears any bits beyond the last variable.
+	 *
+	 * @param presence
+	 * @param variableCount
+	 */
+	public static void setAllPresent(long[] presence, int variableCount) {
+		int words = getPresenceLength(variableCount);
+		for(int i=0;i<words;i++)
+			presence[i] = -1L;
+		if((variableCount&63)!=0)
+			presence[words-1] = (1L<<(variableCount&63))-1;
+	}
 }
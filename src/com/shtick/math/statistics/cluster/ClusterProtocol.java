@@ -0,0 +1,27 @@
+/**
+ * 
+ */
+package com.shtick.math.statistics.cluster;
+
+/**
+ * The messages exchanged by a ShardCoordinator and its ShardWorkers, each written with a DataOutputStream.
+ *
+ * On connecting, a worker sends MAGIC and VERSION, and the coordinator replies with the number of ignored columns and their names.
+ * The coordinator then sends either SHARD followed by the path of a shard, to which the worker replies with RESULT
+ * followed by a CovariancePartial or with ERROR followed by a message, or DONE, after which the connection is closed.
+ *
+ * @author scox
+ *
+ */
+final class ClusterProtocol {
+	static final int MAGIC = 0x50535943; // "PSYC"
+	static final int VERSION = 1;
+
+	static final int SHARD = 1;
+	static final int DONE = 2;
+
+	static final int RESULT = 1;
+	static final int ERROR = 2;
+
+	private ClusterProtocol() {}
+}
@@ -0,0 +1,344 @@
+/**
+ * 
+ */
+package com.shtick.math.statistics.cluster;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+
+import com.shtick.math.statistics.CovariancePartial;
+import com.shtick.math.statistics.StatusTracker;
+import com.shtick.math.statistics.pca.PrincipleComponentAnalysis;
+import com.shtick.math.statistics.pca.PrincipleComponentSystem;
+
+/**
+ * Hands the shards of a data set out to ShardWorkers connected over TCP, and merges the CovariancePartial each returns.
+ *
+ * Workers may connect at any time while collect() is running, and each is handed a new shard as soon as it returns a result,
+ * so faster workers process more shards. If a worker's connection fails, the shard it was working on is handed to another worker.
+ * If every worker is lost while shards remain, collect() fails unless another worker connects within the worker timeout.
+ * Partials are merged in shard order once every shard has been accumulated, so the result doesn't depend on which worker processed which shard.
+ *
+ * Workers can be run in separate processes, each with its own heap, with startLocalWorkers() or ShardWorker.main().
+ *
+ * @author scox
+ *
+ */
+public class ShardCoordinator implements Closeable {
+	/**
+	 * The longest time, in milliseconds, that collect() waits for idle workers to be told they are done before closing their connections.
+	 */
+	private static final long DRAIN_TIMEOUT = 5000;
+	/**
+	 * The default time, in milliseconds, that collect() waits for a worker to connect after every worker has been lost.
+	 */
+	public static final long DEFAULT_WORKER_TIMEOUT = 60000;
+
+	private File[] shards;
+	private Set<String> ignoreColumns;
+	private ServerSocket serverSocket;
+	private List<Socket> connections = new ArrayList<>();
+	private LinkedList<Integer> pending = new LinkedList<>();
+	private CovariancePartial[] results;
+	private int completed;
+	private IOException failure;
+	private boolean collected;
+	private long allLostTime = -1;
+
+	/**
+	 * Creates a coordinator listening on the loopback interface.
+	 *
+	 * @param shards The tab separated files to be accumulated. Each must have the same variables, once the ignored columns are removed.
+	 * @param ignoreColumns The names of columns that should not be included in the data set.
+	 * @param port The port to listen on, or 0 for any free port.
+	 * @throws IOException
+	 */
+	public ShardCoordinator(File[] shards, Set<String> ignoreColumns, int port) throws IOException{
+		this(shards, ignoreColumns, InetAddress.getLoopbackAddress(), port);
+	}
+
+	/**
+	 * @param shards The tab separated files to be accumulated. Each must have the same variables, once the ignored columns are removed.
+	 *        Workers open shards by their absolute paths.
+	 * @param ignoreColumns The names of columns that should not be included in the data set.
+	 * @param bindAddress The address to listen on.
+	 * @param port The port to listen on, or 0 for any free port.
+	 * @throws IOException
+	 */
+	public ShardCoordinator(File[] shards, Set<String> ignoreColumns, InetAddress bindAddress, int port) throws IOException{
+		if(shards.length==0)
+			throw new IllegalArgumentException("At least one shard required.");
+		this.shards = Arrays.copyOf(shards, shards.length);
+		this.ignoreColumns = ignoreColumns;
+		results = new CovariancePartial[shards.length];
+		for(int i=0;i<shards.length;i++)
+			pending.add(i);
+		serverSocket = new ServerSocket(port, 50, bindAddress);
+	}
+
+	/**
+	 *
+	 * @return The port the coordinator is listening on.
+	 */
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	/**
+	 * Starts worker processes on this machine, running ShardWorker with the class path of this JVM.
+	 * The processes exit once the coordinator is done with them.
+	 *
+	 * @param count The number of processes to start.
+	 * @return The processes started.
+	 * @throws IOException
+	 */
+	public List<Process> startLocalWorkers(int count) throws IOException{
+		String java = System.getProperty("java.home")+File.separator+"bin"+File.separator+"java";
+		ArrayList<Process> retval = new ArrayList<>(count);
+		for(int i=0;i<count;i++) {
+			ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+					ShardWorker.class.getName(), serverSocket.getInetAddress().getHostAddress(), Integer.toString(getPort()));
+			builder.inheritIO();
+			retval.add(builder.start());
+		}
+		return retval;
+	}
+
+	/**
+	 * Waits for workers to accumulate every shard, and merges the results, waiting up to DEFAULT_WORKER_TIMEOUT for a worker to connect if every worker is lost.
+	 * A coordinator only collects once. It stops listening when collection finishes.
+	 *
+	 * @param statusTracker A StatusTracker for reporting progress. Can be null.
+	 * @return The merge of the partials of every shard, in shard order.
+	 * @throws IOException If a worker could not accumulate a shard, every worker was lost, or the shards' variables don't match.
+	 */
+	public CovariancePartial collect(StatusTracker statusTracker) throws IOException{
+		return collect(statusTracker, DEFAULT_WORKER_TIMEOUT);
+	}
+
+	/**
+	 * Waits for workers to accumulate every shard, and merges the results.
+	 * A coordinator only collects once. It stops listening when collection finishes.
+	 *
+	 * @param statusTracker A StatusTracker for reporting progress. Can be null.
+	 * @param workerTimeout The time, in milliseconds, to wait for a worker to connect once every connected worker has been lost while shards remain.
+	 * @return The merge of the partials of every shard, in shard order.
+	 * @throws IOException If a worker could not accumulate a shard, every worker was lost, or the shards' variables don't match.
+	 */
+	public CovariancePartial collect(StatusTracker statusTracker, long workerTimeout) throws IOException{
+		if(workerTimeout<0)
+			throw new IllegalArgumentException("Worker timeout cannot be negative.");
+		synchronized(this) {
+			if(collected)
+				throw new IllegalStateException("Already collected.");
+			collected = true;
+		}
+		if(statusTracker!=null)
+			statusTracker.updateStatus("Accumulating shards", 0, 0);
+		Thread acceptor = new Thread(this::accept, "Shard coordinator: "+getPort());
+		acceptor.setDaemon(true);
+		acceptor.start();
+		try {
+			synchronized(this) {
+				int reported = 0;
+				while((completed<shards.length)&&(failure==null)) {
+					try {
+						if(connections.isEmpty()&&(allLostTime>=0)) {
+							long remaining = allLostTime+workerTimeout-System.currentTimeMillis();
+							if(remaining<=0)
+								throw new IOException("Every worker was lost with "+(shards.length-completed)+" shards still to be accumulated.");
+							wait(remaining);
+						}
+						else {
+							wait();
+						}
+					}
+					catch(InterruptedException t) {
+						throw new IOException(t);
+					}
+					if((statusTracker!=null)&&(completed>reported)) {
+						reported = completed;
+						statusTracker.updateStatus("Accumulating shards", (double)completed/shards.length, (double)completed/shards.length);
+					}
+				}
+				if(failure!=null)
+					throw failure;
+				long deadline = System.currentTimeMillis()+DRAIN_TIMEOUT;
+				long remaining;
+				while((!connections.isEmpty())&&((remaining = deadline-System.currentTimeMillis())>0)) {
+					try {
+						wait(remaining);
+					}
+					catch(InterruptedException t) {
+						break;
+					}
+				}
+			}
+		}
+		finally {
+			close();
+		}
+		CovariancePartial retval = results[0];
+		for(int i=1;i<results.length;i++) {
+			try {
+				retval.merge(results[i]);
+			}
+			catch(IllegalArgumentException t) {
+				throw new IOException("Variables of "+shards[i]+" do not match those of "+shards[0]+".", t);
+			}
+		}
+		return retval;
+	}
+
+	/**
+	 * Collects the partials of every shard, and finds the principle components of the merged accumulation.
+	 *
+	 * @param statusTracker A StatusTracker for reporting progress. Can be null.
+	 * @return A PrincipleComponentSystem based on every shard.
+	 * @throws Throwable
+	 */
+	public PrincipleComponentSystem getPrincipleComponents(StatusTracker statusTracker) throws Throwable{
+		CovariancePartial partial = collect(statusTracker);
+		return PrincipleComponentAnalysis.getPrincipleComponents(partial.getAccumulator(), statusTracker);
+	}
+
+	/**
+	 * Stops listening for workers and closes every worker connection.
+	 *
+	 * @see java.io.Closeable#close()
+	 */
+	@Override
+	public void close() throws IOException{
+		serverSocket.close();
+		synchronized(this) {
+			for(Socket connection:connections)
+				connection.close();
+			connections.clear();
+		}
+	}
+
+	private void accept() {
+		while(true) {
+			Socket socket;
+			try {
+				socket = serverSocket.accept();
+			}
+			catch(IOException t) {
+				// The server socket was closed.
+				return;
+			}
+			synchronized(this) {
+				if(serverSocket.isClosed()) {
+					try {
+						socket.close();
+					}
+					catch(IOException t) {}
+					return;
+				}
+				connections.add(socket);
+			}
+			Thread handler = new Thread(()->serve(socket), "Shard coordinator connection: "+socket.getRemoteSocketAddress());
+			handler.setDaemon(true);
+			handler.start();
+		}
+	}
+
+	/**
+	 * Hands shards to a single worker until there are none left, or the connection fails.
+	 */
+	private void serve(Socket socket) {
+		int shard = -1;
+		boolean lost = false;
+		try(Socket connection = socket){
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(connection.getOutputStream()));
+			DataInputStream in = new DataInputStream(new BufferedInputStream(connection.getInputStream()));
+			if((in.readInt()!=ClusterProtocol.MAGIC)||(in.readInt()!=ClusterProtocol.VERSION))
+				return;
+			out.writeInt(ignoreColumns.size());
+			for(String column:ignoreColumns)
+				out.writeUTF(column);
+			while((shard = nextShard())>=0) {
+				out.writeInt(ClusterProtocol.SHARD);
+				out.writeUTF(shards[shard].getAbsolutePath());
+				out.flush();
+				int response = in.readInt();
+				if(response==ClusterProtocol.RESULT) {
+					complete(shard, CovariancePartial.read(in));
+				}
+				else if(response==ClusterProtocol.ERROR) {
+					// No more shards are handed out, so the worker is told it is done.
+					fail(new IOException(in.readUTF()));
+				}
+				else {
+					throw new IOException("Unexpected response from worker: "+response);
+				}
+				shard = -1;
+			}
+			out.writeInt(ClusterProtocol.DONE);
+			out.flush();
+		}
+		catch(IOException t) {
+			// The worker is lost. Any shard it was working on is handed to another worker.
+			lost = true;
+			if(shard>=0)
+				requeue(shard);
+		}
+		finally {
+			synchronized(this) {
+				connections.remove(socket);
+				if(lost&&connections.isEmpty())
+					allLostTime = System.currentTimeMillis();
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 *
+	 * @return The index of the next shard to be accumulated, or -1 if there are none left.
+	 * Waits while every remaining shard is being accumulated by another worker, in case one fails.
+	 */
+	private synchronized int nextShard() {
+		while(pending.isEmpty()&&(completed<shards.length)&&(failure==null)) {
+			try {
+				wait();
+			}
+			catch(InterruptedException t) {
+				return -1;
+			}
+		}
+		if(pending.isEmpty()||(failure!=null))
+			return -1;
+		return pending.removeFirst();
+	}
+
+	private synchronized void complete(int shard, CovariancePartial partial) {
+		results[shard] = partial;
+		completed++;
+		notifyAll();
+	}
+
+	private synchronized void requeue(int shard) {
+		pending.addFirst(shard);
+		notifyAll();
+	}
+
+	private synchronized void fail(IOException t) {
+		if(failure==null)
+			failure = t;
+		notifyAll();
+	}
+}
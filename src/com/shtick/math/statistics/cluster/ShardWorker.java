@@ -0,0 +1,104 @@
+/**
+ * 
+ */
+package com.shtick.math.statistics.cluster;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.HashSet;
+import java.util.Set;
+
+import com.shtick.math.statistics.CovarianceAccumulator;
+import com.shtick.math.statistics.CovariancePartial;
+import com.shtick.math.statistics.data.CompressedTSVStatsDataSet;
+
+/**
+ * Connects to a ShardCoordinator and accumulates the shards it hands out, one at a time,
+ * replying with a CovariancePartial for each, until the coordinator has no more shards.
+ *
+ * Shards are named by path, so a worker on another machine needs to see the shards at the same paths as the coordinator.
+ *
+ * @author scox
+ *
+ */
+public class ShardWorker {
+	private static final int BLOCK_ROWS = 256;
+
+	private String host;
+	private int port;
+
+	/**
+	 * @param host The host of the coordinator.
+	 * @param port The port of the coordinator.
+	 */
+	public ShardWorker(String host, int port) {
+		this.host = host;
+		this.port = port;
+	}
+
+	/**
+	 * Runs a worker in its own process.
+	 *
+	 * @param args The host and port of the coordinator.
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws IOException{
+		if(args.length<2)
+			throw new IllegalArgumentException("Coordinator host and port expected.");
+		new ShardWorker(args[0], Integer.parseInt(args[1])).run();
+	}
+
+	/**
+	 * Connects to the coordinator and accumulates shards until the coordinator is done.
+	 * A shard that can't be read is reported to the coordinator, and the worker carries on.
+	 *
+	 * @throws IOException If the connection to the coordinator fails.
+	 */
+	public void run() throws IOException{
+		try(Socket socket = new Socket(host, port)){
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			out.writeInt(ClusterProtocol.MAGIC);
+			out.writeInt(ClusterProtocol.VERSION);
+			out.flush();
+			int ignoreCount = in.readInt();
+			Set<String> ignoreColumns = new HashSet<>();
+			for(int i=0;i<ignoreCount;i++)
+				ignoreColumns.add(in.readUTF());
+			while(true) {
+				int command = in.readInt();
+				if(command==ClusterProtocol.DONE)
+					return;
+				if(command!=ClusterProtocol.SHARD)
+					throw new IOException("Unexpected command from coordinator: "+command);
+				File shard = new File(in.readUTF());
+				CovariancePartial partial;
+				try {
+					partial = accumulate(shard, ignoreColumns);
+				}
+				catch(IOException|RuntimeException t) {
+					out.writeInt(ClusterProtocol.ERROR);
+					out.writeUTF("Could not accumulate "+shard+": "+t);
+					out.flush();
+					continue;
+				}
+				out.writeInt(ClusterProtocol.RESULT);
+				partial.write(out);
+				out.flush();
+			}
+		}
+	}
+
+	private static CovariancePartial accumulate(File shard, Set<String> ignoreColumns) throws IOException{
+		try(CompressedTSVStatsDataSet data = new CompressedTSVStatsDataSet(shard, ignoreColumns)){
+			CovarianceAccumulator accumulator = new CovarianceAccumulator(data.getVariableCount());
+			accumulator.addBlocks(data.blockReader(), BLOCK_ROWS);
+			return new CovariancePartial(data.getVariableNames(), accumulator);
+		}
+	}
+}
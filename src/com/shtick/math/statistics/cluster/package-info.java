@@ -0,0 +1,8 @@
+/**
+ * 
+ */
+/**
+ * @author scox
+ *
+ */
+package com.shtick.math.statistics.cluster;
\ No newline at end of file
@@ -0,0 +1,394 @@
+/**
+ * 
+ */
+package com.shtick.math.statistics.data;
+
+
+import java.util.Arrays;
+
+import com.shtick.math.statistics.CovarianceAccumulator;
+import com.shtick.math.statistics.IndexedStatsDataSet;
+import com.shtick.math.statistics.StatsDataSet;
+import com.shtick.math.statistics.WeightedDatum;
+
+/**
+ * An in-memory StatsDataSet for small integer data, such as Likert scale responses, which stores each value in a single byte.
+ *
+ * Each variable has an offset, and a stored byte, b, represents the value offset+b, where b is treated as unsigned.
+ * So each variable can hold any 256 consecutive integers.
+ * Offsets can be given up front, or chosen automatically, in which case each variable's offset starts at the first value added,
+ * and the variable is rebased, shifting its stored bytes and histogram, whenever a lower value is added.
+ * A variable can be rebased at most 255 times, so data with unknown ranges can be copied in a single pass.
+ * Rows are stored one after another in a single byte array, which is available to kernels through getRawData().
+ *
+ * Values are only expanded to doubles as each row is iterated, and iterators reuse a single WeightedDatum.
+ *
+ * A weighted histogram of each variable's values is kept as rows are added,
+ * so ranks, with ties given the average of the ranks they span, are available by counting sort without sorting any column.
+ *
+ * @author scox
+ *
+ */
+public class ByteStatsDataSet extends IndexedStatsDataSet {
+	private static final int INITIAL_CAPACITY = 1024;
+	/**
+	 * The number of rows of byte products that can be summed in an int without risk of overflow. (255*255*BLOCK_ROWS&lt;2^31)
+	 */
+	private static final int BLOCK_ROWS = 32768;
+	/**
+	 * The number of rows of ranks accumulated at a time by accumulateRanks().
+	 */
+	private static final int RANK_BLOCK_ROWS = 256;
+
+	private int variableCount;
+	private int[] offsets;
+	private boolean automaticOffsets;
+	/**
+	 * The largest byte stored for each variable, or -1 if no rows have been added.
+	 */
+	private int[] maxStored;
+	private int[] newOffsets;
+	private byte[] data;
+	private double[] weights;
+	private boolean unitWeights;
+	private int rowCount;
+	private double[] means;
+	/**
+	 * The total weight of the rows holding each stored byte of each variable, so variable i's histogram starts at histograms[i*256].
+	 */
+	private double[] histograms;
+
+	/**
+	 * Creates an empty data set where each variable can hold values from 0 to 255.
+	 *
+	 * @param variableCount
+	 */
+	public ByteStatsDataSet(int variableCount) {
+		this(new int[variableCount]);
+	}
+
+	/**
+	 * Creates an empty data set where each variable can hold any 256 consecutive integers.
+	 *
+	 * @param variableCount
+	 * @param automaticOffsets If true, each variable's offset is chosen from the values added. Otherwise each variable can hold values from 0 to 255.
+	 */
+	public ByteStatsDataSet(int variableCount, boolean automaticOffsets) {
+		this(new int[variableCount]);
+		this.automaticOffsets = automaticOffsets;
+	}
+
+	/**
+	 * Creates an empty data set where each variable, i, can hold values from offsets[i] to offsets[i]+255.
+	 *
+	 * @param offsets
+	 */
+	public ByteStatsDataSet(int[] offsets) {
+		if(offsets.length==0)
+			throw new IllegalArgumentException("At least one variable required.");
+		variableCount = offsets.length;
+		this.offsets = offsets.clone();
+		data = new byte[INITIAL_CAPACITY*variableCount];
+		weights = new double[INITIAL_CAPACITY];
+		unitWeights = true;
+		means = new double[variableCount];
+		histograms = new double[variableCount*256];
+		maxStored = new int[variableCount];
+		Arrays.fill(maxStored, -1);
+		newOffsets = new int[variableCount];
+	}
+
+	/**
+	 * Creates a byte-packed copy of the given data, with offsets chosen automatically. The data is iterated once.
+	 *
+	 * @param source
+	 * @return A data set holding the same data as source.
+	 * @throws IllegalArgumentException If any value in source is missing or not an integer, or any variable spans more than 256 consecutive integers.
+	 */
+	public static ByteStatsDataSet copyOf(StatsDataSet source) {
+		ByteStatsDataSet retval = new ByteStatsDataSet(source.getVariableCount(), true);
+		for(WeightedDatum datum:source)
+			retval.add(datum.datum, datum.weight);
+		return retval;
+	}
+
+	/**
+	 * Creates a byte-packed copy of the given data. The data is iterated once.
+	 *
+	 * @param source
+	 * @param offsets The offset for each variable.
+	 * @return A data set holding the same data as source.
+	 * @throws IllegalArgumentException If any value in source is not an integer that can be represented with the given offsets.
+	 */
+	public static ByteStatsDataSet copyOf(StatsDataSet source, int[] offsets) {
+		if(offsets.length!=source.getVariableCount())
+			throw new IllegalArgumentException("Offset count does not match variable count.");
+		ByteStatsDataSet retval = new ByteStatsDataSet(offsets);
+		for(WeightedDatum datum:source)
+			retval.add(datum.datum, datum.weight);
+		return retval;
+	}
+
+	/**
+	 * Appends a row to the data set.
+	 *
+	 * @param row The values of each variable.
+	 * @param weight
+	 * @throws IllegalArgumentException If any value is not an integer that can be represented with this data set's offsets,
+	 *         or, with automatic offsets, if adding it would make any variable span more than 256 consecutive integers.
+	 */
+	public void add(double[] row, double weight) {
+		if(row.length!=variableCount)
+			throw new IllegalArgumentException("Row size does not match variable count.");
+		if(rowCount==weights.length) {
+			if((long)rowCount*2*variableCount>Integer.MAX_VALUE-8)
+				throw new IllegalStateException("Data set is full.");
+			byte[] newData = new byte[data.length*2];
+			System.arraycopy(data, 0, newData, 0, rowCount*variableCount);
+			data = newData;
+			double[] newWeights = new double[weights.length*2];
+			System.arraycopy(weights, 0, newWeights, 0, rowCount);
+			weights = newWeights;
+		}
+		int base = rowCount*variableCount;
+		for(int i=0;i<variableCount;i++) {
+			newOffsets[i] = offsets[i];
+			if(automaticOffsets&&((rowCount==0)||(row[i]<offsets[i]))&&(row[i]>=Integer.MIN_VALUE)&&(row[i]<=Integer.MAX_VALUE-255))
+				newOffsets[i] = (int)Math.floor(row[i]);
+			double stored = row[i]-newOffsets[i];
+			if((stored<0)||(stored>255)||(stored!=Math.rint(stored))||((maxStored[i]>=0)&&((long)maxStored[i]+offsets[i]-newOffsets[i]>255)))
+				throw new IllegalArgumentException("Value "+row[i]+" cannot be stored for variable "+i+".");
+		}
+		for(int i=0;i<variableCount;i++)
+			if(newOffsets[i]!=offsets[i])
+				rebase(i, newOffsets[i]);
+		for(int i=0;i<variableCount;i++) {
+			int stored = (int)(row[i]-offsets[i]);
+			data[base+i] = (byte)stored;
+			histograms[i*256+stored] += weight;
+			maxStored[i] = Math.max(maxStored[i], stored);
+		}
+		weights[rowCount] = weight;
+		unitWeights &= weight==1;
+		rowCount++;
+	}
+
+	/**
+	 * Lowers the offset of a variable, shifting its stored bytes and histogram up to keep its values.
+	 */
+	private void rebase(int var, int offset) {
+		int shift = offsets[var]-offset;
+		offsets[var] = offset;
+		if(rowCount==0)
+			return;
+		for(int r=0;r<rowCount;r++) {
+			int index = r*variableCount+var;
+			data[index] = (byte)((data[index]&0xFF)+shift);
+		}
+		int base = var*256;
+		System.arraycopy(histograms, base, histograms, base+shift, 256-shift);
+		Arrays.fill(histograms, base, base+shift, 0);
+		maxStored[var] += shift;
+	}
+
+	/**
+	 *
+	 * @return The backing array, holding getVariableCount() bytes for each row, one row after another.
+	 *         Only the first size()*getVariableCount() bytes are meaningful. Bytes should be read as unsigned.
+	 *         The array is replaced when the data set grows, so it should be fetched again after add() is called.
+	 */
+	public byte[] getRawData() {
+		return data;
+	}
+
+	/**
+	 *
+	 * @return The offset of each variable. The value of variable i is getOffsets()[i]+(b&amp;0xFF) where b is the stored byte.
+	 *         With automatic offsets, an offset is lowered when a lower value is added.
+	 */
+	public int[] getOffsets() {
+		return offsets.clone();
+	}
+
+	/**
+	 *
+	 * @param row
+	 * @return The weight of the given row.
+	 */
+	public double getWeight(int row) {
+		if((row<0)||(row>=rowCount))
+			throw new IndexOutOfBoundsException();
+		return weights[row];
+	}
+
+	/**
+	 *
+	 * @param row
+	 * @param var
+	 * @return The value of the given variable in the given row, unadjusted by setMean().
+	 */
+	public int getValue(int row, int var) {
+		if((row<0)||(row>=rowCount))
+			throw new IndexOutOfBoundsException();
+		return offsets[var]+(data[row*variableCount+var]&0xFF);
+	}
+
+	/**
+	 *
+	 * @param var
+	 * @return The total weight of the rows holding each value of the given variable, where element b is for the value getOffsets()[var]+b.
+	 */
+	public double[] getHistogram(int var) {
+		double[] retval = new double[256];
+		System.arraycopy(histograms, var*256, retval, 0, 256);
+		return retval;
+	}
+
+	/**
+	 * Finds the weighted rank of each value of the given variable by counting sort over its histogram.
+	 * A value's rank is the total weight of the rows with smaller values, plus the average position within the rows sharing the value,
+	 * so with unit weights, tied values are given the average of the ranks 1 to size() that they span.
+	 *
+	 * @param var
+	 * @return The rank of each value of the given variable, where element b is for the value getOffsets()[var]+b.
+	 */
+	public double[] getRanks(int var) {
+		double[] retval = new double[256];
+		double below = 0;
+		int base = var*256;
+		for(int b=0;b<256;b++) {
+			double weight = histograms[base+b];
+			retval[b] = below+(weight+1)/2;
+			below += weight;
+		}
+		return retval;
+	}
+
+	/**
+	 * Calculates the covariance statistics of the ranks of every variable, as given by getRanks(), in place of their values.
+	 * The correlations of the result are the Spearman rank correlations of the data.
+	 * Ranks are looked up from a table for each variable, so this costs about the same as accumulating the values themselves.
+	 *
+	 * @return A CovarianceAccumulator holding the accumulation of the ranks of every row.
+	 */
+	public CovarianceAccumulator accumulateRanks() {
+		double[][] ranks = new double[variableCount][];
+		for(int i=0;i<variableCount;i++)
+			ranks[i] = getRanks(i);
+		CovarianceAccumulator accumulator = new CovarianceAccumulator(variableCount);
+		double[] block = new double[RANK_BLOCK_ROWS*variableCount];
+		double[] blockWeights = new double[RANK_BLOCK_ROWS];
+		for(int blockStart=0;blockStart<rowCount;blockStart+=RANK_BLOCK_ROWS) {
+			int rows = Math.min(RANK_BLOCK_ROWS, rowCount-blockStart);
+			int k = 0;
+			for(int r=0;r<rows;r++) {
+				int base = (blockStart+r)*variableCount;
+				for(int i=0;i<variableCount;i++,k++)
+					block[k] = ranks[i][data[base+i]&0xFF];
+			}
+			System.arraycopy(weights, blockStart, blockWeights, 0, rows);
+			accumulator.addBlock(block, blockWeights, rows);
+		}
+		return accumulator;
+	}
+
+	/**
+	 * Calculates the covariance statistics of the whole data set directly from the stored bytes.
+	 * When every row has a weight of one, the sums of products are accumulated exactly in integer arithmetic.
+	 * As with iterator(), values are adjusted by any means set with setMean(), which shifts the resulting means but not the covariances.
+	 *
+	 * @return A CovarianceAccumulator holding the accumulation of every row.
+	 */
+	public CovarianceAccumulator accumulate() {
+		if(!unitWeights) {
+			CovarianceAccumulator accumulator = new CovarianceAccumulator(variableCount);
+			double[] row = new double[variableCount];
+			for(int r=0;r<rowCount;r++) {
+				int base = r*variableCount;
+				for(int i=0;i<variableCount;i++)
+					row[i] = offsets[i]+(data[base+i]&0xFF)-means[i];
+				accumulator.add(row, weights[r]);
+			}
+			return accumulator;
+		}
+		if(rowCount==0)
+			return new CovarianceAccumulator(variableCount);
+		long[] sums = new long[variableCount];
+		long[][] products = new long[variableCount][];
+		int[][] blockProducts = new int[variableCount][];
+		for(int i=0;i<variableCount;i++) {
+			products[i] = new long[i+1];
+			blockProducts[i] = new int[i+1];
+		}
+		int[] values = new int[variableCount];
+		for(int blockStart=0;blockStart<rowCount;blockStart+=BLOCK_ROWS) {
+			int blockEnd = Math.min(rowCount, blockStart+BLOCK_ROWS);
+			for(int r=blockStart;r<blockEnd;r++) {
+				int base = r*variableCount;
+				for(int i=0;i<variableCount;i++) {
+					values[i] = data[base+i]&0xFF;
+					sums[i] += values[i];
+				}
+				for(int i=0;i<variableCount;i++) {
+					int[] productRow = blockProducts[i];
+					int value = values[i];
+					for(int j=0;j<=i;j++)
+						productRow[j] += value*values[j];
+				}
+			}
+			for(int i=0;i<variableCount;i++) {
+				for(int j=0;j<=i;j++) {
+					products[i][j] += blockProducts[i][j];
+					blockProducts[i][j] = 0;
+				}
+			}
+		}
+		double[] resultMeans = new double[variableCount];
+		double[][] comoments = new double[variableCount][];
+		for(int i=0;i<variableCount;i++) {
+			resultMeans[i] = offsets[i]-means[i]+(double)sums[i]/rowCount;
+			comoments[i] = new double[i+1];
+			for(int j=0;j<=i;j++)
+				comoments[i][j] = products[i][j]-(double)sums[i]*sums[j]/rowCount;
+		}
+		return new CovarianceAccumulator(rowCount, rowCount, resultMeans, comoments);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.shtick.math.statistics.IndexedStatsDataSet#getRow(int, com.shtick.math.statistics.WeightedDatum)
+	 */
+	@Override
+	public void getRow(int row, WeightedDatum datum) {
+		if((row<0)||(row>=rowCount))
+			throw new IndexOutOfBoundsException();
+		int base = row*variableCount;
+		for(int i=0;i<variableCount;i++)
+			datum.datum[i] = offsets[i]+(data[base+i]&0xFF)-means[i];
+		datum.weight = weights[row];
+	}
+
+	/* (non-Javadoc)
+	 * @see com.shtick.math.statistics.StatsDataSet#setMean(int, float)
+	 */
+	@Override
+	public void setMean(int var, float mean) {
+		means[var] = mean;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.shtick.math.statistics.StatsDataSet#size()
+	 */
+	@Override
+	public int size() {
+		return rowCount;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.shtick.math.statistics.StatsDataSet#getVariableCount()
+	 */
+	@Override
+	public int getVariableCount() {
+		return variableCount;
+	}
+
+}
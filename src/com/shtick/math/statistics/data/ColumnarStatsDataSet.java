@@ -0,0 +1,371 @@
+/**
+ * 
+ */
+package com.shtick.math.statistics.data;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+
+import com.shtick.math.statistics.IndexedStatsDataSet;
+import com.shtick.math.statistics.StatsDataSet;
+import com.shtick.math.statistics.WeightedDatum;
+
+/**
+ * A StatsDataSet backed by a binary, column-major cache file, so that data parsed once can be reread without parsing.
+ *
+ * The file is little-endian and laid out as follows:
+ * <ul>
+ * <li>The magic number, as a long.</li>
+ * <li>The format version, variable count, row count and flags, as ints. Version 1 files have no flags.</li>
+ * <li>For each variable, the length of its UTF-8 name, as an int, followed by the name.</li>
+ * <li>The weighted mean of each variable, over the rows where it is present, as doubles, beginning at the next multiple of 8 bytes.</li>
+ * <li>The weight of every row, as doubles.</li>
+ * <li>For each variable, the value of that variable for every row, as doubles. Missing values are NaN.</li>
+ * <li>If the missing values flag is set, for each variable, a bitmask of the rows where the variable is present,
+ *     as longs, where row r is present if bit (r%64) of long r/64 is set.</li>
+ * </ul>
+ *
+ * Each column is memory-mapped on read, and only the columns that are not ignored are mapped.
+ * A file written from a data set that allows missing values keeps the presence of every value, so it allows missing values too.
+ *
+ * @author scox
+ *
+ */
+public class ColumnarStatsDataSet extends IndexedStatsDataSet implements Closeable {
+	private static final long MAGIC = 0x4C4F434843595350L; // "PSYCHCOL" read as little-endian.
+	private static final int VERSION = 2;
+	/**
+	 * The flag set when the file holds presence bitmasks, because the data set written allowed missing values.
+	 */
+	private static final int FLAG_MISSING_VALUES = 1;
+	private static final int WRITE_BLOCK_ROWS = 4096;
+
+	private FileChannel channel;
+	private String[] variableNames;
+	private int rowCount;
+	private double[] storedMeans;
+	private double[] means;
+	private DoubleBuffer weights;
+	private DoubleBuffer[] columns;
+	private LongBuffer[] presenceColumns;
+
+	/**
+	 * @param input A file written by convert().
+	 * @param ignoreColumns The names of variables that should not be included in the data set.
+	 * @throws IOException
+	 */
+	public ColumnarStatsDataSet(File input, Set<String> ignoreColumns) throws IOException{
+		channel = FileChannel.open(input.toPath(), StandardOpenOption.READ);
+		try {
+			long fileSize = channel.size();
+			ByteBuffer header = readFully(channel, 0, 20);
+			if(header.getLong()!=MAGIC)
+				throw new IOException("Not a columnar data file.");
+			int version = header.getInt();
+			if((version<1)||(version>VERSION))
+				throw new IOException("Unsupported columnar data file version.");
+			int variableCount = header.getInt();
+			rowCount = header.getInt();
+			long position = 20;
+			int flags = 0;
+			if(version>=2) {
+				flags = readFully(channel, position, 4).getInt();
+				position += 4;
+			}
+			boolean missingValues = (flags&FLAG_MISSING_VALUES)!=0;
+			String[] allNames = new String[variableCount];
+			for(int i=0;i<variableCount;i++) {
+				int length = readFully(channel, position, 4).getInt();
+				position += 4;
+				ByteBuffer name = readFully(channel, position, length);
+				allNames[i] = new String(name.array(),StandardCharsets.UTF_8);
+				position += length;
+			}
+			position = align(position);
+			ByteBuffer meanBuffer = readFully(channel, position, 8*variableCount);
+			position += 8*variableCount;
+			long columnSize = 8L*rowCount;
+			long presenceStart = position+columnSize*(variableCount+1);
+			long presenceColumnSize = getPresenceColumnSize(rowCount);
+			if(presenceStart+(missingValues?presenceColumnSize*variableCount:0)>fileSize)
+				throw new IOException("Columnar data file truncated.");
+
+			int selectedCount = 0;
+			for(String name:allNames)
+				if(!ignoreColumns.contains(name))
+					selectedCount++;
+			variableNames = new String[selectedCount];
+			storedMeans = new double[selectedCount];
+			columns = new DoubleBuffer[selectedCount];
+			if(missingValues)
+				presenceColumns = new LongBuffer[selectedCount];
+			weights = mapColumn(position, columnSize);
+			int var = 0;
+			for(int i=0;i<variableCount;i++) {
+				double mean = meanBuffer.getDouble();
+				if(ignoreColumns.contains(allNames[i]))
+					continue;
+				variableNames[var] = allNames[i];
+				storedMeans[var] = mean;
+				columns[var] = mapColumn(position+columnSize*(i+1), columnSize);
+				if(missingValues)
+					presenceColumns[var] = channel.map(MapMode.READ_ONLY, presenceStart+presenceColumnSize*i, presenceColumnSize).order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+				var++;
+			}
+		}
+		catch(IOException t) {
+			channel.close();
+			throw t;
+		}
+		means = new double[variableNames.length];
+	}
+
+	/**
+	 * Writes the given data to a columnar data file. The data is iterated once.
+	 * If the data allows missing values, the presence of every value is written too.
+	 *
+	 * @param data The data to be written.
+	 * @param variableNames The names of the variables in the data, in datum order.
+	 * @param output The file to be written.
+	 * @throws IOException
+	 */
+	public static void convert(StatsDataSet data, String[] variableNames, File output) throws IOException{
+		int variableCount = data.getVariableCount();
+		if(variableNames.length!=variableCount)
+			throw new IllegalArgumentException("Variable name count does not match variable count.");
+		int rowCount = data.size();
+		boolean missingValues = data.allowsMissingValues();
+		byte[][] nameBytes = new byte[variableCount][];
+		long position = 24;
+		for(int i=0;i<variableCount;i++) {
+			nameBytes[i] = variableNames[i].getBytes(StandardCharsets.UTF_8);
+			position += 4+nameBytes[i].length;
+		}
+		long meansStart = align(position);
+		long dataStart = meansStart+8L*variableCount;
+		long columnSize = 8L*rowCount;
+		if(columnSize>Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Too many rows to be mapped as a single column.");
+		long presenceStart = dataStart+columnSize*(variableCount+1);
+		long presenceColumnSize = getPresenceColumnSize(rowCount);
+
+		try(FileChannel out = FileChannel.open(output.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)){
+			// Column 0 holds the weights. Columns are buffered a block at a time, so each is written sequentially.
+			ByteBuffer[] blocks = new ByteBuffer[variableCount+1];
+			for(int i=0;i<blocks.length;i++)
+				blocks[i] = ByteBuffer.allocate(8*WRITE_BLOCK_ROWS).order(ByteOrder.LITTLE_ENDIAN);
+			// Presence bits are gathered a long at a time for each variable, and buffered a block at a time like the columns.
+			ByteBuffer[] presenceBlocks = null;
+			long[] presenceWords = null;
+			if(missingValues) {
+				presenceBlocks = new ByteBuffer[variableCount];
+				for(int i=0;i<variableCount;i++)
+					presenceBlocks[i] = ByteBuffer.allocate(WRITE_BLOCK_ROWS/8).order(ByteOrder.LITTLE_ENDIAN);
+				presenceWords = new long[variableCount];
+			}
+			double[] sums = new double[variableCount];
+			double[] weightTotals = new double[variableCount];
+			int row = 0;
+			for(WeightedDatum datum:data) {
+				if(row>=rowCount)
+					throw new IOException("Data set contains more rows than reported by size().");
+				blocks[0].putDouble(datum.weight);
+				for(int i=0;i<variableCount;i++) {
+					if(datum.isPresent(i)) {
+						blocks[i+1].putDouble(datum.datum[i]);
+						sums[i] += datum.datum[i]*datum.weight;
+						weightTotals[i] += datum.weight;
+						if(missingValues)
+							presenceWords[i] |= 1L<<row;
+					}
+					else {
+						blocks[i+1].putDouble(Double.NaN);
+					}
+				}
+				row++;
+				if(missingValues&&((row&63)==0))
+					putPresenceWords(presenceBlocks, presenceWords);
+				if(!blocks[0].hasRemaining()) {
+					writeBlocks(out, blocks, dataStart, columnSize, row-WRITE_BLOCK_ROWS);
+					if(missingValues)
+						writeBlocks(out, presenceBlocks, presenceStart, presenceColumnSize, (row-WRITE_BLOCK_ROWS)/64);
+				}
+			}
+			if(row!=rowCount)
+				throw new IOException("Data set contains fewer rows than reported by size().");
+			int firstRow = row-blocks[0].position()/8;
+			writeBlocks(out, blocks, dataStart, columnSize, firstRow);
+			if(missingValues) {
+				if((row&63)!=0)
+					putPresenceWords(presenceBlocks, presenceWords);
+				writeBlocks(out, presenceBlocks, presenceStart, presenceColumnSize, firstRow/64);
+			}
+
+			ByteBuffer header = ByteBuffer.allocate((int)dataStart).order(ByteOrder.LITTLE_ENDIAN);
+			header.putLong(MAGIC);
+			header.putInt(VERSION);
+			header.putInt(variableCount);
+			header.putInt(rowCount);
+			header.putInt(missingValues?FLAG_MISSING_VALUES:0);
+			for(byte[] name:nameBytes) {
+				header.putInt(name.length);
+				header.put(name);
+			}
+			header.position((int)meansStart);
+			for(int i=0;i<variableCount;i++)
+				header.putDouble((weightTotals[i]==0)?0:sums[i]/weightTotals[i]);
+			header.flip();
+			writeFully(out, header, 0);
+		}
+	}
+
+	/**
+	 * Writes each block to the start of its column plus the given number of 8 byte elements.
+	 */
+	private static void writeBlocks(FileChannel out, ByteBuffer[] blocks, long dataStart, long columnSize, int firstElement) throws IOException{
+		for(int i=0;i<blocks.length;i++) {
+			blocks[i].flip();
+			writeFully(out, blocks[i], dataStart+columnSize*i+8L*firstElement);
+			blocks[i].clear();
+		}
+	}
+
+	private static void putPresenceWords(ByteBuffer[] presenceBlocks, long[] presenceWords) {
+		for(int i=0;i<presenceBlocks.length;i++) {
+			presenceBlocks[i].putLong(presenceWords[i]);
+			presenceWords[i] = 0;
+		}
+	}
+
+	private static long getPresenceColumnSize(int rowCount) {
+		return 8L*((rowCount+63)/64);
+	}
+
+	private static void writeFully(FileChannel out, ByteBuffer buffer, long position) throws IOException{
+		while(buffer.hasRemaining())
+			position += out.write(buffer, position);
+	}
+
+	private static ByteBuffer readFully(FileChannel in, long position, int length) throws IOException{
+		ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+		while(buffer.hasRemaining()) {
+			int read = in.read(buffer, position+buffer.position());
+			if(read<0)
+				throw new IOException("Columnar data file truncated.");
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	private static long align(long position) {
+		return (position+7)&~7L;
+	}
+
+	private DoubleBuffer mapColumn(long position, long size) throws IOException{
+		MappedByteBuffer mapped = channel.map(MapMode.READ_ONLY, position, size);
+		return mapped.order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+	}
+
+	/**
+	 *
+	 * @return The names of the variables in the data set, in datum order.
+	 */
+	public String[] getVariableNames() {
+		return variableNames;
+	}
+
+	/**
+	 *
+	 * @return The weighted means of the variables, as stored when the file was written.
+	 */
+	public double[] getStoredMeans() {
+		return storedMeans;
+	}
+
+	/**
+	 *
+	 * @param var
+	 * @return A read-only view of all values of the given variable, one per row. These values are not adjusted by setMean().
+	 */
+	public DoubleBuffer getColumn(int var) {
+		return columns[var].asReadOnlyBuffer();
+	}
+
+	/**
+	 *
+	 * @return A read-only view of the weight of each row.
+	 */
+	public DoubleBuffer getWeights() {
+		return weights.asReadOnlyBuffer();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.shtick.math.statistics.IndexedStatsDataSet#getRow(int, com.shtick.math.statistics.WeightedDatum)
+	 */
+	@Override
+	public void getRow(int row, WeightedDatum datum) {
+		if((row<0)||(row>=rowCount))
+			throw new IndexOutOfBoundsException();
+		datum.weight = weights.get(row);
+		for(int i=0;i<columns.length;i++)
+			datum.datum[i] = columns[i].get(row)-means[i];
+		if((presenceColumns!=null)&&(datum.presence!=null)) {
+			WeightedDatum.setAllPresent(datum.presence, columns.length);
+			for(int i=0;i<columns.length;i++)
+				if((presenceColumns[i].get(row>>>6)&(1L<<row))==0)
+					datum.presence[i>>>6] &= ~(1L<<i);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see com.shtick.math.statistics.StatsDataSet#allowsMissingValues()
+	 */
+	@Override
+	public boolean allowsMissingValues() {
+		return presenceColumns!=null;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.shtick.math.statistics.StatsDataSet#setMean(int, float)
+	 */
+	@Override
+	public void setMean(int var, float mean) {
+		means[var] = mean;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.shtick.math.statistics.StatsDataSet#size()
+	 */
+	@Override
+	public int size() {
+		return rowCount;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.shtick.math.statistics.StatsDataSet#getVariableCount()
+	 */
+	@Override
+	public int getVariableCount() {
+		return variableNames.length;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.io.Closeable#close()
+	 */
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+}
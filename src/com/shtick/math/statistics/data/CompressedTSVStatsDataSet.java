@@ -0,0 +1,508 @@
+/**
+ * 
+ */
+package com.shtick.math.statistics.data;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.GZIPInputStream;
+
+import com.shtick.math.statistics.StatsDataSet;
+import com.shtick.math.statistics.WeightedDatum;
+
+/**
+ * A StatsDataSet that reads a compressed tab separated file of numbers without first decompressing it to disk.
+ *
+ * Each iterator starts a thread which decompresses the file into a small ring of buffers,
+ * while the iterating thread parses rows directly from the filled buffers with a TSVRowParser,
+ * so decompression and parsing overlap. Only rows which straddle two buffers are copied.
+ *
+ * Gzip files (including concatenated gzip members) are recognized by their magic number and decompressed with GZIPInputStream.
+ * Files which are not compressed are read as they are.
+ * Other formats, such as Zstandard, can be supported by overriding openStream().
+ *
+ * Rows can be filtered by predicates on the raw bytes of any column, so that rejected rows are never converted to numbers.
+ *
+ * Each iterator owns a single WeightedDatum which is refilled for every row, so iteration produces no garbage per row.
+ *
+ * @author scox
+ *
+ */
+public class CompressedTSVStatsDataSet extends StatsDataSet implements Closeable {
+	private static final int BUFFER_SIZE = 1<<20;
+	private static final int RING_SIZE = 4;
+	private static final int STREAM_BUFFER_SIZE = 1<<16;
+	private static final int GZIP_MAGIC = 0x1F8B;
+	private static final int ZSTD_MAGIC = 0x28B52FFD;
+
+	private File input;
+	private TSVRowParser parser;
+	private double[] means;
+	private int rowCount;
+	private boolean allowMissing;
+	private CompressedTSVIterator currentIterator;
+
+	/**
+	 * @param input The compressed tab separated file to read. The first row must be a header naming each column.
+	 * @param ignoreColumns The names of columns that should not be included in the data set.
+	 * @throws IOException
+	 */
+	public CompressedTSVStatsDataSet(File input, Set<String> ignoreColumns) throws IOException{
+		this(input, ignoreColumns, false);
+	}
+
+	/**
+	 * @param input The compressed tab separated file to read. The first row must be a header naming each column.
+	 * @param ignoreColumns The names of columns that should not be included in the data set.
+	 * @param allowMissing If true, empty fields and fields missing from the end of short rows are treated as missing values.
+	 * @throws IOException
+	 */
+	public CompressedTSVStatsDataSet(File input, Set<String> ignoreColumns, boolean allowMissing) throws IOException{
+		this(input, ignoreColumns, allowMissing, Collections.emptyMap());
+	}
+
+	/**
+	 * @param input The compressed tab separated file to read. The first row must be a header naming each column.
+	 * @param ignoreColumns The names of columns that should not be included in the data set.
+	 * @param allowMissing If true, empty fields and fields missing from the end of short rows are treated as missing values.
+	 * @param filters The predicates that a row must satisfy to be included in the data set, by column name. Ignored columns may be filtered.
+	 *        Rows are tested on their raw bytes, so rejected rows are never converted to numbers.
+	 * @throws IOException
+	 */
+	public CompressedTSVStatsDataSet(File input, Set<String> ignoreColumns, boolean allowMissing, Map<String,FieldPredicate> filters) throws IOException{
+		this.input = input;
+		this.allowMissing = allowMissing;
+		try(InputStream in = openStream(input)){
+			byte[] header = readLine(in);
+			parser = new TSVRowParser(TSVRowParser.readHeader(ByteBuffer.wrap(header)), ignoreColumns, filters);
+		}
+		means = new double[parser.getVariableCount()];
+		rowCount = -1;
+	}
+
+	/**
+	 * Opens a stream of the decompressed contents of the given file.
+	 * This is called once by the constructor, and once for each iterator and row count.
+	 *
+	 * @param file
+	 * @return A stream of the decompressed bytes of the file.
+	 * @throws IOException If the file can't be opened, or is compressed in an unsupported format.
+	 */
+	protected InputStream openStream(File file) throws IOException{
+		InputStream in = new BufferedInputStream(new FileInputStream(file), STREAM_BUFFER_SIZE);
+		try {
+			in.mark(4);
+			int magic = 0;
+			int count = 0;
+			int b;
+			while((count<4)&&((b = in.read())>=0)) {
+				magic = (magic<<8)|b;
+				count++;
+			}
+			in.reset();
+			if((count>=2)&&((magic>>>((count-2)*8))==GZIP_MAGIC))
+				return new GZIPInputStream(in, STREAM_BUFFER_SIZE);
+			if((count==4)&&(magic==ZSTD_MAGIC))
+				throw new IOException("Zstandard compressed files are not supported: "+file);
+			return in;
+		}
+		catch(IOException t) {
+			in.close();
+			throw t;
+		}
+	}
+
+	/**
+	 *
+	 * @return The names of the variables in the data set, in datum order.
+	 */
+	public String[] getVariableNames() {
+		return parser.getVariableNames();
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Iterable#iterator()
+	 */
+	@Override
+	public Iterator<WeightedDatum> iterator() {
+		close();
+		try {
+			currentIterator = new CompressedTSVIterator();
+		}
+		catch(IOException t) {
+			throw new RuntimeException(t);
+		}
+		return currentIterator;
+	}
+
+	/**
+	 * Stops the decompression thread of the most recently created iterator, if it is still running.
+	 *
+	 * @see java.io.Closeable#close()
+	 */
+	@Override
+	public void close() {
+		if(currentIterator!=null) {
+			currentIterator.close();
+			currentIterator = null;
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see com.shtick.math.statistics.StatsDataSet#allowsMissingValues()
+	 */
+	@Override
+	public boolean allowsMissingValues() {
+		return allowMissing;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.shtick.math.statistics.StatsDataSet#reusesDatum()
+	 */
+	@Override
+	public boolean reusesDatum() {
+		return true;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.shtick.math.statistics.StatsDataSet#setMean(int, float)
+	 */
+	@Override
+	public void setMean(int var, float mean) {
+		means[var] = mean;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.shtick.math.statistics.StatsDataSet#isSizeKnown()
+	 */
+	@Override
+	public boolean isSizeKnown() {
+		return rowCount>=0;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.shtick.math.statistics.StatsDataSet#size()
+	 */
+	@Override
+	public int size() {
+		if(rowCount<0) {
+			if(parser.hasFilters()) {
+				// Only the filters can tell which rows are included.
+				CompressedTSVIterator iterator = null;
+				try {
+					iterator = new CompressedTSVIterator();
+					int count = 0;
+					while(iterator.hasNext()) {
+						iterator.next();
+						count++;
+					}
+					rowCount = count;
+				}
+				catch(IOException t) {
+					throw new RuntimeException(t);
+				}
+				finally {
+					if(iterator!=null)
+						iterator.close();
+				}
+				return rowCount;
+			}
+			try(InputStream in = openStream(input)){
+				readLine(in); // Skip headers.
+				byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+				int count = 0;
+				boolean inRow = false;
+				int read;
+				while((read = in.read(buffer))>=0) {
+					for(int i=0;i<read;i++) {
+						byte b = buffer[i];
+						if((b=='\n')||(b=='\r')) {
+							if(inRow)
+								count++;
+							inRow = false;
+						}
+						else {
+							inRow = true;
+						}
+					}
+				}
+				if(inRow)
+					count++;
+				rowCount = count;
+			}
+			catch(IOException t) {
+				throw new RuntimeException(t);
+			}
+		}
+		return rowCount;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.shtick.math.statistics.StatsDataSet#getVariableCount()
+	 */
+	@Override
+	public int getVariableCount() {
+		return parser.getVariableCount();
+	}
+
+	private static byte[] readLine(InputStream in) throws IOException{
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		int b;
+		while(((b = in.read())>=0)&&(b!='\n'))
+			line.write(b);
+		return line.toByteArray();
+	}
+
+	/**
+	 * A buffer of decompressed bytes passed from the decompression thread to the parsing thread.
+	 * A buffer with a negative length marks the end of the input, and one with an error marks a failure.
+	 */
+	private static class Chunk {
+		private byte[] data;
+		private ByteBuffer buffer;
+		private int length;
+		private IOException error;
+
+		public Chunk(int size) {
+			data = new byte[size];
+			buffer = ByteBuffer.wrap(data);
+		}
+
+		public Chunk(int length, IOException error) {
+			this.length = length;
+			this.error = error;
+		}
+	}
+
+	private class CompressedTSVIterator implements Iterator<WeightedDatum>, Closeable{
+		private ArrayBlockingQueue<Chunk> free = new ArrayBlockingQueue<>(RING_SIZE);
+		// One extra slot, so that the end marker can always be added.
+		private ArrayBlockingQueue<Chunk> filled = new ArrayBlockingQueue<>(RING_SIZE+1);
+		private Thread decompressor;
+		private Chunk chunk;
+		private int position;
+		private byte[] carry = new byte[STREAM_BUFFER_SIZE];
+		private ByteBuffer carryBuffer = ByteBuffer.wrap(carry);
+		private int carryLength;
+		private boolean ended;
+		private boolean ready;
+		private boolean done;
+		private WeightedDatum datum;
+
+		public CompressedTSVIterator() throws IOException{
+			datum = new WeightedDatum();
+			datum.weight = 1;
+			datum.datum = new double[parser.getVariableCount()];
+			if(allowMissing)
+				datum.presence = new long[WeightedDatum.getPresenceLength(datum.datum.length)];
+			for(int i=0;i<RING_SIZE;i++)
+				free.add(new Chunk(BUFFER_SIZE));
+			InputStream in = openStream(input);
+			decompressor = new Thread(()->decompress(in), "Decompressor: "+input.getName());
+			decompressor.setDaemon(true);
+			decompressor.start();
+		}
+
+		private void decompress(InputStream in) {
+			try(InputStream stream = in){
+				readLine(stream); // Skip headers.
+				while(true) {
+					Chunk next = free.take();
+					int length = 0;
+					int read = 0;
+					while((length<next.data.length)&&((read = stream.read(next.data, length, next.data.length-length))>=0))
+						length += read;
+					if(length>0) {
+						next.length = length;
+						filled.put(next);
+					}
+					if(read<0) {
+						filled.put(new Chunk(-1, null));
+						return;
+					}
+				}
+			}
+			catch(InterruptedException t) {
+				// Iteration was abandoned.
+			}
+			catch(IOException t) {
+				filled.offer(new Chunk(-1, t));
+			}
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.Iterator#hasNext()
+		 */
+		@Override
+		public boolean hasNext() {
+			if(!(ready||done)) {
+				try {
+					advance();
+				}
+				catch(IOException t) {
+					close();
+					throw new RuntimeException(t);
+				}
+				catch(RuntimeException t) {
+					// Such as a NumberFormatException for a malformed value, which must release the decompressor too.
+					close();
+					throw t;
+				}
+			}
+			return ready;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.Iterator#next()
+		 */
+		@Override
+		public WeightedDatum next() {
+			if(!hasNext())
+				throw new NoSuchElementException();
+			ready = false;
+			return datum;
+		}
+
+		/**
+		 * Stops the decompressor, so its thread and buffers are released if the iterator isn't read to the end.
+		 *
+		 * @see java.io.Closeable#close()
+		 */
+		@Override
+		public void close() {
+			done = true;
+			ready = false;
+			decompressor.interrupt();
+		}
+
+		/**
+		 * Takes the next filled chunk, returning the current one to the ring.
+		 *
+		 * @return false if the end of the input has been reached.
+		 * @throws IOException
+		 */
+		private boolean nextChunk() throws IOException{
+			if(chunk!=null)
+				free.add(chunk);
+			chunk = null;
+			if(ended)
+				return false;
+			Chunk next;
+			try {
+				next = filled.take();
+			}
+			catch(InterruptedException t) {
+				throw new IOException(t);
+			}
+			if(next.error!=null)
+				throw next.error;
+			if(next.length<0) {
+				ended = true;
+				return false;
+			}
+			chunk = next;
+			position = 0;
+			return true;
+		}
+
+		private void appendCarry(int start, int end) {
+			int length = end-start;
+			if(carryLength+length>carry.length) {
+				byte[] grown = new byte[Math.max(carry.length*2, carryLength+length)];
+				System.arraycopy(carry, 0, grown, 0, carryLength);
+				carry = grown;
+				carryBuffer = ByteBuffer.wrap(carry);
+			}
+			System.arraycopy(chunk.data, start, carry, carryLength, length);
+			carryLength += length;
+		}
+
+		/**
+		 * Parses the row held in the carry buffer, which is the last row of the input or ends with a newline.
+		 *
+		 * @return false if the row was rejected by the filters.
+		 * @throws IOException
+		 */
+		private boolean parseCarry(double[] row) throws IOException{
+			int length = carryLength;
+			carryLength = 0;
+			if(parser.testRow(carryBuffer, 0, length, true)==0)
+				return false;
+			parser.parseRow(carryBuffer, 0, length, row, datum.presence, true);
+			return true;
+		}
+
+		private void advance() throws IOException{
+			double[] row = datum.datum;
+			while(true) {
+				if(chunk==null) {
+					if(!nextChunk()) {
+						done = true;
+						return;
+					}
+				}
+				int limit = chunk.length;
+				if(carryLength>0) {
+					// Complete the row which straddles the previous chunk and this one.
+					int i = position;
+					while((i<limit)&&(chunk.data[i]!='\n'))
+						i++;
+					if(i>=limit) {
+						appendCarry(position, limit);
+						if(nextChunk())
+							continue;
+					}
+					else {
+						appendCarry(position, i+1);
+						position = i+1;
+					}
+					if(parseCarry(row))
+						break;
+					continue;
+				}
+				position = TSVRowParser.skipBlankLines(chunk.buffer, position, limit);
+				if(position>=limit) {
+					if(!nextChunk()) {
+						done = true;
+						return;
+					}
+					continue;
+				}
+				int accepted = parser.testRow(chunk.buffer, position, limit, false);
+				int next;
+				if(accepted>0)
+					next = parser.parseRow(chunk.buffer, position, limit, row, datum.presence, false);
+				else if(accepted==0)
+					next = TSVRowParser.skipRow(chunk.buffer, position, limit, false);
+				else
+					next = -1;
+				if(next<0) {
+					appendCarry(position, limit);
+					if(nextChunk())
+						continue;
+					if(parseCarry(row))
+						break;
+					continue;
+				}
+				position = next;
+				if(accepted>0)
+					break;
+			}
+			for(int i=0;i<row.length;i++)
+				row[i] -= means[i];
+			ready = true;
+		}
+	}
+}
@@ -0,0 +1,254 @@
+/**
+ * 
+ */
+package com.shtick.math.statistics.data;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+
+import com.shtick.math.statistics.IndexedStatsDataSet;
+import com.shtick.math.statistics.StatsDataSet;
+import com.shtick.math.statistics.WeightedDatum;
+
+/**
+ * An in-memory StatsDataSet which keeps its values off the Java heap, in direct buffers.
+ *
+ * Rows are stored as doubles, with the weight of each row followed by the value of each variable.
+ * If the data set allows missing values, the presence bitmask of each row is stored between the weight and the values.
+ * Storage is divided into blocks of rows, each a single direct buffer, so the data set is not limited to 2GB.
+ * The first block is small, and each block is twice the size of the one before up to the block size given,
+ * so small data sets don't hold a full block of direct memory, which is only released when the garbage collector runs.
+ * No Java objects are created per row, either when storing or when iterating, so the garbage collector has nothing to trace for the data.
+ *
+ * @author scox
+ *
+ */
+public class DirectStatsDataSet extends IndexedStatsDataSet {
+	private static final int DEFAULT_BLOCK_BYTES = 1<<26;
+	private static final int INITIAL_BLOCK_BYTES = 1<<16;
+
+	private int variableCount;
+	private boolean allowMissing;
+	private int presenceLength;
+	private int rowStride;
+	/**
+	 * The number of rows in the first block.
+	 */
+	private int initialBlockRows;
+	/**
+	 * The number of blocks that double in size before blocks reach rowsPerBlock.
+	 */
+	private int growingBlocks;
+	private int rowsPerBlock;
+	private ArrayList<DoubleBuffer> blocks;
+	/**
+	 * A view of each block in blocks, for the presence bitmasks, which can't be stored as doubles without risking their bits.
+	 */
+	private ArrayList<LongBuffer> presenceBlocks;
+	private int rowCount;
+	private double[] means;
+
+	/**
+	 * @param variableCount
+	 */
+	public DirectStatsDataSet(int variableCount) {
+		this(variableCount, DEFAULT_BLOCK_BYTES);
+	}
+
+	/**
+	 * @param variableCount
+	 * @param blockBytes The approximate size of the largest block of direct memory allocated. At least one row is stored per block.
+	 */
+	public DirectStatsDataSet(int variableCount, int blockBytes) {
+		this(variableCount, blockBytes, false);
+	}
+
+	/**
+	 * @param variableCount
+	 * @param blockBytes The approximate size of the largest block of direct memory allocated. At least one row is stored per block.
+	 * @param allowMissing true if rows may have missing values, in which case a presence bitmask is stored with each row.
+	 */
+	public DirectStatsDataSet(int variableCount, int blockBytes, boolean allowMissing) {
+		if(variableCount<=0)
+			throw new IllegalArgumentException("At least one variable required.");
+		this.variableCount = variableCount;
+		this.allowMissing = allowMissing;
+		presenceLength = allowMissing?WeightedDatum.getPresenceLength(variableCount):0;
+		rowStride = 1+presenceLength+variableCount;
+		int maxRows = Math.max(1, blockBytes/(8*rowStride));
+		initialBlockRows = Math.min(maxRows, Math.max(1, INITIAL_BLOCK_BYTES/(8*rowStride)));
+		growingBlocks = 31-Integer.numberOfLeadingZeros(maxRows/initialBlockRows);
+		rowsPerBlock = initialBlockRows<<growingBlocks;
+		blocks = new ArrayList<>();
+		if(allowMissing)
+			presenceBlocks = new ArrayList<>();
+		means = new double[variableCount];
+	}
+
+	/**
+	 * Creates an off-heap copy of the given data. The data is iterated once.
+	 * Missing values are copied if source allows them.
+	 *
+	 * @param source
+	 * @return A data set holding the same data as source.
+	 */
+	public static DirectStatsDataSet copyOf(StatsDataSet source) {
+		DirectStatsDataSet retval = new DirectStatsDataSet(source.getVariableCount(), DEFAULT_BLOCK_BYTES, source.allowsMissingValues());
+		for(WeightedDatum datum:source)
+			retval.add(datum.datum, datum.presence, datum.weight);
+		return retval;
+	}
+
+	/**
+	 * Appends a row to the data set.
+	 *
+	 * @param row The values of each variable.
+	 * @param weight
+	 */
+	public void add(double[] row, double weight) {
+		add(row, null, weight);
+	}
+
+	/**
+	 * Appends a row which may have missing values to the data set.
+	 *
+	 * @param row The values of each variable.
+	 * @param presence The presence bitmask of the row, as in WeightedDatum. If null, every variable is present.
+	 * @param weight
+	 * @throws IllegalArgumentException if the row has missing values and the data set doesn't allow them.
+	 */
+	public void add(double[] row, long[] presence, double weight) {
+		if(row.length!=variableCount)
+			throw new IllegalArgumentException("Row size does not match variable count.");
+		if((presence!=null)&&!allowMissing) {
+			for(int i=0;i<variableCount;i++) {
+				if((presence[i>>>6]&(1L<<i))==0)
+					throw new IllegalArgumentException("Missing values not allowed.");
+			}
+		}
+		int blockIndex = getBlockIndex(rowCount);
+		if(blockIndex==blocks.size()) {
+			int rows = (blockIndex<growingBlocks)?initialBlockRows<<blockIndex:rowsPerBlock;
+			ByteBuffer buffer = ByteBuffer.allocateDirect(8*rowStride*rows).order(ByteOrder.nativeOrder());
+			blocks.add(buffer.asDoubleBuffer());
+			if(allowMissing)
+				presenceBlocks.add(buffer.asLongBuffer());
+		}
+		DoubleBuffer block = blocks.get(blockIndex);
+		int offset = (rowCount-getBlockStart(blockIndex))*rowStride;
+		block.put(offset, weight);
+		if(allowMissing) {
+			LongBuffer presenceBlock = presenceBlocks.get(blockIndex);
+			for(int i=0;i<presenceLength;i++)
+				presenceBlock.put(offset+1+i, (presence==null)?-1L:presence[i]);
+			// Bits beyond the last variable are kept clear, as WeightedDatum.setAllPresent() leaves them.
+			if((presence==null)&&((variableCount&63)!=0))
+				presenceBlock.put(offset+presenceLength, (1L<<(variableCount&63))-1);
+		}
+		int valueOffset = offset+1+presenceLength;
+		for(int i=0;i<variableCount;i++)
+			block.put(valueOffset+i, row[i]);
+		rowCount++;
+	}
+
+	/**
+	 *
+	 * @param row
+	 * @return The weight of the given row.
+	 */
+	public double getWeight(int row) {
+		if((row<0)||(row>=rowCount))
+			throw new IndexOutOfBoundsException();
+		int blockIndex = getBlockIndex(row);
+		return blocks.get(blockIndex).get((row-getBlockStart(blockIndex))*rowStride);
+	}
+
+	/**
+	 *
+	 * @param row
+	 * @param var
+	 * @return The value of the given variable in the given row, unadjusted by setMean(). Missing values are NaN.
+	 */
+	public double getValue(int row, int var) {
+		if((row<0)||(row>=rowCount))
+			throw new IndexOutOfBoundsException();
+		int blockIndex = getBlockIndex(row);
+		return blocks.get(blockIndex).get((row-getBlockStart(blockIndex))*rowStride+1+presenceLength+var);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.shtick.math.statistics.IndexedStatsDataSet#getRow(int, com.shtick.math.statistics.WeightedDatum)
+	 */
+	@Override
+	public void getRow(int row, WeightedDatum datum) {
+		if((row<0)||(row>=rowCount))
+			throw new IndexOutOfBoundsException();
+		int blockIndex = getBlockIndex(row);
+		DoubleBuffer block = blocks.get(blockIndex);
+		int offset = (row-getBlockStart(blockIndex))*rowStride;
+		datum.weight = block.get(offset);
+		if(allowMissing&&(datum.presence!=null)) {
+			LongBuffer presenceBlock = presenceBlocks.get(blockIndex);
+			for(int i=0;i<presenceLength;i++)
+				datum.presence[i] = presenceBlock.get(offset+1+i);
+		}
+		int valueOffset = offset+1+presenceLength;
+		for(int i=0;i<variableCount;i++)
+			datum.datum[i] = block.get(valueOffset+i)-means[i];
+	}
+
+	/* (non-Javadoc)
+	 * @see com.shtick.math.statistics.StatsDataSet#allowsMissingValues()
+	 */
+	@Override
+	public boolean allowsMissingValues() {
+		return allowMissing;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.shtick.math.statistics.StatsDataSet#setMean(int, float)
+	 */
+	@Override
+	public void setMean(int var, float mean) {
+		means[var] = mean;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.shtick.math.statistics.StatsDataSet#size()
+	 */
+	@Override
+	public int size() {
+		return rowCount;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.shtick.math.statistics.StatsDataSet#getVariableCount()
+	 */
+	@Override
+	public int getVariableCount() {
+		return variableCount;
+	}
+
+	/**
+	 * @return The index of the block holding the given row.
+	 */
+	private int getBlockIndex(int row) {
+		int grownRows = initialBlockRows*((1<<growingBlocks)-1);
+		if(row<grownRows)
+			return 31-Integer.numberOfLeadingZeros(row/initialBlockRows+1);
+		return growingBlocks+(row-grownRows)/rowsPerBlock;
+	}
+
+	/**
+	 * @return The index of the first row of the given block.
+	 */
+	private int getBlockStart(int blockIndex) {
+		if(blockIndex<=growingBlocks)
+			return initialBlockRows*((1<<blockIndex)-1);
+		return initialBlockRows*((1<<growingBlocks)-1)+(blockIndex-growingBlocks)*rowsPerBlock;
+	}
+
+}
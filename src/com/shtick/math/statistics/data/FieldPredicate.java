@@ -0,0 +1,60 @@
+/**
+ * 
+ */
+package com.shtick.math.statistics.data;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A test of the raw bytes of a single field of a row, used to filter rows before any of their values are converted to numbers.
+ *
+ * @author scox
+ *
+ */
+@FunctionalInterface
+public interface FieldPredicate {
+	/**
+	 * @param buffer The buffer holding the field.
+	 * @param start The position of the first byte of the field.
+	 * @param end The position after the last byte of the field, excluding any delimiter or carriage return.
+	 * @return true if the row holding the field should be accepted, and false otherwise.
+	 */
+	public boolean test(ByteBuffer buffer, int start, int end);
+
+	/**
+	 * @param value
+	 * @return A FieldPredicate accepting fields that are exactly the given value, compared as UTF-8 bytes.
+	 */
+	public static FieldPredicate equalTo(String value) {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		return (buffer,start,end)->{
+			if(end-start!=bytes.length)
+				return false;
+			for(int i=0;i<bytes.length;i++)
+				if(buffer.get(start+i)!=bytes[i])
+					return false;
+			return true;
+		};
+	}
+
+	/**
+	 * @param min The smallest value accepted.
+	 * @param max The largest value accepted.
+	 * @return A FieldPredicate accepting fields that are numbers between min and max, inclusive. Empty fields and fields that aren't numbers are rejected.
+	 */
+	public static FieldPredicate inRange(double min, double max) {
+		return (buffer,start,end)->{
+			if(end==start)
+				return false;
+			double value;
+			try {
+				value = TSVRowParser.parseNumber(buffer, start, end);
+			}
+			catch(NumberFormatException t) {
+				return false;
+			}
+			return (value>=min)&&(value<=max);
+		};
+	}
+}
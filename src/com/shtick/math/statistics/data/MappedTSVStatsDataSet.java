@@ -0,0 +1,511 @@
+/**
+ * 
+ */
+package com.shtick.math.statistics.data;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+import com.shtick.math.statistics.CovarianceAccumulator;
+import com.shtick.math.statistics.PairwiseCovarianceAccumulator;
+import com.shtick.math.statistics.StatsDataSet;
+import com.shtick.math.statistics.WeightedDatum;
+
+/**
+ * A StatsDataSet that reads a tab separated file of numbers by memory-mapping it and parsing the values directly from the mapped bytes.
+ *
+ * Each iterator owns a single WeightedDatum which is refilled for every row, so iteration produces no garbage per row.
+ * Callers that need to keep a datum must copy it before calling next() again.
+ *
+ * Files larger than can be mapped at once are mapped in consecutive regions, each starting at the beginning of a row.
+ *
+ * Rows can be filtered by predicates on the raw bytes of any column, so that rejected rows are never converted to numbers.
+ *
+ * The file can also be ingested in parallel with accumulate(), which splits it into chunks at row boundaries
+ * and parses each chunk on a ForkJoinPool into its own CovarianceAccumulator.
+ *
+ * @author scox
+ *
+ */
+public class MappedTSVStatsDataSet extends StatsDataSet implements Closeable {
+	private static final long MAX_REGION_SIZE = 1<<30;
+	private static final long DEFAULT_CHUNK_SIZE = 1<<26;
+
+	private FileChannel channel;
+	private long fileSize;
+	private long dataStart;
+	private TSVRowParser parser;
+	private double[] means;
+	private int rowCount;
+	private boolean allowMissing;
+
+	/**
+	 * @param input The tab separated file to read. The first row must be a header naming each column.
+	 * @param ignoreColumns The names of columns that should not be included in the data set.
+	 * @throws IOException
+	 */
+	public MappedTSVStatsDataSet(File input, Set<String> ignoreColumns) throws IOException{
+		this(input, ignoreColumns, false);
+	}
+
+	/**
+	 * @param input The tab separated file to read. The first row must be a header naming each column.
+	 * @param ignoreColumns The names of columns that should not be included in the data set.
+	 * @param allowMissing If true, empty fields and fields missing from the end of short rows are treated as missing values by iterator().
+	 * @throws IOException
+	 */
+	public MappedTSVStatsDataSet(File input, Set<String> ignoreColumns, boolean allowMissing) throws IOException{
+		this(input, ignoreColumns, allowMissing, Collections.emptyMap());
+	}
+
+	/**
+	 * @param input The tab separated file to read. The first row must be a header naming each column.
+	 * @param ignoreColumns The names of columns that should not be included in the data set.
+	 * @param allowMissing If true, empty fields and fields missing from the end of short rows are treated as missing values by iterator().
+	 * @param filters The predicates that a row must satisfy to be included in the data set, by column name. Ignored columns may be filtered.
+	 *        Rows are tested on their raw bytes, so rejected rows are never converted to numbers.
+	 * @throws IOException
+	 */
+	public MappedTSVStatsDataSet(File input, Set<String> ignoreColumns, boolean allowMissing, Map<String,FieldPredicate> filters) throws IOException{
+		this.allowMissing = allowMissing;
+		channel = FileChannel.open(input.toPath(), StandardOpenOption.READ);
+		try {
+			fileSize = channel.size();
+			MappedByteBuffer region = channel.map(MapMode.READ_ONLY, 0, Math.min(fileSize, MAX_REGION_SIZE));
+			String[] columns = TSVRowParser.readHeader(region);
+			dataStart = region.position();
+			parser = new TSVRowParser(columns, ignoreColumns, filters);
+		}
+		catch(IOException t) {
+			channel.close();
+			throw t;
+		}
+		means = new double[parser.getVariableCount()];
+		rowCount = -1;
+	}
+
+	/**
+	 *
+	 * @return The names of the variables in the data set, in datum order.
+	 */
+	public String[] getVariableNames() {
+		return parser.getVariableNames();
+	}
+
+	/**
+	 * Parses the whole file in parallel, producing the same statistics as accumulating every datum from iterator().
+	 * Missing values are not supported, so accumulatePairwise() should be used if the data set allows missing values.
+	 *
+	 * @param pool The pool on which to parse the chunks of the file.
+	 * @return A CovarianceAccumulator holding the accumulation of every row in the file.
+	 * @throws IOException
+	 * @throws IllegalStateException if the data set allows missing values.
+	 */
+	public CovarianceAccumulator accumulate(ForkJoinPool pool) throws IOException{
+		return accumulate(pool, DEFAULT_CHUNK_SIZE);
+	}
+
+	/**
+	 * Parses the whole file in parallel, producing the same statistics as accumulating every datum from iterator().
+	 * Missing values are not supported, so accumulatePairwise() should be used if the data set allows missing values.
+	 *
+	 * @param pool The pool on which to parse the chunks of the file.
+	 * @param chunkSize The approximate number of bytes parsed by each task. Chunks are extended to the end of the row they finish in.
+	 * @return A CovarianceAccumulator holding the accumulation of every row in the file.
+	 * @throws IOException
+	 * @throws IllegalStateException if the data set allows missing values.
+	 */
+	public CovarianceAccumulator accumulate(ForkJoinPool pool, long chunkSize) throws IOException{
+		if(allowMissing)
+			throw new IllegalStateException("Missing values allowed, so accumulatePairwise() must be used.");
+		int variableCount = parser.getVariableCount();
+		return accumulate(pool, chunkSize, ()->new CovarianceAccumulator(variableCount), (accumulator,row)->accumulator.add(row, 1), CovarianceAccumulator::merge);
+	}
+
+	/**
+	 * Parses the whole file in parallel, producing the same statistics as accumulating every datum from iterator(),
+	 * with missing values left out pair by pair.
+	 *
+	 * @param pool The pool on which to parse the chunks of the file.
+	 * @return A PairwiseCovarianceAccumulator holding the accumulation of every row in the file.
+	 * @throws IOException
+	 */
+	public PairwiseCovarianceAccumulator accumulatePairwise(ForkJoinPool pool) throws IOException{
+		return accumulatePairwise(pool, DEFAULT_CHUNK_SIZE);
+	}
+
+	/**
+	 * Parses the whole file in parallel, producing the same statistics as accumulating every datum from iterator(),
+	 * with missing values left out pair by pair.
+	 *
+	 * @param pool The pool on which to parse the chunks of the file.
+	 * @param chunkSize The approximate number of bytes parsed by each task. Chunks are extended to the end of the row they finish in.
+	 * @return A PairwiseCovarianceAccumulator holding the accumulation of every row in the file.
+	 * @throws IOException
+	 */
+	public PairwiseCovarianceAccumulator accumulatePairwise(ForkJoinPool pool, long chunkSize) throws IOException{
+		int variableCount = parser.getVariableCount();
+		// Missing values are parsed as NaN, which the pairwise accumulator leaves out.
+		return accumulate(pool, chunkSize, ()->new PairwiseCovarianceAccumulator(variableCount), (accumulator,row)->accumulator.add(row, 1), PairwiseCovarianceAccumulator::merge);
+	}
+
+	private <T> T accumulate(ForkJoinPool pool, long chunkSize, Supplier<T> supplier, RowAccumulation<T> accumulation, BiConsumer<T,T> merge) throws IOException{
+		if((chunkSize<=0)||(chunkSize>MAX_REGION_SIZE))
+			throw new IllegalArgumentException("Chunk size must be positive and no more than "+MAX_REGION_SIZE+".");
+		ArrayList<Long> boundaries = new ArrayList<>();
+		long boundary = dataStart;
+		boundaries.add(boundary);
+		while(boundary<fileSize) {
+			boundary = findRowStart(boundary+chunkSize);
+			if(boundary-boundaries.get(boundaries.size()-1)>Integer.MAX_VALUE)
+				throw new IOException("Row near byte "+boundary+" is too long to be mapped.");
+			boundaries.add(boundary);
+		}
+		long[] chunks = new long[boundaries.size()];
+		for(int i=0;i<chunks.length;i++)
+			chunks[i] = boundaries.get(i);
+		if(chunks.length==1)
+			return supplier.get();
+		try {
+			return pool.invoke(new ChunkTask<>(supplier, accumulation, merge, chunks, 0, chunks.length-1));
+		}
+		catch(RuntimeException t) {
+			Throwable cause = t.getCause();
+			while((cause!=null)&&!(cause instanceof IOException))
+				cause = cause.getCause();
+			if(cause!=null)
+				throw (IOException)cause;
+			throw t;
+		}
+	}
+
+	/**
+	 *
+	 * @param position
+	 * @return The position of the first byte after the first newline at or after position, or the file size if there is no such newline.
+	 * @throws IOException
+	 */
+	private long findRowStart(long position) throws IOException{
+		ByteBuffer buffer = ByteBuffer.allocate(8192);
+		while(position<fileSize) {
+			buffer.clear();
+			int read = channel.read(buffer, position);
+			if(read<=0)
+				break;
+			for(int i=0;i<read;i++)
+				if(buffer.get(i)=='\n')
+					return position+i+1;
+			position += read;
+		}
+		return fileSize;
+	}
+
+	private interface RowAccumulation<T>{
+		public void add(T accumulator, double[] row);
+	}
+
+	/**
+	 * Parses the chunks between chunkStarts[first] and chunkStarts[last], splitting the range until only a single chunk remains.
+	 */
+	private class ChunkTask<T> extends RecursiveTask<T>{
+		private static final long serialVersionUID = 1L;
+		private Supplier<T> supplier;
+		private RowAccumulation<T> accumulation;
+		private BiConsumer<T,T> merge;
+		private long[] chunkStarts;
+		private int first;
+		private int last;
+
+		public ChunkTask(Supplier<T> supplier, RowAccumulation<T> accumulation, BiConsumer<T,T> merge, long[] chunkStarts, int first, int last) {
+			this.supplier = supplier;
+			this.accumulation = accumulation;
+			this.merge = merge;
+			this.chunkStarts = chunkStarts;
+			this.first = first;
+			this.last = last;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.concurrent.RecursiveTask#compute()
+		 */
+		@Override
+		protected T compute() {
+			if(last-first>1) {
+				int middle = (first+last)>>>1;
+				ChunkTask<T> right = new ChunkTask<>(supplier, accumulation, merge, chunkStarts, middle, last);
+				right.fork();
+				T retval = new ChunkTask<>(supplier, accumulation, merge, chunkStarts, first, middle).compute();
+				merge.accept(retval, right.join());
+				return retval;
+			}
+			try {
+				return parseChunk(chunkStarts[first], chunkStarts[last]);
+			}
+			catch(IOException t) {
+				throw new RuntimeException(t);
+			}
+		}
+
+		private T parseChunk(long start, long end) throws IOException{
+			T accumulator = supplier.get();
+			MappedByteBuffer region = channel.map(MapMode.READ_ONLY, start, end-start);
+			double[] row = new double[parser.getVariableCount()];
+			long[] presence = allowMissing?new long[WeightedDatum.getPresenceLength(row.length)]:null;
+			int limit = region.limit();
+			int position = 0;
+			while(true) {
+				position = TSVRowParser.skipBlankLines(region, position, limit);
+				if(position>=limit)
+					break;
+				// Every chunk ends at the end of a row, so the end of the chunk can be treated as the end of input.
+				if(parser.testRow(region, position, limit, true)==0) {
+					position = TSVRowParser.skipRow(region, position, limit, true);
+					continue;
+				}
+				position = parser.parseRow(region, position, limit, row, presence, true);
+				for(int i=0;i<row.length;i++)
+					row[i] -= means[i];
+				accumulation.add(accumulator, row);
+			}
+			return accumulator;
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Iterable#iterator()
+	 */
+	@Override
+	public Iterator<WeightedDatum> iterator() {
+		try {
+			return new MappedTSVIterator();
+		}
+		catch(IOException t) {
+			throw new RuntimeException(t);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see com.shtick.math.statistics.StatsDataSet#allowsMissingValues()
+	 */
+	@Override
+	public boolean allowsMissingValues() {
+		return allowMissing;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.shtick.math.statistics.StatsDataSet#reusesDatum()
+	 */
+	@Override
+	public boolean reusesDatum() {
+		return true;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.shtick.math.statistics.StatsDataSet#setMean(int, float)
+	 */
+	@Override
+	public void setMean(int var, float mean) {
+		means[var] = mean;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.shtick.math.statistics.StatsDataSet#isSizeKnown()
+	 */
+	@Override
+	public boolean isSizeKnown() {
+		return rowCount>=0;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.shtick.math.statistics.StatsDataSet#size()
+	 */
+	@Override
+	public int size() {
+		if(rowCount<0) {
+			try {
+				if(parser.hasFilters()) {
+					rowCount = countAcceptedRows();
+					return rowCount;
+				}
+				int count = 0;
+				long regionStart = dataStart;
+				boolean inRow = false;
+				while(regionStart<fileSize) {
+					long regionSize = Math.min(fileSize-regionStart, MAX_REGION_SIZE);
+					MappedByteBuffer region = channel.map(MapMode.READ_ONLY, regionStart, regionSize);
+					for(int i=0;i<regionSize;i++) {
+						byte b = region.get(i);
+						if((b=='\n')||(b=='\r')) {
+							if(inRow)
+								count++;
+							inRow = false;
+						}
+						else {
+							inRow = true;
+						}
+					}
+					regionStart += regionSize;
+				}
+				if(inRow)
+					count++;
+				rowCount = count;
+			}
+			catch(IOException t) {
+				throw new RuntimeException(t);
+			}
+		}
+		return rowCount;
+	}
+
+	private int countAcceptedRows() throws IOException{
+		int count = 0;
+		long regionStart = dataStart;
+		while(regionStart<fileSize) {
+			long regionSize = Math.min(fileSize-regionStart, MAX_REGION_SIZE);
+			MappedByteBuffer region = channel.map(MapMode.READ_ONLY, regionStart, regionSize);
+			boolean lastRegion = regionStart+regionSize>=fileSize;
+			int limit = region.limit();
+			int position = 0;
+			while(true) {
+				position = TSVRowParser.skipBlankLines(region, position, limit);
+				if(position>=limit)
+					break;
+				int accepted = parser.testRow(region, position, limit, lastRegion);
+				int next = (accepted<0)?-1:TSVRowParser.skipRow(region, position, limit, lastRegion);
+				if(next<0) {
+					if(position==0)
+						throw new IOException("Row at byte "+regionStart+" is too long to be mapped.");
+					break;
+				}
+				if(accepted>0)
+					count++;
+				position = next;
+			}
+			regionStart += position;
+		}
+		return count;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.shtick.math.statistics.StatsDataSet#getVariableCount()
+	 */
+	@Override
+	public int getVariableCount() {
+		return parser.getVariableCount();
+	}
+
+	/* (non-Javadoc)
+	 * @see java.io.Closeable#close()
+	 */
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	private class MappedTSVIterator implements Iterator<WeightedDatum>{
+		private MappedByteBuffer region;
+		private long regionStart;
+		private int position;
+		private boolean lastRegion;
+		private boolean ready;
+		private boolean done;
+		private WeightedDatum datum;
+
+		public MappedTSVIterator() throws IOException{
+			datum = new WeightedDatum();
+			datum.weight = 1;
+			datum.datum = new double[parser.getVariableCount()];
+			if(allowMissing)
+				datum.presence = new long[WeightedDatum.getPresenceLength(datum.datum.length)];
+			map(dataStart);
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.Iterator#hasNext()
+		 */
+		@Override
+		public boolean hasNext() {
+			if(!(ready||done)) {
+				try {
+					advance();
+				}
+				catch(IOException t) {
+					throw new RuntimeException(t);
+				}
+			}
+			return ready;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.Iterator#next()
+		 */
+		@Override
+		public WeightedDatum next() {
+			if(!hasNext())
+				throw new NoSuchElementException();
+			ready = false;
+			return datum;
+		}
+
+		private void map(long start) throws IOException{
+			long regionSize = Math.min(fileSize-start, MAX_REGION_SIZE);
+			region = channel.map(MapMode.READ_ONLY, start, regionSize);
+			regionStart = start;
+			position = 0;
+			lastRegion = start+regionSize>=fileSize;
+		}
+
+		private void advance() throws IOException{
+			double[] row = datum.datum;
+			while(true) {
+				int limit = region.limit();
+				position = TSVRowParser.skipBlankLines(region, position, limit);
+				if(position>=limit) {
+					if(lastRegion) {
+						done = true;
+						return;
+					}
+					map(regionStart+position);
+					continue;
+				}
+				int accepted = parser.testRow(region, position, limit, lastRegion);
+				int next;
+				if(accepted>0)
+					next = parser.parseRow(region, position, limit, row, datum.presence, lastRegion);
+				else if(accepted==0)
+					next = TSVRowParser.skipRow(region, position, limit, lastRegion);
+				else
+					next = -1;
+				if(next<0) {
+					if(position==0)
+						throw new IOException("Row at byte "+regionStart+" is too long to be mapped.");
+					map(regionStart+position);
+					continue;
+				}
+				position = next;
+				if(accepted==0)
+					continue;
+				for(int i=0;i<row.length;i++)
+					row[i] -= means[i];
+				ready = true;
+				return;
+			}
+		}
+	}
+}
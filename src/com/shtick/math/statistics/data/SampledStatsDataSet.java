@@ -0,0 +1,157 @@
+/**
+ * 
+ */
+package com.shtick.math.statistics.data;
+
+import java.util.Random;
+
+import com.shtick.math.statistics.IndexedStatsDataSet;
+import com.shtick.math.statistics.StatsDataSet;
+import com.shtick.math.statistics.WeightedDatum;
+
+/**
+ * An in-memory uniform random sample of the rows of another StatsDataSet, drawn in a single pass with a fixed amount of memory.
+ *
+ * Rows are chosen by reservoir sampling (Li's Algorithm L), so every row with a non-zero weight has the same chance of being sampled,
+ * whatever the size of the source, and random numbers are only drawn for rows that enter the sample.
+ * Sampled rows keep their weights. Rows with a weight of zero are never sampled.
+ *
+ * @author scox
+ *
+ */
+public class SampledStatsDataSet extends IndexedStatsDataSet {
+	private int variableCount;
+	private int capacity;
+	private int rowCount;
+	private long populationSize;
+	private double[] values;
+	private double[] weights;
+	private double[] means;
+	private boolean allowMissing;
+
+	/**
+	 * @param source The data to sample. It is iterated once.
+	 * @param capacity The largest number of rows to sample. If the source has fewer rows with non-zero weight, all of them are kept.
+	 * @param random The source of randomness for the sample.
+	 */
+	public SampledStatsDataSet(StatsDataSet source, int capacity, Random random) {
+		if(capacity<=0)
+			throw new IllegalArgumentException("Sample capacity must be positive.");
+		variableCount = source.getVariableCount();
+		allowMissing = source.allowsMissingValues();
+		this.capacity = capacity;
+		means = new double[variableCount];
+		weights = new double[Math.min(capacity, 1024)];
+		values = new double[weights.length*variableCount];
+
+		double skipWeight = Math.exp(Math.log(1-random.nextDouble())/capacity);
+		long nextReplacement = capacity+skip(skipWeight, random);
+		for(WeightedDatum datum:source) {
+			if(datum.weight==0)
+				continue;
+			if(populationSize<capacity) {
+				if(rowCount==weights.length)
+					grow();
+				store(rowCount++, datum);
+			}
+			else if(populationSize==nextReplacement) {
+				store(random.nextInt(capacity), datum);
+				skipWeight *= Math.exp(Math.log(1-random.nextDouble())/capacity);
+				nextReplacement += skip(skipWeight, random)+1;
+			}
+			populationSize++;
+		}
+	}
+
+	/**
+	 * @param variableCount
+	 * @param memoryBudget A number of bytes.
+	 * @return The capacity of the largest sample of rows of the given number of variables that fits in the given number of bytes.
+	 */
+	public static int getCapacity(int variableCount, long memoryBudget) {
+		return (int)Math.max(1, Math.min(Integer.MAX_VALUE/(variableCount+1), memoryBudget/(8L*(variableCount+1))));
+	}
+
+	private static long skip(double skipWeight, Random random) {
+		double skip = Math.floor(Math.log(1-random.nextDouble())/Math.log(1-skipWeight));
+		return (skip>=Long.MAX_VALUE/2)?Long.MAX_VALUE/2:(long)skip;
+	}
+
+	private void grow() {
+		int length = (int)Math.min(capacity, 2L*weights.length);
+		double[] grownWeights = new double[length];
+		double[] grownValues = new double[length*variableCount];
+		System.arraycopy(weights, 0, grownWeights, 0, rowCount);
+		System.arraycopy(values, 0, grownValues, 0, rowCount*variableCount);
+		weights = grownWeights;
+		values = grownValues;
+	}
+
+	private void store(int row, WeightedDatum datum) {
+		if(datum.datum.length!=variableCount)
+			throw new IllegalArgumentException("Datum size does not match variable count.");
+		weights[row] = datum.weight;
+		int offset = row*variableCount;
+		for(int i=0;i<variableCount;i++)
+			values[offset+i] = datum.isPresent(i)?datum.datum[i]:Double.NaN;
+	}
+
+	/**
+	 *
+	 * @return The number of rows with non-zero weight in the source, from which the sample was drawn.
+	 */
+	public long getPopulationSize() {
+		return populationSize;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.shtick.math.statistics.IndexedStatsDataSet#getRow(int, com.shtick.math.statistics.WeightedDatum)
+	 */
+	@Override
+	public void getRow(int row, WeightedDatum datum) {
+		if((row<0)||(row>=rowCount))
+			throw new IndexOutOfBoundsException();
+		datum.weight = weights[row];
+		int offset = row*variableCount;
+		for(int i=0;i<variableCount;i++)
+			datum.datum[i] = values[offset+i]-means[i];
+		if(datum.presence!=null) {
+			WeightedDatum.setAllPresent(datum.presence, variableCount);
+			for(int i=0;i<variableCount;i++)
+				if(Double.isNaN(values[offset+i]))
+					datum.presence[i>>>6] &= ~(1L<<i);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see com.shtick.math.statistics.StatsDataSet#allowsMissingValues()
+	 */
+	@Override
+	public boolean allowsMissingValues() {
+		return allowMissing;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.shtick.math.statistics.StatsDataSet#setMean(int, float)
+	 */
+	@Override
+	public void setMean(int var, float mean) {
+		means[var] = mean;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.shtick.math.statistics.StatsDataSet#size()
+	 */
+	@Override
+	public int size() {
+		return rowCount;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.shtick.math.statistics.StatsDataSet#getVariableCount()
+	 */
+	@Override
+	public int getVariableCount() {
+		return variableCount;
+	}
+}
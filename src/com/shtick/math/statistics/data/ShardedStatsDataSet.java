@@ -0,0 +1,375 @@
+/**
+ * 
+ */
+package com.shtick.math.statistics.data;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BiConsumer;
+
+import com.shtick.math.statistics.CovarianceAccumulator;
+import com.shtick.math.statistics.PairwiseCovarianceAccumulator;
+import com.shtick.math.statistics.StatsDataSet;
+import com.shtick.math.statistics.WeightedDatum;
+
+/**
+ * A StatsDataSet made up of the rows of many tab separated files (shards), such as a directory of daily exports, in shard order.
+ *
+ * Every shard must have a header producing the same variables, in the same order, once the ignored columns are removed.
+ * Each shard is read with a CompressedTSVStatsDataSet, so shards may be gzip compressed or not.
+ * Shards are only opened while they are being read, so a data set may have more shards than there are file handles.
+ *
+ * accumulate() ingests the shards concurrently on a ForkJoinPool, each into its own accumulator,
+ * and merges the accumulators exactly, so ingestion scales with the number of shards.
+ *
+ * @author scox
+ *
+ */
+public class ShardedStatsDataSet extends StatsDataSet implements Closeable {
+	private static final int BLOCK_ROWS = 256;
+
+	private File[] shards;
+	private Set<String> ignoreColumns;
+	private boolean allowMissing;
+	private Map<String,FieldPredicate> filters;
+	private String[] variableNames;
+	private double[] means;
+	private int rowCount;
+	private ShardIterator currentIterator;
+
+	/**
+	 * @param shards The tab separated files to read, in order. The first row of each must be a header naming each column.
+	 * @param ignoreColumns The names of columns that should not be included in the data set.
+	 * @throws IOException If a shard can't be read, or its variables don't match those of the first shard.
+	 */
+	public ShardedStatsDataSet(File[] shards, Set<String> ignoreColumns) throws IOException{
+		this(shards, ignoreColumns, false, Collections.emptyMap());
+	}
+
+	/**
+	 * @param shards The tab separated files to read, in order. The first row of each must be a header naming each column.
+	 * @param ignoreColumns The names of columns that should not be included in the data set.
+	 * @param allowMissing If true, empty fields and fields missing from the end of short rows are treated as missing values.
+	 * @param filters The predicates that a row must satisfy to be included in the data set, by column name. Ignored columns may be filtered.
+	 * @throws IOException If a shard can't be read, or its variables don't match those of the first shard.
+	 */
+	public ShardedStatsDataSet(File[] shards, Set<String> ignoreColumns, boolean allowMissing, Map<String,FieldPredicate> filters) throws IOException{
+		if(shards.length==0)
+			throw new IllegalArgumentException("At least one shard required.");
+		this.shards = Arrays.copyOf(shards, shards.length);
+		this.ignoreColumns = ignoreColumns;
+		this.allowMissing = allowMissing;
+		this.filters = filters;
+		// Each shard has its own parser, so only the resulting variables need to match.
+		for(File shard:this.shards) {
+			try(CompressedTSVStatsDataSet data = openShard(shard)){
+				if(variableNames==null)
+					variableNames = data.getVariableNames();
+				else if(!Arrays.equals(variableNames, data.getVariableNames()))
+					throw new IOException("Header of "+shard+" does not match header of "+this.shards[0]+".");
+			}
+		}
+		means = new double[variableNames.length];
+		rowCount = -1;
+	}
+
+	/**
+	 * Finds the shards named by a path, which is either a directory, in which case every visible file in it is a shard,
+	 * or a glob pattern for the file names in a directory, such as data/responses-*.tsv.gz.
+	 *
+	 * @param path
+	 * @return The shards found, sorted by name.
+	 * @throws IOException If no shards are found.
+	 */
+	public static File[] findShards(String path) throws IOException{
+		File file = new File(path);
+		File directory;
+		PathMatcher matcher;
+		if(file.isDirectory()) {
+			directory = file;
+			matcher = null;
+		}
+		else {
+			directory = file.getAbsoluteFile().getParentFile();
+			matcher = FileSystems.getDefault().getPathMatcher("glob:"+file.getName());
+		}
+		File[] shards = directory.listFiles((f)->{
+			if(!f.isFile()||f.isHidden())
+				return false;
+			return (matcher==null)||matcher.matches(Paths.get(f.getName()));
+		});
+		if((shards==null)||(shards.length==0))
+			throw new IOException("No shards found: "+path);
+		Arrays.sort(shards);
+		return shards;
+	}
+
+	/**
+	 * Opens a single shard. The shard's means are set to those of this data set.
+	 *
+	 * @param shard
+	 * @return A data set of the rows of the shard.
+	 * @throws IOException
+	 */
+	protected CompressedTSVStatsDataSet openShard(File shard) throws IOException{
+		CompressedTSVStatsDataSet retval = new CompressedTSVStatsDataSet(shard, ignoreColumns, allowMissing, filters);
+		if(means!=null) {
+			for(int i=0;i<means.length;i++)
+				retval.setMean(i, (float)means[i]);
+		}
+		return retval;
+	}
+
+	/**
+	 *
+	 * @return The files making up this data set, in order.
+	 */
+	public File[] getShards() {
+		return Arrays.copyOf(shards, shards.length);
+	}
+
+	/**
+	 *
+	 * @return The names of the variables in the data set, in datum order.
+	 */
+	public String[] getVariableNames() {
+		return Arrays.copyOf(variableNames, variableNames.length);
+	}
+
+	/**
+	 * Reads every shard concurrently, producing the same statistics as accumulating every datum from iterator().
+	 * Missing values are not supported, so accumulatePairwise() should be used if the data set allows missing values.
+	 *
+	 * @param pool The pool on which to read the shards.
+	 * @return A CovarianceAccumulator holding the accumulation of every row of every shard.
+	 * @throws IOException
+	 */
+	public CovarianceAccumulator accumulate(ForkJoinPool pool) throws IOException{
+		return accumulate(pool, (shard)->{
+			CovarianceAccumulator accumulator = new CovarianceAccumulator(variableNames.length);
+			accumulator.addBlocks(shard.blockReader(), BLOCK_ROWS);
+			return accumulator;
+		}, CovarianceAccumulator::merge);
+	}
+
+	/**
+	 * Reads every shard concurrently, producing the same statistics as accumulating every datum from iterator(),
+	 * with missing values left out pair by pair.
+	 *
+	 * @param pool The pool on which to read the shards.
+	 * @return A PairwiseCovarianceAccumulator holding the accumulation of every row of every shard.
+	 * @throws IOException
+	 */
+	public PairwiseCovarianceAccumulator accumulatePairwise(ForkJoinPool pool) throws IOException{
+		return accumulate(pool, (shard)->{
+			PairwiseCovarianceAccumulator accumulator = new PairwiseCovarianceAccumulator(variableNames.length);
+			accumulator.addBlocks(shard.blockReader(), BLOCK_ROWS);
+			return accumulator;
+		}, PairwiseCovarianceAccumulator::merge);
+	}
+
+	private <T> T accumulate(ForkJoinPool pool, ShardAccumulation<T> accumulation, BiConsumer<T,T> merge) throws IOException{
+		try {
+			return pool.invoke(new ShardTask<T>(accumulation, merge, 0, shards.length));
+		}
+		catch(RuntimeException t) {
+			Throwable cause = t.getCause();
+			while((cause!=null)&&!(cause instanceof IOException))
+				cause = cause.getCause();
+			if(cause!=null)
+				throw (IOException)cause;
+			throw t;
+		}
+	}
+
+	private interface ShardAccumulation<T>{
+		public T accumulate(CompressedTSVStatsDataSet shard) throws IOException;
+	}
+
+	/**
+	 * Accumulates the shards from first (inclusive) to last (exclusive), splitting the range until only a single shard remains.
+	 * Accumulators are merged in shard order.
+	 */
+	private class ShardTask<T> extends RecursiveTask<T>{
+		private static final long serialVersionUID = 1L;
+		private ShardAccumulation<T> accumulation;
+		private BiConsumer<T,T> merge;
+		private int first;
+		private int last;
+
+		public ShardTask(ShardAccumulation<T> accumulation, BiConsumer<T,T> merge, int first, int last) {
+			this.accumulation = accumulation;
+			this.merge = merge;
+			this.first = first;
+			this.last = last;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.concurrent.RecursiveTask#compute()
+		 */
+		@Override
+		protected T compute() {
+			if(last-first>1) {
+				int middle = (first+last)>>>1;
+				ShardTask<T> right = new ShardTask<>(accumulation, merge, middle, last);
+				right.fork();
+				T retval = new ShardTask<>(accumulation, merge, first, middle).compute();
+				merge.accept(retval, right.join());
+				return retval;
+			}
+			try(CompressedTSVStatsDataSet shard = openShard(shards[first])){
+				return accumulation.accumulate(shard);
+			}
+			catch(IOException t) {
+				throw new RuntimeException(t);
+			}
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Iterable#iterator()
+	 */
+	@Override
+	public Iterator<WeightedDatum> iterator() {
+		close();
+		currentIterator = new ShardIterator();
+		return currentIterator;
+	}
+
+	/**
+	 * Closes the shard being read by the most recently created iterator, if any.
+	 *
+	 * @see java.io.Closeable#close()
+	 */
+	@Override
+	public void close() {
+		if(currentIterator!=null) {
+			currentIterator.close();
+			currentIterator = null;
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see com.shtick.math.statistics.StatsDataSet#allowsMissingValues()
+	 */
+	@Override
+	public boolean allowsMissingValues() {
+		return allowMissing;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.shtick.math.statistics.StatsDataSet#reusesDatum()
+	 */
+	@Override
+	public boolean reusesDatum() {
+		return true;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.shtick.math.statistics.StatsDataSet#setMean(int, float)
+	 */
+	@Override
+	public void setMean(int var, float mean) {
+		means[var] = mean;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.shtick.math.statistics.StatsDataSet#isSizeKnown()
+	 */
+	@Override
+	public boolean isSizeKnown() {
+		return rowCount>=0;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.shtick.math.statistics.StatsDataSet#size()
+	 */
+	@Override
+	public int size() {
+		if(rowCount<0) {
+			long count = 0;
+			for(File file:shards) {
+				try(CompressedTSVStatsDataSet shard = openShard(file)){
+					count += shard.size();
+				}
+				catch(IOException t) {
+					throw new RuntimeException(t);
+				}
+			}
+			if(count>Integer.MAX_VALUE)
+				throw new IllegalStateException("Too many rows: "+count);
+			rowCount = (int)count;
+		}
+		return rowCount;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.shtick.math.statistics.StatsDataSet#getVariableCount()
+	 */
+	@Override
+	public int getVariableCount() {
+		return variableNames.length;
+	}
+
+	private class ShardIterator implements Iterator<WeightedDatum>, Closeable{
+		private int nextShard;
+		private CompressedTSVStatsDataSet shard;
+		private Iterator<WeightedDatum> iterator;
+
+		/* (non-Javadoc)
+		 * @see java.util.Iterator#hasNext()
+		 */
+		@Override
+		public boolean hasNext() {
+			while((iterator==null)||!iterator.hasNext()) {
+				close();
+				if(nextShard>=shards.length)
+					return false;
+				try {
+					shard = openShard(shards[nextShard++]);
+				}
+				catch(IOException t) {
+					throw new RuntimeException(t);
+				}
+				iterator = shard.iterator();
+			}
+			return true;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.util.Iterator#next()
+		 */
+		@Override
+		public WeightedDatum next() {
+			if(!hasNext())
+				throw new NoSuchElementException();
+			return iterator.next();
+		}
+
+		/**
+		 * Closes the shard being read, if any.
+		 *
+		 * @see java.io.Closeable#close()
+		 */
+		@Override
+		public void close() {
+			if(shard!=null) {
+				shard.close();
+				shard = null;
+			}
+			iterator = null;
+		}
+	}
+}
@@ -0,0 +1,450 @@
+/**
+ * 
+ */
+package com.shtick.math.statistics.data;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+import com.shtick.math.statistics.WeightedDatum;
+
+/**
+ * Parses tab separated rows of numbers directly from bytes, without creating Strings or other objects for each row.
+ *
+ * The first row of the data is expected to be a header naming each column.
+ * Columns named in the set of ignored columns are skipped, and the remaining columns are written, in order, into a caller supplied array.
+ * Ignored columns are passed over at the byte level, without number conversion, and any columns after the last parsed column aren't tokenized at all.
+ * Empty fields may optionally be treated as missing values.
+ * Rows can be filtered with a FieldPredicate for any column, using testRow(), which only looks at the bytes of the filtered columns.
+ *
+ * @author scox
+ *
+ */
+public class TSVRowParser {
+	private static final double[] POWERS_OF_TEN = new double[] {
+			1e0,1e1,1e2,1e3,1e4,1e5,1e6,1e7,1e8,1e9,1e10,1e11,
+			1e12,1e13,1e14,1e15,1e16,1e17,1e18,1e19,1e20,1e21,1e22};
+	private static final long MAX_EXACT_MANTISSA = 1L<<53;
+
+	private String[] columns;
+	private String[] variableNames;
+	private int[] indexMap;
+	private int lastColumn;
+	private FieldPredicate[] predicates;
+	private int lastFilterColumn;
+
+	/**
+	 * @param columns The names of all columns in the data, as given by the header.
+	 * @param ignoreColumns The names of the columns that should not be parsed.
+	 */
+	public TSVRowParser(String[] columns, Set<String> ignoreColumns) {
+		this(columns, ignoreColumns, Collections.emptyMap());
+	}
+
+	/**
+	 * @param columns The names of all columns in the data, as given by the header.
+	 * @param ignoreColumns The names of the columns that should not be parsed.
+	 * @param filters The predicates that a row must satisfy to be accepted by testRow(), by column name. Ignored columns may be filtered.
+	 * @throws IllegalArgumentException If a filter names a column that is not in the header.
+	 */
+	public TSVRowParser(String[] columns, Set<String> ignoreColumns, Map<String,FieldPredicate> filters) {
+		this.columns = columns;
+		predicates = new FieldPredicate[columns.length];
+		lastFilterColumn = -1;
+		for(Map.Entry<String,FieldPredicate> filter:filters.entrySet()) {
+			int column = 0;
+			while((column<columns.length)&&!columns[column].equals(filter.getKey()))
+				column++;
+			if(column>=columns.length)
+				throw new IllegalArgumentException("Filtered column not found: "+filter.getKey());
+			predicates[column] = filter.getValue();
+			lastFilterColumn = Math.max(lastFilterColumn, column);
+		}
+		indexMap = new int[columns.length];
+		int variableCount = 0;
+		lastColumn = -1;
+		for(int i=0;i<columns.length;i++) {
+			if(ignoreColumns.contains(columns[i])) {
+				indexMap[i] = -1;
+				continue;
+			}
+			indexMap[i] = variableCount++;
+			lastColumn = i;
+		}
+		variableNames = new String[variableCount];
+		for(int i=0;i<columns.length;i++)
+			if(indexMap[i]>=0)
+				variableNames[indexMap[i]] = columns[i];
+	}
+
+	/**
+	 * Reads the header row from the buffer, beginning at the buffer's position.
+	 * On return, the buffer's position will be at the start of the first data row.
+	 *
+	 * @param buffer
+	 * @return The column names given by the header.
+	 * @throws IOException If no complete header row is found.
+	 */
+	public static String[] readHeader(ByteBuffer buffer) throws IOException{
+		int start = buffer.position();
+		int i = start;
+		int limit = buffer.limit();
+		while((i<limit)&&(buffer.get(i)!='\n'))
+			i++;
+		if(i==start)
+			throw new IOException("No header found.");
+		int end = i;
+		if(buffer.get(end-1)=='\r')
+			end--;
+		byte[] bytes = new byte[end-start];
+		for(int j=0;j<bytes.length;j++)
+			bytes[j] = buffer.get(start+j);
+		buffer.position(Math.min(i+1, limit));
+		return new String(bytes,StandardCharsets.UTF_8).split("\t");
+	}
+
+	/**
+	 *
+	 * @return The names of all columns in the data.
+	 */
+	public String[] getColumns() {
+		return columns;
+	}
+
+	/**
+	 *
+	 * @return The names of the parsed columns, in the order that they are written to a row.
+	 */
+	public String[] getVariableNames() {
+		return variableNames;
+	}
+
+	/**
+	 *
+	 * @return The number of parsed columns.
+	 */
+	public int getVariableCount() {
+		return variableNames.length;
+	}
+
+	/**
+	 *
+	 * @param position
+	 * @param buffer
+	 * @param limit
+	 * @return The position of the first byte at or after position that is not part of an empty line, or limit if there is no such byte.
+	 */
+	public static int skipBlankLines(ByteBuffer buffer, int position, int limit) {
+		while(position<limit) {
+			byte b = buffer.get(position);
+			if((b!='\n')&&(b!='\r'))
+				break;
+			position++;
+		}
+		return position;
+	}
+
+	/**
+	 *
+	 * @return true if rows are filtered by testRow().
+	 */
+	public boolean hasFilters() {
+		return lastFilterColumn>=0;
+	}
+
+	/**
+	 * Tests a single row against the filters of this parser, without converting any values.
+	 * Only the fields up to the last filtered column are scanned. Filtered fields missing from the end of a short row are tested as empty fields.
+	 *
+	 * @param buffer The buffer holding the row.
+	 * @param position The position of the first byte of the row.
+	 * @param limit The position after the last byte available to be parsed.
+	 * @param endOfInput true if the byte at limit-1 is the last byte of input, so that a final row need not be terminated by a newline.
+	 * @return 1 if the row is accepted, 0 if it is rejected, or -1 if the filtered fields are not complete before limit.
+	 */
+	public int testRow(ByteBuffer buffer, int position, int limit, boolean endOfInput) {
+		int column = 0;
+		int i = position;
+		while(column<=lastFilterColumn) {
+			int fieldStart = i;
+			byte b = '\n';
+			while(i<limit) {
+				b = buffer.get(i);
+				if((b=='\t')||(b=='\n'))
+					break;
+				i++;
+			}
+			if(i>=limit) {
+				if(!endOfInput)
+					return -1;
+				b = '\n';
+			}
+			FieldPredicate predicate = predicates[column];
+			if(predicate!=null) {
+				int end = i;
+				if((end>fieldStart)&&(buffer.get(end-1)=='\r'))
+					end--;
+				if(!predicate.test(buffer, fieldStart, end))
+					return 0;
+			}
+			column++;
+			if(b=='\n')
+				break;
+			i++;
+		}
+		for(;column<=lastFilterColumn;column++)
+			if((predicates[column]!=null)&&!predicates[column].test(buffer, i, i))
+				return 0;
+		return 1;
+	}
+
+	/**
+	 * Skips a single row without tokenizing it.
+	 *
+	 * @param buffer The buffer holding the row.
+	 * @param position The position of the first byte of the row.
+	 * @param limit The position after the last byte available to be parsed.
+	 * @param endOfInput true if the byte at limit-1 is the last byte of input, so that a final row need not be terminated by a newline.
+	 * @return The position after the end of the row (including the newline), or -1 if the row is not complete before limit.
+	 */
+	public static int skipRow(ByteBuffer buffer, int position, int limit, boolean endOfInput) {
+		while((position<limit)&&(buffer.get(position)!='\n'))
+			position++;
+		if(position>=limit)
+			return endOfInput?limit:-1;
+		return position+1;
+	}
+
+	/**
+	 * Parses a single row.
+	 *
+	 * @param buffer The buffer holding the row.
+	 * @param position The position of the first byte of the row.
+	 * @param limit The position after the last byte available to be parsed.
+	 * @param row The array to write the parsed values to. It must be at least getVariableCount() in length.
+	 * @param endOfInput true if the byte at limit-1 is the last byte of input, so that a final row need not be terminated by a newline.
+	 * @return The position after the end of the row (including the newline), or -1 if the row is not complete before limit.
+	 * @throws IOException If the number of fields in the row doesn't match the number of columns.
+	 * @throws NumberFormatException If one of the parsed fields is not a number.
+	 */
+	public int parseRow(ByteBuffer buffer, int position, int limit, double[] row, boolean endOfInput) throws IOException{
+		return parseRow(buffer, position, limit, row, null, endOfInput);
+	}
+
+	/**
+	 * Parses a single row, which may have missing values if a presence bitmask is given.
+	 * Empty fields, and any fields missing from the end of a short row, are written as NaN and cleared in the presence bitmask.
+	 *
+	 * @param buffer The buffer holding the row.
+	 * @param position The position of the first byte of the row.
+	 * @param limit The position after the last byte available to be parsed.
+	 * @param row The array to write the parsed values to. It must be at least getVariableCount() in length.
+	 * @param presence The presence bitmask to fill, as described by WeightedDatum.presence. If null, missing values are not allowed.
+	 * @param endOfInput true if the byte at limit-1 is the last byte of input, so that a final row need not be terminated by a newline.
+	 * @return The position after the end of the row (including the newline), or -1 if the row is not complete before limit.
+	 * @throws IOException If the row has more fields than there are columns, or, when missing values are not allowed, fewer.
+	 *         Since fields after the last parsed column are skipped without being tokenized, extra or missing fields there are not detected.
+	 * @throws NumberFormatException If one of the parsed fields is not a number, or, when missing values are not allowed, is empty.
+	 */
+	public int parseRow(ByteBuffer buffer, int position, int limit, double[] row, long[] presence, boolean endOfInput) throws IOException{
+		if(presence!=null)
+			WeightedDatum.setAllPresent(presence, variableNames.length);
+		int column = 0;
+		int i = position;
+		while(true) {
+			int fieldStart = i;
+			byte b = '\n';
+			while(i<limit) {
+				b = buffer.get(i);
+				if((b=='\t')||(b=='\n'))
+					break;
+				i++;
+			}
+			if(i>=limit) {
+				if(!endOfInput)
+					return -1;
+				b = '\n';
+			}
+			parseField(buffer, column, fieldStart, i, row, presence);
+			if(b=='\n')
+				break;
+			i++;
+			column++;
+			if(column>lastColumn) {
+				if(column>=indexMap.length)
+					throw new IOException("Row size mismatched header size.");
+				// No later column is parsed, so the rest of the row is skipped without being tokenized.
+				return skipRow(buffer, i, limit, endOfInput);
+			}
+		}
+		if(column<lastColumn) {
+			if(presence==null)
+				throw new IOException("Row size mismatched header size.");
+			for(column++;column<=lastColumn;column++)
+				setMissing(column, row, presence);
+		}
+		return (i<limit)?i+1:i;
+	}
+
+	private void parseField(ByteBuffer buffer, int column, int start, int end, double[] row, long[] presence) {
+		int var = indexMap[column];
+		if(var<0)
+			return;
+		if((end>start)&&(buffer.get(end-1)=='\r'))
+			end--;
+		if((end==start)&&(presence!=null)) {
+			setMissing(column, row, presence);
+			return;
+		}
+		row[var] = parseNumber(buffer, start, end);
+	}
+
+	private void setMissing(int column, double[] row, long[] presence) {
+		int var = indexMap[column];
+		if(var<0)
+			return;
+		row[var] = Double.NaN;
+		presence[var>>>6] &= ~(1L<<var);
+	}
+
+	/**
+	 * Parses a decimal number from the given bytes.
+	 * Numbers that can be converted exactly with a single multiplication or division are converted in place.
+	 * Any other text is handed to Double.parseDouble(), so the result is always the same as Double.parseDouble() would give.
+	 *
+	 * @param buffer
+	 * @param start The position of the first byte of the number.
+	 * @param end The position after the last byte of the number.
+	 * @return The number parsed.
+	 * @throws NumberFormatException If the bytes do not represent a number.
+	 */
+	public static double parseNumber(ByteBuffer buffer, int start, int end) {
+		return parseNumber(buffer, null, start, end);
+	}
+
+	/**
+	 * Parses a decimal number from the given characters, as parseNumber(ByteBuffer, int, int) does from bytes,
+	 * so a field of a line can be parsed without first being copied out as a String.
+	 *
+	 * @param text
+	 * @param start The position of the first character of the number.
+	 * @param end The position after the last character of the number.
+	 * @return The number parsed.
+	 * @throws NumberFormatException If the characters do not represent a number.
+	 */
+	public static double parseNumber(CharSequence text, int start, int end) {
+		return parseNumber(null, text, start, end);
+	}
+
+	/**
+	 * Parses from buffer if it is not null, and from text otherwise.
+	 */
+	private static double parseNumber(ByteBuffer buffer, CharSequence text, int start, int end) {
+		int i = start;
+		boolean negative = false;
+		if(i<end) {
+			int c = charAt(buffer, text, i);
+			if(c=='-') {
+				negative = true;
+				i++;
+			}
+			else if(c=='+') {
+				i++;
+			}
+		}
+		long mantissa = 0;
+		int significantDigits = 0;
+		int exponent = 0;
+		boolean anyDigits = false;
+		boolean exact = true;
+		while(i<end) {
+			int digit = charAt(buffer, text, i)-'0';
+			if((digit<0)||(digit>9))
+				break;
+			anyDigits = true;
+			if(significantDigits<18) {
+				mantissa = mantissa*10+digit;
+				if(mantissa!=0)
+					significantDigits++;
+			}
+			else {
+				exponent++;
+				exact &= digit==0;
+			}
+			i++;
+		}
+		if((i<end)&&(charAt(buffer, text, i)=='.')) {
+			i++;
+			while(i<end) {
+				int digit = charAt(buffer, text, i)-'0';
+				if((digit<0)||(digit>9))
+					break;
+				anyDigits = true;
+				if(significantDigits<18) {
+					mantissa = mantissa*10+digit;
+					if(mantissa!=0)
+						significantDigits++;
+					exponent--;
+				}
+				else {
+					exact &= digit==0;
+				}
+				i++;
+			}
+		}
+		if(anyDigits&&(i<end)&&((charAt(buffer, text, i)=='e')||(charAt(buffer, text, i)=='E'))) {
+			i++;
+			boolean negativeExponent = false;
+			if(i<end) {
+				int c = charAt(buffer, text, i);
+				if(c=='-') {
+					negativeExponent = true;
+					i++;
+				}
+				else if(c=='+') {
+					i++;
+				}
+			}
+			int explicitExponent = 0;
+			boolean anyExponentDigits = false;
+			while(i<end) {
+				int digit = charAt(buffer, text, i)-'0';
+				if((digit<0)||(digit>9))
+					break;
+				anyExponentDigits = true;
+				if(explicitExponent<100000)
+					explicitExponent = explicitExponent*10+digit;
+				i++;
+			}
+			if(!anyExponentDigits)
+				exact = false;
+			exponent += negativeExponent?-explicitExponent:explicitExponent;
+		}
+		if(exact&&anyDigits&&(i==end)&&(mantissa<=MAX_EXACT_MANTISSA)) {
+			if(mantissa==0)
+				return negative?-0.0:0.0;
+			if((exponent>=0)&&(exponent<POWERS_OF_TEN.length)) {
+				double value = mantissa*POWERS_OF_TEN[exponent];
+				return negative?-value:value;
+			}
+			if((exponent<0)&&(-exponent<POWERS_OF_TEN.length)) {
+				double value = mantissa/POWERS_OF_TEN[-exponent];
+				return negative?-value:value;
+			}
+		}
+		if(buffer==null)
+			return Double.parseDouble(text.subSequence(start, end).toString());
+		byte[] bytes = new byte[end-start];
+		for(int j=0;j<bytes.length;j++)
+			bytes[j] = buffer.get(start+j);
+		return Double.parseDouble(new String(bytes,StandardCharsets.US_ASCII));
+	}
+
+	private static int charAt(ByteBuffer buffer, CharSequence text, int i) {
+		return (buffer!=null)?buffer.get(i):text.charAt(i);
+	}
+}
@@ -14,62 +14,204 @@ import com.shtick.math.statistics.Eigensystem;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.PrintStream;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
 
+import com.shtick.math.statistics.CovarianceAccumulator;
 import com.shtick.math.statistics.DoubleMatrix;
+import com.shtick.math.statistics.PairwiseCovarianceAccumulator;
+import com.shtick.math.statistics.ParallelCovarianceEngine;
 import com.shtick.math.statistics.StatsDataSet;
 import com.shtick.math.statistics.StatusTracker;
 import com.shtick.math.statistics.SubtaskStatusTracker;
-import com.shtick.math.statistics.WeightedDatum;
+import com.shtick.math.statistics.data.ByteStatsDataSet;
+import com.shtick.math.statistics.data.SampledStatsDataSet;
 
 /**
  * This class performs a PCA on a 3-dimensional data set.
  * @author seanmcox
  */
 public class PrincipleComponentAnalysis {
+	/**
+	 * The number of rows accumulated at a time by each blocked rank-k update of the covariance matrix.
+	 */
+	private static final int BLOCK_ROWS = 256;
+
     /**
      * @param data a dataset of three variables where the first index is the
      *             entry in the dataset and the second index is the index of
-     *             the variable.
+     *             the variable. Data sets that reuse their WeightedDatum
+     *             instances are supported, since no datum is retained.
      * @param statusTracker A StatusTracker for reporting progress. Can be null.
      * @return A PrincipleComponentSystem based on the provided data.
      * @throws Throwable 
      */
     public static PrincipleComponentSystem getPrincipleComponents(StatsDataSet data, StatusTracker statusTracker) throws Throwable{
-		double[] means=new double[data.getVariableCount()];
-		int i,j;
-		// Calculate means for each variable.
+    	return getPrincipleComponents(data, false, statusTracker);
+    }
+
+    /**
+     * @param data The dataset to be analyzed. Data sets that reuse their
+     *             WeightedDatum instances are supported, since no datum is
+     *             retained. If the data set allows missing values, the
+     *             pairwise-complete means and covariance matrix are used.
+     * @param parallel If true, the means and covariance matrix are
+     *             accumulated by a ParallelCovarianceEngine on the common
+     *             ForkJoinPool, using all cores.
+     * @param statusTracker A StatusTracker for reporting progress. Can be null.
+     * @return A PrincipleComponentSystem based on the provided data.
+     * @throws Throwable 
+     */
+    public static PrincipleComponentSystem getPrincipleComponents(StatsDataSet data, boolean parallel, StatusTracker statusTracker) throws Throwable{
+    	return getPrincipleComponents(data, parallel, false, statusTracker);
+    }
+
+    /**
+     * @param data The dataset to be analyzed. Data sets that reuse their
+     *             WeightedDatum instances are supported, since no datum is
+     *             retained. If the data set allows missing values, the
+     *             pairwise-complete means and covariance matrix are used.
+     * @param parallel If true, the means and covariance matrix are
+     *             accumulated by a ParallelCovarianceEngine on the common
+     *             ForkJoinPool, using all cores. Ranked analyses are not
+     *             parallel.
+     * @param ranked If true, the PCA is performed on the ranks of the data
+     *             in place of their values, so the components are based on
+     *             the Spearman rank correlations of the variables rather than
+     *             the Pearson correlations. Every value must be present and an
+     *             integer, and each variable must span no more than 256
+     *             consecutive integers, since the data is copied into a
+     *             ByteStatsDataSet, unless it is one already, and ranked by
+     *             counting sort. The means found are of the ranks, so they
+     *             are not set on data.
+     * @param statusTracker A StatusTracker for reporting progress. Can be null.
+     * @return A PrincipleComponentSystem based on the provided data.
+     * @throws Throwable 
+     */
+    public static PrincipleComponentSystem getPrincipleComponents(StatsDataSet data, boolean parallel, boolean ranked, StatusTracker statusTracker) throws Throwable{
+		if(ranked) {
+			if(statusTracker!=null)
+				statusTracker.updateStatus("Calculating means and covariance matrix of ranks", 0, 0);
+			ByteStatsDataSet bytes = (data instanceof ByteStatsDataSet)?(ByteStatsDataSet)data:ByteStatsDataSet.copyOf(data);
+			return getPrincipleComponents(bytes.accumulateRanks(), statusTracker);
+		}
+		// Calculate means and covariance matrix in a single pass.
 		if(statusTracker!=null)
-			statusTracker.updateStatus("Calculating means", 0, 0);
-		double weightTotal=0;
-		for(WeightedDatum datum:data) {
-			weightTotal+=datum.weight;
-		    for(j=0;j<means.length;j++)
-				means[j]+=datum.datum[j]*datum.weight;
+			statusTracker.updateStatus("Calculating means and covariance matrix", 0, 0);
+		if(data.allowsMissingValues()) {
+			PairwiseCovarianceAccumulator accumulator;
+			if(parallel) {
+				accumulator = new ParallelCovarianceEngine(ForkJoinPool.commonPool()).accumulatePairwise(data, getAccumulationTracker(statusTracker));
+			}
+			else {
+				accumulator = new PairwiseCovarianceAccumulator(data.getVariableCount());
+				accumulator.addBlocks(data.blockReader(), BLOCK_ROWS);
+			}
+			double[] means=accumulator.getMeans();
+			for(int i=0;i<means.length;i++)
+			    data.setMean(i,(float)(means[i]));
+			return getPrincipleComponents(accumulator, statusTracker);
 		}
-		for(i=0;i<means.length;i++){
-		    means[i]/=weightTotal;
-		    data.setMean(i,(float)(means[i]));
+		CovarianceAccumulator accumulator;
+		if(parallel) {
+			accumulator = new ParallelCovarianceEngine(ForkJoinPool.commonPool()).accumulate(data, getAccumulationTracker(statusTracker));
 		}
-	
-		
-		// Calculate covariance matrix
+		else {
+			accumulator = new CovarianceAccumulator(data.getVariableCount());
+			accumulator.addBlocks(data.blockReader(), BLOCK_ROWS);
+		}
+		double[] means=accumulator.getMeans();
+		for(int i=0;i<means.length;i++)
+		    data.setMean(i,(float)(means[i]));
+		return getPrincipleComponents(accumulator, statusTracker);
+    }
+
+    /**
+     * Performs a quick PCA on a uniform random sample of the data, drawn in a single pass with SampledStatsDataSet.
+     * The means found are set on data, as with the other entry points.
+     *
+     * @param data The dataset to be analyzed.
+     * @param sampleSize The largest number of rows to sample. SampledStatsDataSet.getCapacity() gives the sample size for a memory budget.
+     * @param random The source of randomness for the sample.
+     * @param statusTracker A StatusTracker for reporting progress. Can be null.
+     * @return A SampledPrincipleComponentSystem based on the sample, with estimates of its sampling error.
+     * @throws Throwable 
+     */
+    public static SampledPrincipleComponentSystem getPrincipleComponents(StatsDataSet data, int sampleSize, Random random, StatusTracker statusTracker) throws Throwable{
 		if(statusTracker!=null)
-			statusTracker.updateStatus("Calculating covariance matrix", 0, 0.3);
-		double[][] cvm=new double[means.length][means.length];
-		for(WeightedDatum datum:data) {
-		    for(i=0;i<cvm.length;i++){
-				for(j=0;j<=i;j++){
-				    cvm[i][j]+=datum.datum[i]*datum.datum[j]*datum.weight;
-				    if(i!=j)
-				    	cvm[j][i]=cvm[i][j];
-				}
-		    }
+			statusTracker.updateStatus("Sampling data", 0, 0);
+		SampledStatsDataSet sample = new SampledStatsDataSet(data, sampleSize, random);
+		if(sample.size()==0)
+			throw new IllegalArgumentException("No data sampled.");
+		if(statusTracker!=null)
+			statusTracker.updateStatus("Calculating means and covariance matrix", 0, 0.2);
+		double[] means;
+		double[][] cvm;
+		if(sample.allowsMissingValues()) {
+			PairwiseCovarianceAccumulator accumulator = new PairwiseCovarianceAccumulator(sample.getVariableCount());
+			accumulator.addBlocks(sample.blockReader(), BLOCK_ROWS);
+			means=accumulator.getMeans();
+			cvm=accumulator.getCovarianceMatrix();
+			checkCovariance(cvm);
 		}
-		
-		for(i=0;i<cvm.length;i++)
-		    for(j=0;j<cvm.length;j++)
-		    	cvm[i][j]/=weightTotal;
-	
+		else {
+			CovarianceAccumulator accumulator = new CovarianceAccumulator(sample.getVariableCount());
+			accumulator.addBlocks(sample.blockReader(), BLOCK_ROWS);
+			means=accumulator.getMeans();
+			cvm=accumulator.getCovarianceMatrix();
+		}
+		for(int i=0;i<means.length;i++)
+		    data.setMean(i,(float)(means[i]));
+		double[] variances = new double[means.length];
+		for(int i=0;i<variances.length;i++)
+			variances[i]=cvm[i][i];
+		Eigensystem system=getEigensystem(cvm, statusTracker);
+		return new SampledPrincipleComponentSystem(system.eigenvalues,system.eigenvectors,means,variances,sample.size(),sample.getPopulationSize());
+    }
+
+    /**
+     * @param accumulator A CovarianceAccumulator that has already accumulated the data to be analyzed.
+     * @param statusTracker A StatusTracker for reporting progress. Can be null.
+     * @return A PrincipleComponentSystem based on the accumulated data.
+     * @throws Throwable 
+     */
+    public static PrincipleComponentSystem getPrincipleComponents(CovarianceAccumulator accumulator, StatusTracker statusTracker) throws Throwable{
+		if(accumulator.getWeightTotal()==0)
+			throw new IllegalArgumentException("No data accumulated.");
+		return getPrincipleComponents(accumulator.getMeans(), accumulator.getCovarianceMatrix(), statusTracker);
+    }
+
+    /**
+     * @param accumulator A PairwiseCovarianceAccumulator that has already accumulated the data to be analyzed.
+     * @param statusTracker A StatusTracker for reporting progress. Can be null.
+     * @return A PrincipleComponentSystem based on the pairwise-complete means and covariance matrix of the accumulated data.
+     * @throws Throwable 
+     */
+    public static PrincipleComponentSystem getPrincipleComponents(PairwiseCovarianceAccumulator accumulator, StatusTracker statusTracker) throws Throwable{
+		double[][] cvm=accumulator.getCovarianceMatrix();
+		checkCovariance(cvm);
+		return getPrincipleComponents(accumulator.getMeans(), cvm, statusTracker);
+    }
+
+    private static StatusTracker getAccumulationTracker(StatusTracker statusTracker) {
+		if(statusTracker==null)
+			return null;
+		return new SubtaskStatusTracker(statusTracker, "Calculating means and covariance matrix", 0);
+    }
+
+    private static void checkCovariance(double[][] cvm) {
+		for(int i=0;i<cvm.length;i++)
+			for(int j=0;j<=i;j++)
+				if(Double.isNaN(cvm[i][j]))
+					throw new IllegalArgumentException("No data accumulated with both variables "+j+" and "+i+" present.");
+    }
+
+    private static PrincipleComponentSystem getPrincipleComponents(double[] means, double[][] cvm, StatusTracker statusTracker) throws Throwable{
+		Eigensystem system=getEigensystem(cvm, statusTracker);
+		return new PrincipleComponentSystem(system.eigenvalues,system.eigenvectors,means);
+    }
+
+    private static Eigensystem getEigensystem(double[][] cvm, StatusTracker statusTracker) throws Throwable{
 		DoubleMatrix m = new DoubleMatrix(cvm);
 		File f = new File("./covariance.txt");
 		System.out.println(f.getAbsolutePath());
@@ -82,6 +224,6 @@ public class PrincipleComponentAnalysis {
 			system=m.getEigensystem();
 		if(statusTracker!=null)
 			statusTracker.updateStatus("Done", 0, 1);
-		return new PrincipleComponentSystem(system.eigenvalues,system.eigenvectors,means);
+		return system;
     }
 }
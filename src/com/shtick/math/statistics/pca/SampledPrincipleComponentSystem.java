@@ -0,0 +1,73 @@
+/**
+ * 
+ */
+package com.shtick.math.statistics.pca;
+
+import java.io.PrintStream;
+
+/**
+ * A PrincipleComponentSystem calculated from a random sample of the data, with estimates of the sampling error of the results.
+ *
+ * The standard error of each eigenvalue is estimated with the large-sample approximation eigenvalue*sqrt(2/(n-1)),
+ * which assumes roughly normal data and distinct eigenvalues.
+ * The standard error of each mean is sqrt(variance/n), with a finite population correction of sqrt(1-n/N).
+ *
+ * @author scox
+ *
+ */
+public class SampledPrincipleComponentSystem extends PrincipleComponentSystem {
+	/**
+	 * The estimated standard error of each eigenvalue, in the same order as the eigenvalues.
+	 */
+	public double[] eigenvalueStandardErrors;
+	/**
+	 * The estimated standard error of each mean.
+	 */
+	public double[] meanStandardErrors;
+	/**
+	 * The number of rows in the sample.
+	 */
+	public int sampleSize;
+	/**
+	 * The number of rows from which the sample was drawn.
+	 */
+	public long populationSize;
+
+	/**
+	 * @param eigenvalues
+	 * @param eigenvectors
+	 * @param mean
+	 * @param variances The variance of each variable in the sample.
+	 * @param sampleSize The number of rows in the sample.
+	 * @param populationSize The number of rows from which the sample was drawn.
+	 * @throws Throwable
+	 */
+	public SampledPrincipleComponentSystem(double[] eigenvalues, double[][] eigenvectors, double[] mean, double[] variances, int sampleSize, long populationSize) throws Throwable {
+		super(eigenvalues, eigenvectors, mean);
+		this.sampleSize = sampleSize;
+		this.populationSize = populationSize;
+		double eigenvalueScale = (sampleSize>1)?Math.sqrt(2.0/(sampleSize-1)):Double.NaN;
+		eigenvalueStandardErrors = new double[this.eigenvalues.length];
+		for(int i=0;i<eigenvalueStandardErrors.length;i++)
+			eigenvalueStandardErrors[i] = Math.abs(this.eigenvalues[i])*eigenvalueScale;
+		double correction = (populationSize>0)?Math.sqrt(Math.max(0, 1-(double)sampleSize/populationSize)):1;
+		meanStandardErrors = new double[variances.length];
+		for(int i=0;i<meanStandardErrors.length;i++)
+			meanStandardErrors[i] = Math.sqrt(variances[i]/sampleSize)*correction;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.shtick.math.statistics.pca.PrincipleComponentSystem#print(java.io.PrintStream)
+	 */
+	@Override
+	public void print(PrintStream out) {
+		out.println("Sampled "+sampleSize+" of "+populationSize+" rows.");
+		super.print(out);
+		out.println("Mean Standard Errors:");
+		for(int i=0;i<meanStandardErrors.length;i++)
+			out.println(meanStandardErrors[i]);
+		out.println("Eigenvalue Standard Errors:");
+		for(int i=0;i<eigenvalueStandardErrors.length;i++)
+			out.println(eigenvalueStandardErrors[i]);
+	}
+}
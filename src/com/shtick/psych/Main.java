@@ -9,15 +9,26 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.PrintStream;
-import java.util.Comparator;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.Set;
-import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
 
+import com.shtick.math.statistics.CorrelationPairCollector;
+import com.shtick.math.statistics.CovarianceAccumulator;
 import com.shtick.math.statistics.StatsDataSet;
 import com.shtick.math.statistics.StatusTracker;
+import com.shtick.math.statistics.SymmetricMatrix;
 import com.shtick.math.statistics.WeightedDatum;
+import com.shtick.math.statistics.data.ByteStatsDataSet;
+import com.shtick.math.statistics.data.CompressedTSVStatsDataSet;
+import com.shtick.math.statistics.data.FieldPredicate;
+import com.shtick.math.statistics.data.MappedTSVStatsDataSet;
+import com.shtick.math.statistics.data.ShardedStatsDataSet;
+import com.shtick.math.statistics.data.TSVRowParser;
 import com.shtick.math.statistics.pca.PrincipleComponentAnalysis;
 import com.shtick.math.statistics.pca.PrincipleComponentSystem;
 
@@ -26,6 +37,22 @@ import com.shtick.math.statistics.pca.PrincipleComponentSystem;
  *
  */
 public class Main {
+	/**
+	 * The largest number of strongly correlated pairs listed after the correlation matrix.
+	 */
+	private static final int MAX_LISTED_CORRELATIONS = 10000;
+	/**
+	 * Pairs are listed after the correlation matrix when |r| is greater than this.
+	 */
+	private static final double LISTED_CORRELATION_THRESHOLD = 0.6;
+	/**
+	 * The command line option which treats blank fields as missing values.
+	 */
+	private static final String ALLOW_MISSING_OPTION = "--allow-missing";
+	/**
+	 * The command line option which performs the PCA on the ranks of the data, based on Spearman rank correlations.
+	 */
+	private static final String RANK_OPTION = "--rank";
 	private static File WORKING_DIRECTORY;
 	private static final String OS = (System.getProperty("os.name")).toUpperCase();
 	static{
@@ -48,10 +75,24 @@ public class Main {
 
 	/**
 	 * 
-	 * @param args
+	 * @param args The input, the output, then optionally a comma separated list of columns to ignore and a comma separated list of row filters.
+	 *             If --allow-missing is given anywhere, blank fields are treated as missing values and the pairwise-complete covariance matrix is used.
+	 *             If --rank is given anywhere, the PCA is performed on the ranks of the data, which must be small integers such as Likert scale responses.
 	 * @throws IOException 
 	 */
 	public static void main(String[] args) throws IOException{
+		boolean allowMissing = false;
+		boolean rank = false;
+		ArrayList<String> positional = new ArrayList<>();
+		for(String arg:args) {
+			if(ALLOW_MISSING_OPTION.equals(arg))
+				allowMissing = true;
+			else if(RANK_OPTION.equals(arg))
+				rank = true;
+			else
+				positional.add(arg);
+		}
+		args = positional.toArray(new String[positional.size()]);
 		if(args.length<2)
 			throw new IllegalArgumentException("Two directories expected.");
 		File input = new File(args[0]);
@@ -60,7 +101,13 @@ public class Main {
 		if(args.length>2)
 			for(String col:args[2].split(","))
 				ignoreColumns.add(col);
-		if(!(input.exists()&&input.isFile()&&input.canRead()))
+		HashMap<String,FieldPredicate> filters = new HashMap<>();
+		if(args.length>3)
+			for(String filter:args[3].split(","))
+				addFilter(filters,filter);
+		// A directory or a glob pattern names a set of shards.
+		boolean sharded = input.isDirectory()||(input.getName().indexOf('*')>=0)||(input.getName().indexOf('?')>=0);
+		if(!(sharded||(input.exists()&&input.isFile()&&input.canRead())))
 			throw new IllegalArgumentException("Input file not found/readable.");
 		if(output.exists()&&!output.canWrite())
 			throw new IllegalArgumentException("Cannot write to output file.");
@@ -68,8 +115,9 @@ public class Main {
 			throw new IllegalArgumentException("Output patent directory is not a folder.");
 		else if((!output.getParentFile().exists())&&(!output.mkdirs()))
 			throw new IllegalArgumentException("Could not create output folder.");
-		try (CSVStatsDataSet data = new CSVStatsDataSet(input,ignoreColumns)){
-			PrincipleComponentSystem pcs = PrincipleComponentAnalysis.getPrincipleComponents(data, new StatusTracker() {
+		StatsDataSet data = openDataSet(input,ignoreColumns,allowMissing,filters);
+		try {
+			StatusTracker statusTracker = new StatusTracker() {
 				
 				@Override
 				public void updateStatus(String currentTask, double taskProgress, double overallProgress) {
@@ -77,16 +125,102 @@ public class Main {
 					System.out.println("Task Progress: "+(taskProgress*100)+"%");
 					System.out.println("Overall Progress: "+(overallProgress*100)+"%");
 				}
-			});
+			};
+			PrincipleComponentSystem pcs;
+			if(rank) {
+				pcs = PrincipleComponentAnalysis.getPrincipleComponents(data, false, true, statusTracker);
+			}
+			else if(data instanceof ShardedStatsDataSet) {
+				// Shards are read concurrently, one accumulator per shard.
+				statusTracker.updateStatus("Calculating means and covariance matrix", 0, 0);
+				ShardedStatsDataSet shards = (ShardedStatsDataSet)data;
+				if(allowMissing)
+					pcs = PrincipleComponentAnalysis.getPrincipleComponents(shards.accumulatePairwise(ForkJoinPool.commonPool()), statusTracker);
+				else
+					pcs = PrincipleComponentAnalysis.getPrincipleComponents(shards.accumulate(ForkJoinPool.commonPool()), statusTracker);
+			}
+			else {
+				pcs = PrincipleComponentAnalysis.getPrincipleComponents(data, statusTracker);
+			}
 			pcs.print();
 		}
 		catch(Throwable t) {
 			t.printStackTrace();
 		}
+		finally {
+			if(data instanceof Closeable)
+				((Closeable)data).close();
+		}
 		//generateCorrelationMatrix(input,output,ignoreColumns);
+		//generateSpearmanCorrelationMatrix(input,output,ignoreColumns,allowMissing,filters);
+	}
+	
+	/**
+	 * Opens the input as the kind of data set suited to it.
+	 * A directory or a glob pattern names a set of shards. Otherwise gzipped files are decompressed as they are read,
+	 * files with row filters are memory mapped, and other files are read line by line.
+	 * 
+	 * @param input
+	 * @param ignoreColumns
+	 * @param allowMissing If true, blank fields are treated as missing values.
+	 * @param filters The row filters, by column name.
+	 * @return The data set, which should be closed if it is Closeable.
+	 * @throws IOException
+	 */
+	private static StatsDataSet openDataSet(File input, Set<String> ignoreColumns, boolean allowMissing, Map<String,FieldPredicate> filters) throws IOException{
+		if(input.isDirectory()||(input.getName().indexOf('*')>=0)||(input.getName().indexOf('?')>=0))
+			return new ShardedStatsDataSet(ShardedStatsDataSet.findShards(input.getPath()),ignoreColumns,allowMissing,filters);
+		if(input.getName().toLowerCase().endsWith(".gz"))
+			return new CompressedTSVStatsDataSet(input,ignoreColumns,allowMissing,filters);
+		if(!filters.isEmpty())
+			return new MappedTSVStatsDataSet(input,ignoreColumns,allowMissing,filters);
+		return new CSVStatsDataSet(input,ignoreColumns,true,allowMissing);
+	}
+	
+	/**
+	 * 
+	 * @param data A data set opened by openDataSet().
+	 * @return The names of the variables of the data set.
+	 */
+	private static String[] getVariableNames(StatsDataSet data) {
+		if(data instanceof ShardedStatsDataSet)
+			return ((ShardedStatsDataSet)data).getVariableNames();
+		if(data instanceof CompressedTSVStatsDataSet)
+			return ((CompressedTSVStatsDataSet)data).getVariableNames();
+		if(data instanceof MappedTSVStatsDataSet)
+			return ((MappedTSVStatsDataSet)data).getVariableNames();
+		return ((CSVStatsDataSet)data).getVariableNames();
 	}
 	
 	/**
+	 * Parses a row filter of the form column=value, which accepts rows where the column is exactly value,
+	 * or column=min:max, which accepts rows where the column is a number from min to max, inclusive.
+	 * Either bound of a range may be left empty.
+	 * 
+	 * @param filters The map of filters to add the parsed filter to.
+	 * @param filter
+	 */
+	private static void addFilter(Map<String,FieldPredicate> filters, String filter) {
+		int split = filter.indexOf('=');
+		if(split<=0)
+			throw new IllegalArgumentException("Filter not of the form column=value or column=min:max: "+filter);
+		String column = filter.substring(0, split);
+		String value = filter.substring(split+1);
+		int rangeSplit = value.indexOf(':');
+		if(rangeSplit<0) {
+			filters.put(column, FieldPredicate.equalTo(value));
+			return;
+		}
+		String min = value.substring(0, rangeSplit).trim();
+		String max = value.substring(rangeSplit+1).trim();
+		filters.put(column, FieldPredicate.inRange(
+				(min.length()==0)?Double.NEGATIVE_INFINITY:Double.parseDouble(min),
+				(max.length()==0)?Double.POSITIVE_INFINITY:Double.parseDouble(max)));
+	}
+	
+	/**
+	 * Writes the Pearson correlation matrix of the input, followed by the pairs with |r| greater than LISTED_CORRELATION_THRESHOLD,
+	 * strongest first, up to MAX_LISTED_CORRELATIONS pairs.
 	 * 
 	 * @param input
 	 * @param output
@@ -95,20 +229,14 @@ public class Main {
 	 */
 	public static void generateCorrelationMatrix(File input, File output, Set<String> ignoreColumns) throws IOException{
 		int[] indexMap;
+		int[] projectedColumns;
+		int[] fieldStarts;
+		int[] fieldEnds;
 		String[] headers = null;
 		double[] sums;
 		double[] means;
 		double[] standardDeviations;
 		double[][] correlations;
-		TreeSet<Correlation> sortedCorrelations = new TreeSet<>(new Comparator<Correlation>() {
-			/* (non-Javadoc)
-			 * @see java.util.Comparator#compare(java.lang.Object, java.lang.Object)
-			 */
-			@Override
-			public int compare(Correlation o1, Correlation o2) {
-				return Double.compare(o1.r,o2.r);
-			}
-		});
 		int rowCount=0;
 		try(BufferedReader in = new BufferedReader(new FileReader(input))){
 			String line = in.readLine();
@@ -134,17 +262,19 @@ public class Main {
 			}
 			sums=new double[headers.length];
 			means=new double[sums.length];
+			projectedColumns=getProjectedColumns(indexMap, headers.length);
+			fieldStarts=new int[headers.length];
+			fieldEnds=new int[headers.length];
 			line=in.readLine();
 			while(line!=null) {
-				parts = line.split("\t");
-				if(parts.length==0)
+				if(line.length()==0) {
+					line=in.readLine();
 					continue;
-				if((parts.length-filtered)!=headers.length)
-					throw new IOException("Row size mismatched header size: "+line);
-				for(int i=0;i<parts.length;i++) {
-					if(indexMap[i]>=0)
-						sums[indexMap[i]]+=Integer.parseInt(parts[i]);
 				}
+				if(findFields(line, projectedColumns, fieldStarts, fieldEnds)!=headers.length)
+					throw new IOException("Row size mismatched header size: "+line);
+				for(int i=0;i<headers.length;i++)
+					sums[i]+=Integer.parseInt(line, fieldStarts[i], fieldEnds[i], 10);
 				line=in.readLine();
 				rowCount++;
 			}
@@ -154,22 +284,23 @@ public class Main {
 		try(BufferedReader in = new BufferedReader(new FileReader(input))){
 			standardDeviations = new double[sums.length];
 			correlations = new double[sums.length][sums.length];
+			double[] deltas = new double[sums.length];
 			String line = in.readLine();
 			line=in.readLine(); // Skip header
 			while(line!=null) {
-				String[] parts = line.split("\t");
-				if(parts.length==0)
+				if(line.length()==0) {
+					line=in.readLine();
 					continue;
-				for(int i=0;i<parts.length;i++) {
-					if(indexMap[i]<0)
-						continue;
-					double delta = Integer.parseInt(parts[i])-means[indexMap[i]];
-					standardDeviations[indexMap[i]]+=delta*delta;
-					for(int j=i;j<parts.length;j++) {
-						if(indexMap[j]<0)
-							continue;
-						correlations[indexMap[i]][indexMap[j]]+=delta*(Integer.parseInt(parts[j])-means[indexMap[j]]);
-					}
+				}
+				if(findFields(line, projectedColumns, fieldStarts, fieldEnds)!=headers.length)
+					throw new IOException("Row size mismatched header size: "+line);
+				for(int i=0;i<deltas.length;i++)
+					deltas[i]=Integer.parseInt(line, fieldStarts[i], fieldEnds[i], 10)-means[i];
+				for(int i=0;i<deltas.length;i++) {
+					double delta = deltas[i];
+					standardDeviations[i]+=delta*delta;
+					for(int j=i;j<deltas.length;j++)
+						correlations[i][j]+=delta*deltas[j];
 				}
 				line=in.readLine();
 				rowCount++;
@@ -181,23 +312,125 @@ public class Main {
 				for(int j=i+1;j<standardDeviations.length;j++) {
 					correlations[i][j]/=standardDeviations[i]*standardDeviations[j]*(rowCount-1);
 					correlations[j][i]=correlations[i][j];
-					if(((correlations[i][j]<1)&&(correlations[i][j]>0.6))
-							||(correlations[i][j]<-0.6)) {
-						sortedCorrelations.add(new Correlation(headers[i],headers[j],correlations[i][j]));
-					}
 				}
 			}
 		}
+		writeCorrelations(output, headers, correlations);
+	}
+	
+	/**
+	 * Writes the Spearman rank correlation matrix of the input, in the same form as generateCorrelationMatrix().
+	 * Every value must be present and an integer, and each column must span no more than 256 consecutive values, as with Likert scale responses,
+	 * so that the data can be held in a ByteStatsDataSet and ranked by counting sort. The input is read once.
+	 * 
+	 * @param input A file, or a directory or glob pattern naming a set of shards, as for main().
+	 * @param output
+	 * @param ignoreColumns 
+	 * @param allowMissing If true, blank fields are read as missing values, which can't be ranked. Otherwise they are an error.
+	 * @param filters The row filters, by column name.
+	 * @throws IOException 
+	 */
+	public static void generateSpearmanCorrelationMatrix(File input, File output, Set<String> ignoreColumns, boolean allowMissing, Map<String,FieldPredicate> filters) throws IOException{
+		String[] headers;
+		CovarianceAccumulator accumulator;
+		StatsDataSet source = openDataSet(input, ignoreColumns, allowMissing, filters);
+		try {
+			headers = getVariableNames(source);
+			ByteStatsDataSet data;
+			try {
+				data = ByteStatsDataSet.copyOf(source);
+			}
+			catch(IllegalArgumentException t) {
+				throw new IOException("Data can't be ranked by counting: "+t.getMessage(), t);
+			}
+			accumulator = data.accumulateRanks();
+		}
+		finally {
+			if(source instanceof Closeable)
+				((Closeable)source).close();
+		}
+		SymmetricMatrix covariance = accumulator.getCovariance();
+		double[][] correlations = new double[headers.length][headers.length];
+		for(int i=0;i<headers.length;i++) {
+			correlations[i][i]=1;
+			for(int j=i+1;j<headers.length;j++) {
+				correlations[i][j]=covariance.getElementAt(i, j)/Math.sqrt(covariance.getElementAt(i, i)*covariance.getElementAt(j, j));
+				correlations[j][i]=correlations[i][j];
+			}
+		}
+		writeCorrelations(output, headers, correlations);
+	}
+	
+	/**
+	 * Writes a correlation matrix, followed by the pairs with |r| greater than LISTED_CORRELATION_THRESHOLD,
+	 * strongest first, up to MAX_LISTED_CORRELATIONS pairs.
+	 * 
+	 * @param output
+	 * @param headers
+	 * @param correlations
+	 * @throws IOException 
+	 */
+	private static void writeCorrelations(File output, String[] headers, double[][] correlations) throws IOException{
+		CorrelationPairCollector strongCorrelations = new CorrelationPairCollector(MAX_LISTED_CORRELATIONS, LISTED_CORRELATION_THRESHOLD);
+		for(int i=0;i<headers.length;i++)
+			for(int j=i+1;j<headers.length;j++)
+				if(correlations[i][j]<1)
+					strongCorrelations.offer(i, j, correlations[i][j]);
+		strongCorrelations.sort();
 		PrintStream out = new PrintStream(output);
 		printMatrixHeader(out,headers);
 		for(int i=0;i<headers.length;i++)
 			printMatrixRow(out,headers[i],correlations[i]);
-		for(Correlation correlation:sortedCorrelations)
-			out.println(correlation);
+		for(int k=0;k<strongCorrelations.size();k++)
+			out.println(headers[strongCorrelations.getRow(k)]+"x"+headers[strongCorrelations.getColumn(k)]+"="+strongCorrelations.getCorrelation(k));
 		out.flush();
 		out.close();
 	}
 	
+	/**
+	 * 
+	 * @param indexMap The variable index of each column, or -1 for columns that are ignored.
+	 * @param variableCount The number of columns that are not ignored.
+	 * @return The index of each column that is not ignored, in variable order.
+	 */
+	private static int[] getProjectedColumns(int[] indexMap, int variableCount) {
+		int[] retval = new int[variableCount];
+		for(int i=0;i<indexMap.length;i++)
+			if(indexMap[i]>=0)
+				retval[indexMap[i]]=i;
+		return retval;
+	}
+	
+	/**
+	 * Finds the bounds of the projected fields of a tab separated line, without splitting the line or
+	 * tokenizing any field after the last projected column.
+	 * 
+	 * @param line
+	 * @param projectedColumns The indexes of the columns to find, in ascending order.
+	 * @param starts Populated with the index of the first character of each projected field.
+	 * @param ends Populated with the index after the last character of each projected field.
+	 * @return The number of projected fields found, which is less than projectedColumns.length if the line is short.
+	 */
+	private static int findFields(String line, int[] projectedColumns, int[] starts, int[] ends) {
+		int column = 0;
+		int start = 0;
+		for(int i=0;i<projectedColumns.length;i++) {
+			while(column<projectedColumns[i]) {
+				start = line.indexOf('\t', start);
+				if(start<0)
+					return i;
+				start++;
+				column++;
+			}
+			int end = line.indexOf('\t', start);
+			if(end<0)
+				end = line.length();
+			starts[i] = start;
+			ends[i] = end;
+		}
+		return projectedColumns.length;
+	}
+	
 	private static void printMatrixHeader(PrintStream out, String[] data) {
 		for(String datum:data)
 			out.print(","+datum);
@@ -212,44 +445,30 @@ public class Main {
 		out.println();
 	}
 	
-	private static class Correlation {
-		String varA;
-		String varB;
-		double r;
-		
-		/**
-		 * @param varA
-		 * @param varB
-		 * @param r
-		 */
-		public Correlation(String varA, String varB, double r) {
-			super();
-			this.varA = varA;
-			this.varB = varB;
-			this.r = r;
-		}
-
-		/* (non-Javadoc)
-		 * @see java.lang.Object#toString()
-		 */
-		@Override
-		public String toString() {
-			return varA+"x"+varB+"="+r;
-		}
-	}
-	
 	private static class CSVStatsDataSet extends StatsDataSet implements Closeable {
 		private File input;
 		private int[] indexMap;
+		private int[] projectedColumns;
 		private String[] headers = null;
 		private double[] means;
 		private int rowCount;
 		private int varCount;
-		private double[] sums;
+		private boolean reuseDatum;
+		private boolean allowMissing;
 		private CSVStatsDataIterator currentIterator;
 		
-		public CSVStatsDataSet(File input, Set<String> ignoreColumns) throws IOException{
+		/**
+		 * @param input
+		 * @param ignoreColumns
+		 * @param reuseDatum If true, each iterator will refill a single WeightedDatum for every row rather than creating a new one.
+		 * @param allowMissing If true, blank fields and fields missing from the end of short rows are treated as missing values.
+		 *                     Otherwise they are an error.
+		 * @throws IOException
+		 */
+		public CSVStatsDataSet(File input, Set<String> ignoreColumns, boolean reuseDatum, boolean allowMissing) throws IOException{
 			this.input=input;
+			this.reuseDatum=reuseDatum;
+			this.allowMissing=allowMissing;
 			try(BufferedReader in = new BufferedReader(new FileReader(input))){
 				String line = in.readLine();
 				String[] parts = line.split("\t");
@@ -273,25 +492,19 @@ public class Main {
 					System.arraycopy(headers, 0, newHeaders, 0, newHeaders.length);
 					headers=newHeaders;
 				}
-				sums=new double[headers.length];
-				means=new double[sums.length];
-				line=in.readLine();
-				while(line!=null) {
-					parts = line.split("\t");
-					if(parts.length==0)
-						continue;
-					if((parts.length-filtered)!=headers.length)
-						throw new IOException("Row size mismatched header size: "+line);
-					for(int i=0;i<parts.length;i++) {
-						if(indexMap[i]>=0)
-							sums[indexMap[i]]+=Integer.parseInt(parts[i]);
-					}
-					line=in.readLine();
-					rowCount++;
-				}
-				for(int i=0;i<sums.length;i++)
-					means[i]=sums[i]/rowCount;
+				means=new double[headers.length];
+				projectedColumns=getProjectedColumns(indexMap, varCount);
 			}
+			// Rows are only counted if size() is requested, so that a single pass over the data is possible.
+			rowCount=-1;
+		}
+
+		/**
+		 * 
+		 * @return The names of the variables, in datum order.
+		 */
+		public String[] getVariableNames() {
+			return headers.clone();
 		}
 
 		/* (non-Javadoc)
@@ -325,13 +538,36 @@ public class Main {
 			}
 		}
 
+		/* (non-Javadoc)
+		 * @see com.shtick.math.statistics.StatsDataSet#allowsMissingValues()
+		 */
+		@Override
+		public boolean allowsMissingValues() {
+			return allowMissing;
+		}
+
+		/* (non-Javadoc)
+		 * @see com.shtick.math.statistics.StatsDataSet#reusesDatum()
+		 */
+		@Override
+		public boolean reusesDatum() {
+			return reuseDatum;
+		}
+
 		/* (non-Javadoc)
 		 * @see com.shtick.math.statistics.StatsDataSet#setMean(int, float)
 		 */
 		@Override
 		public void setMean(int var, float mean) {
-			// TODO Auto-generated method stub
-			
+			means[var]=mean;
+		}
+
+		/* (non-Javadoc)
+		 * @see com.shtick.math.statistics.StatsDataSet#isSizeKnown()
+		 */
+		@Override
+		public boolean isSizeKnown() {
+			return rowCount>=0;
 		}
 
 		/* (non-Javadoc)
@@ -339,6 +575,22 @@ public class Main {
 		 */
 		@Override
 		public int size() {
+			if(rowCount<0) {
+				try(BufferedReader in = new BufferedReader(new FileReader(input))){
+					int count=0;
+					String line = in.readLine(); // Skip headers.
+					line=in.readLine();
+					while(line!=null) {
+						if(line.length()>0)
+							count++;
+						line=in.readLine();
+					}
+					rowCount=count;
+				}
+				catch(IOException t) {
+					throw new RuntimeException(t);
+				}
+			}
 			return rowCount;
 		}
 
@@ -350,9 +602,12 @@ public class Main {
 			return varCount;
 		}
 		
-		private class CSVStatsDataIterator implements Iterator<WeightedDatum>{
+		private class CSVStatsDataIterator implements Iterator<WeightedDatum>, Closeable{
 			private WeightedDatum next;
+			private WeightedDatum reusableDatum;
 			private BufferedReader in;
+			private int[] fieldStarts = new int[varCount];
+			private int[] fieldEnds = new int[varCount];
 			
 			public CSVStatsDataIterator() throws IOException{
 				in = new BufferedReader(new FileReader(input));
@@ -382,14 +637,49 @@ public class Main {
 					try { // Read and interpret the next line
 						String line = in.readLine();
 						while(line!=null) {
-							String[] parts = line.split("\t");
-							if(parts.length!=0) {
-								next = new WeightedDatum();
-								next.weight = 1;
-								next.datum = new double[varCount];
-								for(int i=0;i<parts.length;i++)
-									if(indexMap[i]>=0)
-										next.datum[indexMap[i]]=Double.parseDouble(parts[i])-means[indexMap[i]];
+							if(line.length()!=0) {
+								int found = findFields(line, projectedColumns, fieldStarts, fieldEnds);
+								if(reuseDatum) {
+									if(reusableDatum==null) {
+										reusableDatum = new WeightedDatum();
+										reusableDatum.weight = 1;
+										reusableDatum.datum = new double[varCount];
+										if(allowMissing)
+											reusableDatum.presence = new long[WeightedDatum.getPresenceLength(varCount)];
+									}
+									next = reusableDatum;
+								}
+								else {
+									next = new WeightedDatum();
+									next.weight = 1;
+									next.datum = new double[varCount];
+									if(allowMissing)
+										next.presence = new long[WeightedDatum.getPresenceLength(varCount)];
+								}
+								if(allowMissing)
+									WeightedDatum.setAllPresent(next.presence, varCount);
+								// Blank fields, and fields missing from the end of a short row, are missing values.
+								for(int var=0;var<varCount;var++) {
+									// The field is trimmed and parsed in place, as String.trim() would trim it, without copying it out of the line.
+									int start = 0;
+									int end = 0;
+									if(var<found) {
+										start = fieldStarts[var];
+										end = fieldEnds[var];
+										while((start<end)&&(line.charAt(start)<=' '))
+											start++;
+										while((end>start)&&(line.charAt(end-1)<=' '))
+											end--;
+									}
+									if(start==end) {
+										if(!allowMissing)
+											throw new IOException("Missing value for "+headers[var]+": "+line);
+										next.datum[var]=Double.NaN;
+										next.presence[var>>>6]&=~(1L<<var);
+										continue;
+									}
+									next.datum[var]=TSVRowParser.parseNumber(line, start, end)-means[var];
+								}
 								break;
 							}
 							line = in.readLine();
@@ -402,7 +692,11 @@ public class Main {
 				return next;
 			}
 			
-			private void close() throws IOException{
+			/* (non-Javadoc)
+			 * @see java.io.Closeable#close()
+			 */
+			@Override
+			public void close() throws IOException{
 				in.close();
 			}
 		}
@@ -0,0 +1,229 @@
+package com.shtick.math.statistics.test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+import com.shtick.math.statistics.CovarianceAccumulator;
+import com.shtick.math.statistics.WeightedDatum;
+import com.shtick.math.statistics.data.ByteStatsDataSet;
+import com.shtick.math.statistics.data.DirectStatsDataSet;
+import com.shtick.math.statistics.pca.PrincipleComponentAnalysis;
+import com.shtick.math.statistics.pca.PrincipleComponentSystem;
+
+class ByteStatsDataSetTest {
+	private static final double ERROR_MARGIN = 0.00001;
+
+	@Test
+	void testAdd() {
+		{ // Success case
+			ByteStatsDataSet data = new ByteStatsDataSet(new int[] {0,-3});
+			data.add(new double[] {5,-3}, 1);
+			data.add(new double[] {255,252}, 2);
+			assertEquals(2, data.size());
+			assertEquals(2, data.getVariableCount());
+			assertEquals(5, data.getValue(0, 0));
+			assertEquals(-3, data.getValue(0, 1));
+			assertEquals(255, data.getValue(1, 0));
+			assertEquals(252, data.getValue(1, 1));
+			assertEqualsWithinMargin(2, data.getWeight(1), "Weight");
+		}
+
+		{ // Growth case
+			ByteStatsDataSet data = new ByteStatsDataSet(1);
+			for(int i=0;i<5000;i++)
+				data.add(new double[] {i%7}, 1);
+			assertEquals(5000, data.size());
+			assertEquals(4999%7, data.getValue(4999, 0));
+		}
+
+		{ // Out of range case
+			ByteStatsDataSet data = new ByteStatsDataSet(new int[] {1});
+			assertThrows(IllegalArgumentException.class,()->{
+				data.add(new double[] {0}, 1);
+			});
+			assertThrows(IllegalArgumentException.class,()->{
+				data.add(new double[] {257}, 1);
+			});
+		}
+
+		{ // Non-integer case
+			ByteStatsDataSet data = new ByteStatsDataSet(1);
+			assertThrows(IllegalArgumentException.class,()->{
+				data.add(new double[] {2.5}, 1);
+			});
+		}
+
+		{ // Automatic offsets case
+			ByteStatsDataSet data = new ByteStatsDataSet(2, true);
+			data.add(new double[] {-1000,7}, 1);
+			data.add(new double[] {-900,5}, 2);
+			data.add(new double[] {-1100,3}, 1);
+			assertArrayEquals(new int[] {-1100,3}, data.getOffsets());
+			assertEquals(-1000, data.getValue(0, 0));
+			assertEquals(-900, data.getValue(1, 0));
+			assertEquals(-1100, data.getValue(2, 0));
+			assertEquals(7, data.getValue(0, 1));
+			assertEquals(5, data.getValue(1, 1));
+			double[] histogram = data.getHistogram(1);
+			assertEquals(1, histogram[0]);
+			assertEquals(2, histogram[2]);
+			assertEquals(1, histogram[4]);
+			assertThrows(IllegalArgumentException.class,()->{
+				data.add(new double[] {-1200,3}, 1);
+			});
+			assertThrows(IllegalArgumentException.class,()->{
+				data.add(new double[] {-1000,259}, 1);
+			});
+			assertThrows(IllegalArgumentException.class,()->{
+				data.add(new double[] {-1000,2.5}, 1);
+			});
+			// Rejected rows leave the data set unchanged.
+			assertEquals(3, data.size());
+			assertArrayEquals(new int[] {-1100,3}, data.getOffsets());
+			data.add(new double[] {-845,258}, 1);
+			assertEquals(-845, data.getValue(3, 0));
+			assertEquals(258, data.getValue(3, 1));
+		}
+	}
+
+	@Test
+	void testIterator() {
+		ByteStatsDataSet data = new ByteStatsDataSet(new int[] {1,1});
+		data.add(new double[] {1,5}, 1);
+		data.add(new double[] {3,2}, 0.5);
+		data.setMean(1, 2);
+		double[][] expected = new double[][] {{1,3},{3,0}};
+		double[] expectedWeights = new double[] {1,0.5};
+		int row = 0;
+		for(WeightedDatum datum:data) {
+			assertEqualsWithinMargin(expectedWeights[row], datum.weight, "Weight at row "+row);
+			for(int i=0;i<2;i++)
+				assertEqualsWithinMargin(expected[row][i], datum.datum[i], "Value at row "+row+", column "+i);
+			row++;
+		}
+		assertEquals(2, row);
+	}
+
+	@Test
+	void testAccumulate() {
+		for(boolean weighted:new boolean[] {false,true}) {
+			ByteStatsDataSet data = new ByteStatsDataSet(new int[] {1,0,-2});
+			CovarianceAccumulator expected = new CovarianceAccumulator(3);
+			for(int i=0;i<1000;i++) {
+				double[] row = new double[] {1+i%5,(i*7)%8,-2+(i*i)%4};
+				double weight = weighted?1+i%3:1;
+				data.add(row, weight);
+				expected.add(row, weight);
+			}
+			CovarianceAccumulator actual = data.accumulate();
+			assertEquals(expected.getCount(), actual.getCount());
+			assertEqualsWithinMargin(expected.getWeightTotal(), actual.getWeightTotal(), "Weight total");
+			double[] expectedMeans = expected.getMeans();
+			double[] actualMeans = actual.getMeans();
+			double[][] expectedCovariance = expected.getCovarianceMatrix();
+			double[][] actualCovariance = actual.getCovarianceMatrix();
+			for(int i=0;i<3;i++) {
+				assertEqualsWithinMargin(expectedMeans[i], actualMeans[i], "Mean "+i);
+				for(int j=0;j<3;j++)
+					assertEqualsWithinMargin(expectedCovariance[i][j], actualCovariance[i][j], "Covariance "+i+","+j);
+			}
+
+			// Mean adjusted case
+			data.setMean(0, 2.5f);
+			data.setMean(2, -1);
+			CovarianceAccumulator iterated = new CovarianceAccumulator(3);
+			iterated.addAll(data);
+			actual = data.accumulate();
+			expectedMeans = iterated.getMeans();
+			actualMeans = actual.getMeans();
+			actualCovariance = actual.getCovarianceMatrix();
+			assertEqualsWithinMargin(expected.getMeans()[0]-2.5, actualMeans[0], "Adjusted mean 0");
+			for(int i=0;i<3;i++) {
+				assertEqualsWithinMargin(expectedMeans[i], actualMeans[i], "Adjusted mean "+i);
+				for(int j=0;j<3;j++)
+					assertEqualsWithinMargin(expectedCovariance[i][j], actualCovariance[i][j], "Adjusted covariance "+i+","+j);
+			}
+		}
+	}
+
+	@Test
+	void testRanks() throws Throwable {
+		{ // Ties
+			ByteStatsDataSet data = new ByteStatsDataSet(new int[] {1});
+			for(double value:new double[] {3,1,3,2,3,5})
+				data.add(new double[] {value}, 1);
+			double[] histogram = data.getHistogram(0);
+			assertEquals(1, histogram[0]);
+			assertEquals(1, histogram[1]);
+			assertEquals(3, histogram[2]);
+			assertEquals(0, histogram[3]);
+			assertEquals(1, histogram[4]);
+			double[] ranks = data.getRanks(0);
+			assertEquals(1, ranks[0]);
+			assertEquals(2, ranks[1]);
+			assertEquals(4, ranks[2]);
+			assertEquals(6, ranks[4]);
+		}
+
+		{ // Spearman correlation
+			ByteStatsDataSet data = new ByteStatsDataSet(new int[] {1,0,-2});
+			double[][] rows = new double[700][];
+			for(int i=0;i<rows.length;i++) {
+				rows[i] = new double[] {1+i%5,(i*7)%8,-2+(i*i)%4};
+				data.add(rows[i], 1);
+			}
+			// Ranks found by comparison, with ties given their average rank.
+			CovarianceAccumulator expected = new CovarianceAccumulator(3);
+			double[][] ranked = new double[rows.length][3];
+			for(int v=0;v<3;v++) {
+				for(int r=0;r<rows.length;r++) {
+					int below = 0;
+					int equal = 0;
+					for(double[] other:rows) {
+						if(other[v]<rows[r][v])
+							below++;
+						else if(other[v]==rows[r][v])
+							equal++;
+					}
+					ranked[r][v] = below+(equal+1)/2.0;
+				}
+			}
+			for(double[] row:ranked)
+				expected.add(row, 1);
+			CovarianceAccumulator actual = data.accumulateRanks();
+			double[] expectedMeans = expected.getMeans();
+			double[] actualMeans = actual.getMeans();
+			double[][] expectedCovariance = expected.getCovarianceMatrix();
+			double[][] actualCovariance = actual.getCovarianceMatrix();
+			for(int i=0;i<3;i++) {
+				assertEqualsWithinMargin(expectedMeans[i], actualMeans[i], "Mean "+i);
+				for(int j=0;j<3;j++)
+					assertEqualsWithinMargin(expectedCovariance[i][j], actualCovariance[i][j], "Covariance "+i+","+j);
+			}
+
+			// A copy with automatic offsets, whose variables are rebased as lower values arrive, ranks the same.
+			DirectStatsDataSet source = new DirectStatsDataSet(3);
+			for(int r=rows.length-1;r>=0;r--)
+				source.add(rows[r], 1);
+			CovarianceAccumulator copied = ByteStatsDataSet.copyOf(source).accumulateRanks();
+			double[][] copiedCovariance = copied.getCovarianceMatrix();
+			for(int i=0;i<3;i++)
+				for(int j=0;j<3;j++)
+					assertEqualsWithinMargin(expectedCovariance[i][j], copiedCovariance[i][j], "Copied covariance "+i+","+j);
+
+			PrincipleComponentSystem expectedSystem = PrincipleComponentAnalysis.getPrincipleComponents(expected, null);
+			PrincipleComponentSystem system = PrincipleComponentAnalysis.getPrincipleComponents(data, false, true, null);
+			PrincipleComponentSystem copiedSystem = PrincipleComponentAnalysis.getPrincipleComponents(source, false, true, null);
+			for(int i=0;i<3;i++) {
+				assertEqualsWithinMargin(expectedSystem.eigenvalues[i], system.eigenvalues[i], "Eigenvalue "+i);
+				assertEqualsWithinMargin(expectedSystem.eigenvalues[i], copiedSystem.eigenvalues[i], "Copied eigenvalue "+i);
+			}
+		}
+	}
+
+	private static void assertEqualsWithinMargin(double expected, double actual, String message) {
+		assertTrue(actual>=expected-ERROR_MARGIN,message+" ("+expected+"!="+actual+")");
+		assertTrue(actual<=expected+ERROR_MARGIN,message+" ("+expected+"!="+actual+")");
+	}
+}
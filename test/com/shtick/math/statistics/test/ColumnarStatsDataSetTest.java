@@ -0,0 +1,156 @@
+package com.shtick.math.statistics.test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+import com.shtick.math.statistics.WeightedDatum;
+import com.shtick.math.statistics.data.ColumnarStatsDataSet;
+import com.shtick.math.statistics.data.MappedTSVStatsDataSet;
+
+class ColumnarStatsDataSetTest {
+	private static final double ERROR_MARGIN = 0.00001;
+
+	@Test
+	void testConvert() throws IOException {
+		File input = File.createTempFile("psych", ".tsv");
+		File cache = File.createTempFile("psych", ".col");
+		try {
+			try(FileWriter out = new FileWriter(input)){
+				out.write("A\tB\tC\n1\t2\t3\n4\t5\t6\n7\t8\t9\n2\t4\t6\n");
+			}
+			try(MappedTSVStatsDataSet data = new MappedTSVStatsDataSet(input, new HashSet<>())){
+				ColumnarStatsDataSet.convert(data, data.getVariableNames(), cache);
+			}
+
+			{ // All columns case
+				try(ColumnarStatsDataSet data = new ColumnarStatsDataSet(cache, new HashSet<>())){
+					assertEquals(4, data.size());
+					assertEquals(3, data.getVariableCount());
+					assertArrayEquals(new String[] {"A","B","C"}, data.getVariableNames());
+					assertEqualsWithinMargin(3.5, data.getStoredMeans()[0], "Stored mean");
+					assertEqualsWithinMargin(4.75, data.getStoredMeans()[1], "Stored mean");
+					assertEqualsWithinMargin(6, data.getStoredMeans()[2], "Stored mean");
+					double[][] expected = new double[][] {{1,2,3},{4,5,6},{7,8,9},{2,4,6}};
+					int row = 0;
+					for(WeightedDatum datum:data) {
+						assertEqualsWithinMargin(1, datum.weight, "Weight at row "+row);
+						for(int i=0;i<3;i++)
+							assertEqualsWithinMargin(expected[row][i], datum.datum[i], "Value at row "+row+", column "+i);
+						row++;
+					}
+					assertEquals(4, row);
+				}
+			}
+
+			{ // Ignored column case
+				Set<String> ignoreColumns = new HashSet<>();
+				ignoreColumns.add("B");
+				try(ColumnarStatsDataSet data = new ColumnarStatsDataSet(cache, ignoreColumns)){
+					assertArrayEquals(new String[] {"A","C"}, data.getVariableNames());
+					assertEqualsWithinMargin(6, data.getStoredMeans()[1], "Stored mean");
+					data.setMean(1, 6);
+					WeightedDatum datum = data.iterator().next();
+					assertEqualsWithinMargin(1, datum.datum[0], "Unadjusted value");
+					assertEqualsWithinMargin(-3, datum.datum[1], "Mean adjusted value");
+					assertEqualsWithinMargin(9, data.getColumn(1).get(2), "Column value");
+				}
+			}
+		}
+		finally {
+			input.delete();
+			cache.delete();
+		}
+	}
+
+	@Test
+	void testMissingValues() throws IOException {
+		File input = File.createTempFile("psych", ".tsv");
+		File cache = File.createTempFile("psych", ".col");
+		try {
+			// Enough rows to fill more than one long of presence bits, with blank fields in some rows.
+			StringBuilder content = new StringBuilder("A\tB\tC\n");
+			for(int r=0;r<150;r++) {
+				content.append((r%7==0)?"":Integer.toString(r%5)).append('\t');
+				content.append((r%11==3)?"":Integer.toString(r%3)).append('\t');
+				content.append(r%4).append('\n');
+			}
+			try(FileWriter out = new FileWriter(input)){
+				out.write(content.toString());
+			}
+			try(MappedTSVStatsDataSet data = new MappedTSVStatsDataSet(input, new HashSet<>(), true)){
+				ColumnarStatsDataSet.convert(data, data.getVariableNames(), cache);
+			}
+			try(MappedTSVStatsDataSet expected = new MappedTSVStatsDataSet(input, new HashSet<>(), true);
+					ColumnarStatsDataSet data = new ColumnarStatsDataSet(cache, new HashSet<>())){
+				assertTrue(data.allowsMissingValues());
+				double sum = 0;
+				int count = 0;
+				for(int r=0;r<150;r++) {
+					if(r%7!=0) {
+						sum += r%5;
+						count++;
+					}
+				}
+				assertEqualsWithinMargin(sum/count, data.getStoredMeans()[0], "Stored mean");
+				Iterator<WeightedDatum> expectedIterator = expected.iterator();
+				int row = 0;
+				for(WeightedDatum datum:data) {
+					WeightedDatum expectedDatum = expectedIterator.next();
+					for(int i=0;i<3;i++) {
+						assertEquals(expectedDatum.isPresent(i), datum.isPresent(i), "Presence at row "+row+", column "+i);
+						if(datum.isPresent(i))
+							assertEqualsWithinMargin(expectedDatum.datum[i], datum.datum[i], "Value at row "+row+", column "+i);
+						else
+							assertTrue(Double.isNaN(datum.datum[i]), "Missing value at row "+row+", column "+i);
+					}
+					row++;
+				}
+				assertEquals(150, row);
+			}
+
+			{ // Complete data doesn't allow missing values.
+				try(MappedTSVStatsDataSet data = new MappedTSVStatsDataSet(input, new HashSet<>(Arrays.asList("A","B")), false)){
+					ColumnarStatsDataSet.convert(data, data.getVariableNames(), cache);
+				}
+				try(ColumnarStatsDataSet data = new ColumnarStatsDataSet(cache, new HashSet<>())){
+					assertFalse(data.allowsMissingValues());
+					assertNull(data.iterator().next().presence);
+				}
+			}
+		}
+		finally {
+			input.delete();
+			cache.delete();
+		}
+	}
+
+	@Test
+	void testInvalidFile() throws IOException {
+		File input = File.createTempFile("psych", ".col");
+		try {
+			try(FileWriter out = new FileWriter(input)){
+				out.write("A\tB\tC\n1\t2\t3\n4\t5\t6\n");
+			}
+			assertThrows(IOException.class,()->{
+				new ColumnarStatsDataSet(input, new HashSet<>());
+			});
+		}
+		finally {
+			input.delete();
+		}
+	}
+
+	private static void assertEqualsWithinMargin(double expected, double actual, String message) {
+		assertTrue(actual>=expected-ERROR_MARGIN,message+" ("+expected+"!="+actual+")");
+		assertTrue(actual<=expected+ERROR_MARGIN,message+" ("+expected+"!="+actual+")");
+	}
+}
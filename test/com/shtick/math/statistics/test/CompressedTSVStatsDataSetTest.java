@@ -0,0 +1,195 @@
+package com.shtick.math.statistics.test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.jupiter.api.Test;
+
+import com.shtick.math.statistics.RowBlockReader;
+import com.shtick.math.statistics.WeightedDatum;
+import com.shtick.math.statistics.data.CompressedTSVStatsDataSet;
+import com.shtick.math.statistics.data.FieldPredicate;
+
+class CompressedTSVStatsDataSetTest {
+	private static final double ERROR_MARGIN = 0.00001;
+
+	@Test
+	void testIteration() throws IOException {
+		// Enough rows that many rows straddle the decompression buffers.
+		int rows = 200000;
+		StringBuilder content = new StringBuilder("A\tcountry\tB\r\n");
+		for(int i=0;i<rows;i++)
+			content.append(i).append("\tUS\t").append(i*0.25).append((i%2==0)?"\r\n":"\n");
+		File file = createFile(content.toString(), true);
+		try {
+			Set<String> ignoreColumns = new HashSet<>();
+			ignoreColumns.add("country");
+			try(CompressedTSVStatsDataSet data = new CompressedTSVStatsDataSet(file, ignoreColumns)){
+				assertEquals(2, data.getVariableCount());
+				assertArrayEquals(new String[] {"A","B"}, data.getVariableNames());
+				assertEquals(rows, data.size());
+				data.setMean(1, 1);
+				int row = 0;
+				for(WeightedDatum datum:data) {
+					assertEqualsWithinMargin(row, datum.datum[0], "Value at row "+row);
+					assertEqualsWithinMargin(row*0.25-1, datum.datum[1], "Value at row "+row);
+					row++;
+				}
+				assertEquals(rows, row);
+
+				{ // Abandoned iteration case
+					Iterator<WeightedDatum> iterator = data.iterator();
+					iterator.next();
+					iterator = data.iterator();
+					assertEqualsWithinMargin(0, iterator.next().datum[0], "First value after restart");
+				}
+			}
+		}
+		finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	void testFilters() throws IOException {
+		int rows = 200000;
+		StringBuilder content = new StringBuilder("A\tcountry\n");
+		for(int i=0;i<rows;i++)
+			content.append(i).append('\t').append((i%4==0)?"US":"GB").append('\n');
+		File file = createFile(content.toString(), true);
+		try {
+			Set<String> ignoreColumns = new HashSet<>();
+			ignoreColumns.add("country");
+			Map<String,FieldPredicate> filters = new HashMap<>();
+			filters.put("country", FieldPredicate.equalTo("US"));
+			try(CompressedTSVStatsDataSet data = new CompressedTSVStatsDataSet(file, ignoreColumns, false, filters)){
+				assertEquals(rows/4, data.size());
+				int row = 0;
+				for(WeightedDatum datum:data) {
+					assertEqualsWithinMargin(row*4, datum.datum[0], "Value at row "+row);
+					row++;
+				}
+				assertEquals(rows/4, row);
+			}
+		}
+		finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	void testUncompressed() throws IOException {
+		File file = createFile("A\tB\n1\t\n\n3\t4", false);
+		try {
+			try(CompressedTSVStatsDataSet data = new CompressedTSVStatsDataSet(file, new HashSet<>(), true)){
+				assertEquals(2, data.size());
+				Iterator<WeightedDatum> iterator = data.iterator();
+				WeightedDatum datum = iterator.next();
+				assertEqualsWithinMargin(1, datum.datum[0], "Value at row 0");
+				assertFalse(datum.isPresent(1));
+				datum = iterator.next();
+				assertEqualsWithinMargin(3, datum.datum[0], "Value at row 1");
+				assertEqualsWithinMargin(4, datum.datum[1], "Value at row 1");
+				assertFalse(iterator.hasNext());
+			}
+		}
+		finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	void testMalformedValue() throws Throwable {
+		// Enough rows to fill the decompression buffers, so the decompressor would wait for the iterator indefinitely.
+		StringBuilder content = new StringBuilder("A\tB\n");
+		for(int i=0;i<1000000;i++)
+			content.append(i).append('\t').append((i==5)?"abc":"1").append('\n');
+		File file = createFile(content.toString(), true);
+		try {
+			try(CompressedTSVStatsDataSet data = new CompressedTSVStatsDataSet(file, new HashSet<>())){
+				Iterator<WeightedDatum> iterator = data.iterator();
+				assertThrows(NumberFormatException.class,()->{
+					while(iterator.hasNext())
+						iterator.next();
+				});
+				// The iterator releases its decompressor, without waiting for the data set to be closed.
+				assertDecompressorStopped(file);
+			}
+		}
+		finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	void testBlockReader() throws Throwable {
+		StringBuilder content = new StringBuilder("A\tB\n");
+		for(int i=0;i<1000000;i++)
+			content.append(i).append("\t1\n");
+		File file = createFile(content.toString(), true);
+		try {
+			try(CompressedTSVStatsDataSet data = new CompressedTSVStatsDataSet(file, new HashSet<>())){
+				// A reader that isn't read to the end releases its decompressor when it is closed.
+				try(RowBlockReader reader = data.blockReader()){
+					double[] block = new double[20];
+					double[] weights = new double[10];
+					assertEquals(10, reader.readBlock(block, weights, 10));
+					assertEqualsWithinMargin(9, block[18], "Value at row 9");
+				}
+				assertDecompressorStopped(file);
+			}
+		}
+		finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	void testUnsupportedFormat() throws IOException {
+		File file = File.createTempFile("psych", ".zst");
+		try {
+			try(OutputStream out = new FileOutputStream(file)){
+				out.write(new byte[] {0x28,(byte)0xB5,0x2F,(byte)0xFD,0,0});
+			}
+			assertThrows(IOException.class,()->{
+				new CompressedTSVStatsDataSet(file, new HashSet<>());
+			});
+		}
+		finally {
+			file.delete();
+		}
+	}
+
+	private static File createFile(String content, boolean compress) throws IOException {
+		File file = File.createTempFile("psych", compress?".tsv.gz":".tsv");
+		try(OutputStream out = compress?new GZIPOutputStream(new FileOutputStream(file)):new FileOutputStream(file)){
+			out.write(content.getBytes(StandardCharsets.UTF_8));
+		}
+		return file;
+	}
+
+	private static void assertDecompressorStopped(File file) throws InterruptedException {
+		for(Thread thread:Thread.getAllStackTraces().keySet()) {
+			if(thread.getName().equals("Decompressor: "+file.getName())) {
+				thread.join(5000);
+				assertFalse(thread.isAlive(), thread.getName());
+			}
+		}
+	}
+
+	private static void assertEqualsWithinMargin(double expected, double actual, String message) {
+		assertTrue(actual>=expected-ERROR_MARGIN,message+" ("+expected+"!="+actual+")");
+		assertTrue(actual<=expected+ERROR_MARGIN,message+" ("+expected+"!="+actual+")");
+	}
+}
@@ -0,0 +1,118 @@
+package com.shtick.math.statistics.test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+import com.shtick.math.statistics.CorrelationPairCollector;
+import com.shtick.math.statistics.CovarianceAccumulator;
+
+class CorrelationPairCollectorTest {
+	private static final double ERROR_MARGIN = 0.00001;
+
+	@Test
+	void testOffer() {
+		{ // Threshold and ties
+			CorrelationPairCollector collector = new CorrelationPairCollector(10, 0.6);
+			collector.offer(0, 1, 0.7);
+			collector.offer(0, 2, 0.7);
+			collector.offer(1, 2, -0.7);
+			collector.offer(1, 3, 0.6);
+			collector.offer(2, 3, Double.NaN);
+			collector.offer(0, 3, -0.9);
+			collector.sort();
+			assertEquals(4, collector.size());
+			assertPair(collector, 0, 0, 3, -0.9);
+			assertPair(collector, 1, 0, 1, 0.7);
+			assertPair(collector, 2, 0, 2, 0.7);
+			assertPair(collector, 3, 1, 2, -0.7);
+		}
+
+		{ // Capacity
+			CorrelationPairCollector collector = new CorrelationPairCollector(3, 0);
+			CorrelationPairCollector reversed = new CorrelationPairCollector(3, 0);
+			for(int i=0;i<100;i++)
+				collector.offer(i, i+1, ((i%10)-5)*0.1);
+			for(int i=99;i>=0;i--)
+				reversed.offer(i, i+1, ((i%10)-5)*0.1);
+			collector.sort();
+			reversed.sort();
+			assertEquals(3, collector.size());
+			// Ties at the boundary go to the lowest indexes, whatever the order offered.
+			for(int k=0;k<3;k++) {
+				assertPair(collector, k, k*10, k*10+1, -0.5);
+				assertPair(reversed, k, k*10, k*10+1, -0.5);
+			}
+
+			// Offering after sorting.
+			collector.offer(200, 201, 0.95);
+			collector.sort();
+			assertPair(collector, 0, 200, 201, 0.95);
+			assertPair(collector, 1, 0, 1, -0.5);
+			assertPair(collector, 2, 10, 11, -0.5);
+		}
+
+		{ // Merge
+			CorrelationPairCollector expected = new CorrelationPairCollector(20, 0.1);
+			CorrelationPairCollector a = new CorrelationPairCollector(20, 0.1);
+			CorrelationPairCollector b = new CorrelationPairCollector(20, 0.1);
+			for(int i=0;i<200;i++) {
+				double r = Math.sin(i*0.37);
+				expected.offer(i/20, i%20, r);
+				((i%3==0)?a:b).offer(i/20, i%20, r);
+			}
+			a.merge(b);
+			a.sort();
+			expected.sort();
+			assertEquals(expected.size(), a.size());
+			for(int k=0;k<expected.size();k++)
+				assertPair(a, k, expected.getRow(k), expected.getColumn(k), expected.getCorrelation(k));
+		}
+
+		assertThrows(IllegalArgumentException.class,()->{
+			new CorrelationPairCollector(0, 0.5);
+		});
+		assertThrows(IndexOutOfBoundsException.class,()->{
+			new CorrelationPairCollector(5, 0.5).getRow(0);
+		});
+	}
+
+	@Test
+	void testFromCovariance() {
+		CovarianceAccumulator accumulator = new CovarianceAccumulator(4);
+		for(int i=0;i<50;i++) {
+			double a = i%7;
+			accumulator.add(new double[] {a, 2*a+1, (i*3)%11, -a+(i%2)*0.1}, 1);
+		}
+		CorrelationPairCollector collector = CorrelationPairCollector.fromCovariance(accumulator.getCovariance(), 2, 0.5);
+		assertEquals(2, collector.size());
+		assertPair(collector, 0, 0, 1, 1);
+		assertEquals(0, collector.getRow(1));
+		assertEquals(3, collector.getColumn(1));
+		assertTrue(collector.getCorrelation(1)<-0.99);
+
+		double[][] covariance = accumulator.getCovarianceMatrix();
+		double expected = covariance[2][3]/Math.sqrt(covariance[2][2]*covariance[3][3]);
+		collector = CorrelationPairCollector.fromCovariance(accumulator.getCovariance(), 6, 0);
+		assertEquals(6, collector.size());
+		boolean found = false;
+		for(int k=0;k<collector.size();k++) {
+			if((collector.getRow(k)==2)&&(collector.getColumn(k)==3)) {
+				assertEqualsWithinMargin(expected, collector.getCorrelation(k), "Correlation (2,3)");
+				found = true;
+			}
+		}
+		assertTrue(found);
+	}
+
+	private static void assertPair(CorrelationPairCollector collector, int index, int row, int column, double r) {
+		assertEquals(row, collector.getRow(index), "Row "+index);
+		assertEquals(column, collector.getColumn(index), "Column "+index);
+		assertEqualsWithinMargin(r, collector.getCorrelation(index), "Correlation "+index);
+	}
+
+	private static void assertEqualsWithinMargin(double expected, double actual, String message) {
+		assertTrue(actual>=expected-ERROR_MARGIN,message+" ("+expected+"!="+actual+")");
+		assertTrue(actual<=expected+ERROR_MARGIN,message+" ("+expected+"!="+actual+")");
+	}
+}
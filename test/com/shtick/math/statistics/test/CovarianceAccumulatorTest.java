@@ -0,0 +1,443 @@
+package com.shtick.math.statistics.test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import org.junit.jupiter.api.Test;
+
+import com.shtick.math.statistics.CovarianceAccumulator;
+import com.shtick.math.statistics.StatsDataSet;
+import com.shtick.math.statistics.WeightedDatum;
+
+class CovarianceAccumulatorTest {
+	private static final double ERROR_MARGIN = 0.00001;
+	private static final double[][] DATA = new double[][] {{1,2,3},{2,4,1},{3,5,2},{4,4,4},{5,7,3},{6,8,1}};
+	private static final double[] WEIGHTS = new double[] {1,2,1,0.5,1,3};
+
+	@Test
+	void testConstructor() {
+		{ // Success case
+			CovarianceAccumulator accumulator = new CovarianceAccumulator(3);
+			assertEquals(3, accumulator.getVariableCount());
+			assertEquals(0, accumulator.getCount());
+			assertEquals(0, accumulator.getWeightTotal());
+		}
+
+		{ // Failure case
+			assertThrows(Throwable.class,()->{
+				new CovarianceAccumulator(0);
+			});
+		}
+	}
+
+	@Test
+	void testAdd() {
+		{ // Unweighted case
+			CovarianceAccumulator accumulator = new CovarianceAccumulator(3);
+			for(double[] datum:DATA)
+				accumulator.add(datum, 1);
+			assertEquals(DATA.length, accumulator.getCount());
+			assertEqualsWithinMargin(DATA.length, accumulator.getWeightTotal(), "Weight total");
+			assertEqualsMeansWithinMargin(getMeans(DATA, null), accumulator.getMeans(), "Unweighted means");
+			assertEqualsCovarianceWithinMargin(getCovariance(DATA, null), accumulator.getCovarianceMatrix(), "Unweighted covariance");
+		}
+
+		{ // Weighted case
+			CovarianceAccumulator accumulator = new CovarianceAccumulator(3);
+			for(int i=0;i<DATA.length;i++)
+				accumulator.add(DATA[i], WEIGHTS[i]);
+			assertEqualsWithinMargin(8.5, accumulator.getWeightTotal(), "Weight total");
+			assertEqualsMeansWithinMargin(getMeans(DATA, WEIGHTS), accumulator.getMeans(), "Weighted means");
+			assertEqualsCovarianceWithinMargin(getCovariance(DATA, WEIGHTS), accumulator.getCovarianceMatrix(), "Weighted covariance");
+		}
+
+		{ // Zero weight case
+			CovarianceAccumulator accumulator = new CovarianceAccumulator(3);
+			accumulator.add(DATA[0], 0);
+			assertEquals(0, accumulator.getCount());
+			assertEquals(0, accumulator.getWeightTotal());
+		}
+
+		{ // Large offset case
+			CovarianceAccumulator accumulator = new CovarianceAccumulator(3);
+			double[][] offsetData = new double[DATA.length][3];
+			for(int i=0;i<DATA.length;i++) {
+				for(int j=0;j<3;j++)
+					offsetData[i][j] = DATA[i][j]+1e9;
+				accumulator.add(offsetData[i], 1);
+			}
+			assertEqualsCovarianceWithinMargin(getCovariance(DATA, null), accumulator.getCovarianceMatrix(), "Offset covariance");
+		}
+
+		{ // Mismatched size case
+			CovarianceAccumulator accumulator = new CovarianceAccumulator(3);
+			assertThrows(Throwable.class,()->{
+				accumulator.add(new double[] {1,2}, 1);
+			});
+		}
+	}
+
+	@Test
+	void testMerge() {
+		{ // Split case
+			CovarianceAccumulator whole = new CovarianceAccumulator(3);
+			CovarianceAccumulator first = new CovarianceAccumulator(3);
+			CovarianceAccumulator second = new CovarianceAccumulator(3);
+			for(int i=0;i<DATA.length;i++) {
+				whole.add(DATA[i], WEIGHTS[i]);
+				if(i<2)
+					first.add(DATA[i], WEIGHTS[i]);
+				else
+					second.add(DATA[i], WEIGHTS[i]);
+			}
+			first.merge(second);
+			assertEquals(whole.getCount(), first.getCount());
+			assertEqualsWithinMargin(whole.getWeightTotal(), first.getWeightTotal(), "Merged weight total");
+			assertEqualsMeansWithinMargin(whole.getMeans(), first.getMeans(), "Merged means");
+			assertEqualsCovarianceWithinMargin(whole.getCovarianceMatrix(), first.getCovarianceMatrix(), "Merged covariance");
+		}
+
+		{ // Empty case
+			CovarianceAccumulator empty = new CovarianceAccumulator(3);
+			CovarianceAccumulator full = new CovarianceAccumulator(3);
+			for(double[] datum:DATA)
+				full.add(datum, 1);
+			empty.merge(full);
+			assertEqualsMeansWithinMargin(full.getMeans(), empty.getMeans(), "Merged into empty means");
+			assertEqualsCovarianceWithinMargin(full.getCovarianceMatrix(), empty.getCovarianceMatrix(), "Merged into empty covariance");
+		}
+
+		{ // Mismatched case
+			assertThrows(Throwable.class,()->{
+				new CovarianceAccumulator(3).merge(new CovarianceAccumulator(2));
+			});
+		}
+	}
+
+	@Test
+	void testAddAll() {
+		{ // Reused datum case
+			CovarianceAccumulator expected = new CovarianceAccumulator(3);
+			for(int i=0;i<DATA.length;i++)
+				expected.add(DATA[i], WEIGHTS[i]);
+			CovarianceAccumulator accumulator = new CovarianceAccumulator(3);
+			accumulator.addAll(new ReusingDataSet());
+			assertEquals(expected.getCount(), accumulator.getCount());
+			assertEqualsMeansWithinMargin(expected.getMeans(), accumulator.getMeans(), "Reused datum means");
+			assertEqualsCovarianceWithinMargin(expected.getCovarianceMatrix(), accumulator.getCovarianceMatrix(), "Reused datum covariance");
+		}
+	}
+
+	@Test
+	void testAddBlock() {
+		CovarianceAccumulator expected = new CovarianceAccumulator(3);
+		for(int i=0;i<DATA.length;i++)
+			expected.add(DATA[i], WEIGHTS[i]);
+
+		for(int blockRows=1;blockRows<=DATA.length+1;blockRows++) {
+			CovarianceAccumulator accumulator = new CovarianceAccumulator(3);
+			accumulator.addBlocks(new ReusingDataSet().blockReader(), blockRows);
+			assertEquals(expected.getCount(), accumulator.getCount());
+			assertEqualsWithinMargin(expected.getWeightTotal(), accumulator.getWeightTotal(), "Block weight total for "+blockRows+" rows");
+			assertEqualsMeansWithinMargin(expected.getMeans(), accumulator.getMeans(), "Block means for "+blockRows+" rows");
+			assertEqualsCovarianceWithinMargin(expected.getCovarianceMatrix(), accumulator.getCovarianceMatrix(), "Block covariance for "+blockRows+" rows");
+		}
+
+		{ // Zero weight case
+			CovarianceAccumulator accumulator = new CovarianceAccumulator(3);
+			accumulator.addBlock(new double[] {1,2,3,4,5,6}, new double[] {0,0}, 2);
+			assertEquals(0, accumulator.getCount());
+			assertEquals(0, accumulator.getWeightTotal());
+		}
+
+		{ // Negative weight case
+			CovarianceAccumulator accumulator = new CovarianceAccumulator(3);
+			assertThrows(IllegalArgumentException.class,()->{
+				accumulator.addBlock(new double[] {1,2,3,4,5,6}, new double[] {1,-1}, 2);
+			});
+		}
+	}
+
+	@Test
+	void testAddBlockVariableCounts() {
+		// With few rows the triangle is a single tile, and odd variable counts leave a last row that isn't paired with another,
+		// and columns that can't be taken two at a time.
+		for(int variableCount=1;variableCount<=9;variableCount++)
+			assertAddBlockMatchesAdd(variableCount, 5, variableCount+" variables");
+	}
+
+	@Test
+	void testAddBlockTiling() {
+		// The tile width is TILE_BYTES/(16*rows), so 256 rows give tiles of 32 variables, and 264 rows give tiles of 31.
+		// 71 variables is then two whole tiles and an odd remainder.
+		assertAddBlockMatchesAdd(71, 256, "Tiles of 32");
+		assertAddBlockMatchesAdd(71, 264, "Tiles of 31");
+	}
+
+	@Test
+	void testCollector() {
+		CovarianceAccumulator expected = new CovarianceAccumulator(3);
+		for(int i=0;i<DATA.length;i++)
+			expected.add(DATA[i], WEIGHTS[i]);
+
+		{ // Sequential case
+			CovarianceAccumulator accumulator = new ReusingDataSet().stream().collect(CovarianceAccumulator.collector(3));
+			assertEquals(expected.getCount(), accumulator.getCount());
+			assertEqualsCovarianceWithinMargin(expected.getCovarianceMatrix(), accumulator.getCovarianceMatrix(), "Sequential stream covariance");
+		}
+
+		{ // Parallel case, where split batches must copy reused data
+			CovarianceAccumulator accumulator = new ReusingDataSet().parallelStream().collect(CovarianceAccumulator.collector(3));
+			assertEquals(expected.getCount(), accumulator.getCount());
+			assertEqualsMeansWithinMargin(expected.getMeans(), accumulator.getMeans(), "Parallel stream means");
+			assertEqualsCovarianceWithinMargin(expected.getCovarianceMatrix(), accumulator.getCovarianceMatrix(), "Parallel stream covariance");
+		}
+	}
+
+	@Test
+	void testDecay() {
+		double halfLife = 2.5;
+		double decay = Math.pow(0.5, 1/halfLife);
+		// The equivalent weights, each scaled by the decay for each later datum with non-zero weight.
+		double[] weights = new double[] {1,2,0,0.5,1,3};
+		double[] decayedWeights = new double[weights.length];
+		double scale = 1;
+		for(int i=weights.length-1;i>=0;i--) {
+			decayedWeights[i] = weights[i]*scale;
+			if(weights[i]>0)
+				scale *= decay;
+		}
+		double[] expectedMeans = getMeans(DATA, decayedWeights);
+		double[][] expectedCovariance = getCovariance(DATA, decayedWeights);
+		double expectedWeightTotal = 0;
+		for(double weight:decayedWeights)
+			expectedWeightTotal += weight;
+
+		{ // Single datum case
+			CovarianceAccumulator accumulator = new CovarianceAccumulator(3, halfLife);
+			for(int i=0;i<DATA.length;i++)
+				accumulator.add(DATA[i], weights[i]);
+			assertEquals(5, accumulator.getCount());
+			assertEqualsWithinMargin(expectedWeightTotal, accumulator.getWeightTotal(), "Decayed weight total");
+			assertEqualsMeansWithinMargin(expectedMeans, accumulator.getMeans(), "Decayed means");
+			assertEqualsCovarianceWithinMargin(expectedCovariance, accumulator.getCovarianceMatrix(), "Decayed covariance");
+		}
+
+		{ // Block case
+			double[] block = new double[DATA.length*3];
+			for(int i=0;i<DATA.length;i++)
+				System.arraycopy(DATA[i], 0, block, i*3, 3);
+			CovarianceAccumulator accumulator = new CovarianceAccumulator(3, halfLife);
+			accumulator.add(DATA[0], weights[0]);
+			accumulator.addBlock(Arrays.copyOfRange(block, 3, block.length), Arrays.copyOfRange(weights, 1, weights.length), DATA.length-1);
+			assertEqualsWithinMargin(expectedWeightTotal, accumulator.getWeightTotal(), "Block decayed weight total");
+			assertEqualsMeansWithinMargin(expectedMeans, accumulator.getMeans(), "Block decayed means");
+			assertEqualsCovarianceWithinMargin(expectedCovariance, accumulator.getCovarianceMatrix(), "Block decayed covariance");
+		}
+
+		{ // Merge case
+			CovarianceAccumulator first = new CovarianceAccumulator(3, halfLife);
+			CovarianceAccumulator second = new CovarianceAccumulator(3, halfLife);
+			for(int i=0;i<DATA.length;i++)
+				((i<3)?first:second).add(DATA[i], weights[i]);
+			first.merge(second);
+			assertEqualsWithinMargin(expectedWeightTotal, first.getWeightTotal(), "Merged decayed weight total");
+			assertEqualsCovarianceWithinMargin(expectedCovariance, first.getCovarianceMatrix(), "Merged decayed covariance");
+
+			assertThrows(IllegalArgumentException.class,()->{
+				first.merge(new CovarianceAccumulator(3));
+			});
+		}
+
+		{ // Invalid half-life case
+			assertThrows(IllegalArgumentException.class,()->{
+				new CovarianceAccumulator(3, 0);
+			});
+		}
+	}
+
+	@Test
+	void testPersistence() throws IOException {
+		CovarianceAccumulator expected = new CovarianceAccumulator(3);
+		for(int i=0;i<DATA.length;i++)
+			expected.add(DATA[i], WEIGHTS[i]);
+
+		{ // Append after load case
+			CovarianceAccumulator history = new CovarianceAccumulator(3);
+			for(int i=0;i<3;i++)
+				history.add(DATA[i], WEIGHTS[i]);
+			File file = File.createTempFile("psych", ".cov");
+			try {
+				history.save(file);
+				CovarianceAccumulator loaded = CovarianceAccumulator.load(file);
+				assertEquals(history.getCount(), loaded.getCount());
+				assertEqualsCovarianceWithinMargin(history.getCovarianceMatrix(), loaded.getCovarianceMatrix(), "Loaded covariance");
+				for(int i=3;i<DATA.length;i++)
+					loaded.add(DATA[i], WEIGHTS[i]);
+				loaded.save(file);
+				loaded = CovarianceAccumulator.load(file);
+				assertEquals(expected.getCount(), loaded.getCount());
+				assertEqualsWithinMargin(expected.getWeightTotal(), loaded.getWeightTotal(), "Appended weight total");
+				assertEqualsMeansWithinMargin(expected.getMeans(), loaded.getMeans(), "Appended means");
+				assertEqualsCovarianceWithinMargin(expected.getCovarianceMatrix(), loaded.getCovarianceMatrix(), "Appended covariance");
+			}
+			finally {
+				file.delete();
+			}
+		}
+
+		{ // Stream case
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			expected.write(out);
+			CovarianceAccumulator read = CovarianceAccumulator.read(new ByteArrayInputStream(out.toByteArray()));
+			assertEquals(3, read.getVariableCount());
+			assertEquals(Double.POSITIVE_INFINITY, read.getHalfLife());
+			assertEqualsCovarianceWithinMargin(expected.getCovarianceMatrix(), read.getCovarianceMatrix(), "Read covariance");
+
+			{ // Truncated case
+				byte[] truncated = Arrays.copyOf(out.toByteArray(), out.size()-1);
+				assertThrows(IOException.class,()->{
+					CovarianceAccumulator.read(new ByteArrayInputStream(truncated));
+				});
+			}
+		}
+
+		{ // Half-life case
+			CovarianceAccumulator decayed = new CovarianceAccumulator(3, 10);
+			for(int i=0;i<DATA.length;i++)
+				decayed.add(DATA[i], WEIGHTS[i]);
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			decayed.write(out);
+			CovarianceAccumulator read = CovarianceAccumulator.read(new ByteArrayInputStream(out.toByteArray()));
+			assertEquals(10, read.getHalfLife());
+			read.add(DATA[0], 1);
+			decayed.add(DATA[0], 1);
+			assertEqualsCovarianceWithinMargin(decayed.getCovarianceMatrix(), read.getCovarianceMatrix(), "Read decayed covariance");
+		}
+
+		{ // Not an accumulation case
+			assertThrows(IOException.class,()->{
+				CovarianceAccumulator.read(new ByteArrayInputStream(new byte[] {1,2,3,4,5,6,7,8,9,10,11,12}));
+			});
+		}
+	}
+
+	private static double[] getMeans(double[][] data, double[] weights) {
+		double[] means = new double[data[0].length];
+		double weightTotal = 0;
+		for(int i=0;i<data.length;i++) {
+			double weight = (weights==null)?1:weights[i];
+			weightTotal+=weight;
+			for(int j=0;j<means.length;j++)
+				means[j]+=data[i][j]*weight;
+		}
+		for(int j=0;j<means.length;j++)
+			means[j]/=weightTotal;
+		return means;
+	}
+
+	private static double[][] getCovariance(double[][] data, double[] weights) {
+		double[] means = getMeans(data, weights);
+		double[][] covariance = new double[means.length][means.length];
+		double weightTotal = 0;
+		for(int i=0;i<data.length;i++) {
+			double weight = (weights==null)?1:weights[i];
+			weightTotal+=weight;
+			for(int j=0;j<means.length;j++)
+				for(int k=0;k<means.length;k++)
+					covariance[j][k]+=(data[i][j]-means[j])*(data[i][k]-means[k])*weight;
+		}
+		for(int j=0;j<means.length;j++)
+			for(int k=0;k<means.length;k++)
+				covariance[j][k]/=weightTotal;
+		return covariance;
+	}
+
+	private static class ReusingDataSet extends StatsDataSet {
+		@Override
+		public Iterator<WeightedDatum> iterator() {
+			WeightedDatum datum = new WeightedDatum();
+			datum.datum = new double[3];
+			return new Iterator<WeightedDatum>() {
+				private int row = 0;
+
+				@Override
+				public boolean hasNext() {
+					return row<DATA.length;
+				}
+
+				@Override
+				public WeightedDatum next() {
+					System.arraycopy(DATA[row], 0, datum.datum, 0, 3);
+					datum.weight = WEIGHTS[row];
+					row++;
+					return datum;
+				}
+			};
+		}
+
+		@Override
+		public void setMean(int var, float mean) {}
+
+		@Override
+		public int size() {
+			return DATA.length;
+		}
+
+		@Override
+		public int getVariableCount() {
+			return 3;
+		}
+
+		@Override
+		public boolean reusesDatum() {
+			return true;
+		}
+	}
+
+	/**
+	 * Adds two blocks of generated data with addBlock(), and the same data a row at a time with add(), and compares the results.
+	 */
+	private static void assertAddBlockMatchesAdd(int variableCount, int rows, String message) {
+		double[] block = new double[2*rows*variableCount];
+		double[] weights = new double[2*rows];
+		for(int r=0;r<2*rows;r++) {
+			weights[r] = 1+(r%4)*0.5;
+			for(int v=0;v<variableCount;v++)
+				block[r*variableCount+v] = Math.sin(r*0.37+v*1.3)+(v%3)*(r%5)*0.25;
+		}
+		CovarianceAccumulator expected = new CovarianceAccumulator(variableCount);
+		for(int r=0;r<2*rows;r++)
+			expected.add(Arrays.copyOfRange(block, r*variableCount, (r+1)*variableCount), weights[r]);
+		CovarianceAccumulator accumulator = new CovarianceAccumulator(variableCount);
+		accumulator.addBlock(block, weights, rows);
+		accumulator.addBlock(Arrays.copyOfRange(block, rows*variableCount, block.length), Arrays.copyOfRange(weights, rows, weights.length), rows);
+		assertEquals(expected.getCount(), accumulator.getCount(), message);
+		assertEqualsWithinMargin(expected.getWeightTotal(), accumulator.getWeightTotal(), message+": Weight total");
+		assertEqualsMeansWithinMargin(expected.getMeans(), accumulator.getMeans(), message+": Means");
+		assertEqualsCovarianceWithinMargin(expected.getCovarianceMatrix(), accumulator.getCovarianceMatrix(), message+": Covariance");
+	}
+
+	private static void assertEqualsWithinMargin(double expected, double actual, String message) {
+		assertTrue(actual>=expected-ERROR_MARGIN,message+" ("+expected+"!="+actual+")");
+		assertTrue(actual<=expected+ERROR_MARGIN,message+" ("+expected+"!="+actual+")");
+	}
+
+	private static void assertEqualsMeansWithinMargin(double[] expected, double[] actual, String message) {
+		assertEquals(expected.length,actual.length,message+" (Unequal lengths)");
+		for(int i=0;i<expected.length;i++)
+			assertEqualsWithinMargin(expected[i],actual[i],message+" (Mismatch at "+i+")");
+	}
+
+	private static void assertEqualsCovarianceWithinMargin(double[][] expected, double[][] actual, String message) {
+		assertEquals(expected.length,actual.length,message+" (Unequal rows)");
+		for(int i=0;i<expected.length;i++)
+			assertEqualsMeansWithinMargin(expected[i],actual[i],message+" (Row "+i+")");
+	}
+}
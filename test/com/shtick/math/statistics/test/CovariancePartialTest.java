@@ -0,0 +1,98 @@
+package com.shtick.math.statistics.test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.jupiter.api.Test;
+
+import com.shtick.math.statistics.CovarianceAccumulator;
+import com.shtick.math.statistics.CovariancePartial;
+import com.shtick.math.statistics.pca.PrincipleComponentAnalysis;
+import com.shtick.math.statistics.pca.PrincipleComponentSystem;
+
+class CovariancePartialTest {
+	private static final double ERROR_MARGIN = 0.00001;
+	private static final String[] NAMES = new String[] {"A","B","C"};
+
+	@Test
+	void testMerge() throws Throwable {
+		CovarianceAccumulator expected = new CovarianceAccumulator(3);
+		File[] files = new File[3];
+		try {
+			for(int slice=0;slice<files.length;slice++) {
+				CovarianceAccumulator accumulator = new CovarianceAccumulator(3);
+				for(int i=slice*50;i<(slice+1)*50;i++) {
+					double[] datum = new double[] {i%7, (i*3)%11, i%7+(i%5)*0.5};
+					expected.add(datum, 1);
+					accumulator.add(datum, 1);
+				}
+				files[slice] = File.createTempFile("psych", ".partial");
+				new CovariancePartial(NAMES, accumulator).save(files[slice]);
+			}
+			CovariancePartial merged = CovariancePartial.load(files);
+			assertArrayEquals(NAMES, merged.getVariableNames());
+			assertEquals(expected.getCount(), merged.getAccumulator().getCount());
+			double[][] expectedCovariance = expected.getCovarianceMatrix();
+			double[][] mergedCovariance = merged.getAccumulator().getCovarianceMatrix();
+			for(int i=0;i<3;i++) {
+				assertEqualsWithinMargin(expected.getMeans()[i], merged.getAccumulator().getMeans()[i], "Merged mean "+i);
+				for(int j=0;j<3;j++)
+					assertEqualsWithinMargin(expectedCovariance[i][j], mergedCovariance[i][j], "Merged covariance "+i+","+j);
+			}
+
+			PrincipleComponentSystem expectedSystem = PrincipleComponentAnalysis.getPrincipleComponents(expected, null);
+			PrincipleComponentSystem mergedSystem = PrincipleComponentAnalysis.getPrincipleComponents(merged.getAccumulator(), null);
+			for(int i=0;i<3;i++)
+				assertEqualsWithinMargin(expectedSystem.eigenvalues[i], mergedSystem.eigenvalues[i], "Eigenvalue "+i);
+
+			{ // Mismatched names case
+				CovariancePartial other = new CovariancePartial(new String[] {"A","C","B"}, new CovarianceAccumulator(3));
+				assertThrows(IllegalArgumentException.class,()->{
+					merged.merge(other);
+				});
+				other.save(files[1]);
+				assertThrows(IOException.class,()->{
+					CovariancePartial.load(files);
+				});
+			}
+		}
+		finally {
+			for(File file:files)
+				if(file!=null)
+					file.delete();
+		}
+	}
+
+	@Test
+	void testRead() throws IOException {
+		CovarianceAccumulator accumulator = new CovarianceAccumulator(3);
+		accumulator.add(new double[] {1,2,3}, 2);
+		accumulator.add(new double[] {2,0,-1}, 1);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new CovariancePartial(NAMES, accumulator).write(out);
+		CovariancePartial read = CovariancePartial.read(new ByteArrayInputStream(out.toByteArray()));
+		assertArrayEquals(NAMES, read.getVariableNames());
+		assertEqualsWithinMargin(3, read.getAccumulator().getWeightTotal(), "Read weight total");
+		assertEqualsWithinMargin(accumulator.getCovarianceMatrix()[2][0], read.getAccumulator().getCovarianceMatrix()[2][0], "Read covariance");
+
+		{ // Failure cases
+			assertThrows(IllegalArgumentException.class,()->{
+				new CovariancePartial(new String[] {"A"}, accumulator);
+			});
+			ByteArrayOutputStream accumulatorOut = new ByteArrayOutputStream();
+			accumulator.write(accumulatorOut);
+			assertThrows(IOException.class,()->{
+				CovariancePartial.read(new ByteArrayInputStream(accumulatorOut.toByteArray()));
+			});
+		}
+	}
+
+	private static void assertEqualsWithinMargin(double expected, double actual, String message) {
+		assertTrue(actual>=expected-ERROR_MARGIN,message+" ("+expected+"!="+actual+")");
+		assertTrue(actual<=expected+ERROR_MARGIN,message+" ("+expected+"!="+actual+")");
+	}
+}
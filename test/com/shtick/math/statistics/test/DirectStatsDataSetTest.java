@@ -0,0 +1,138 @@
+package com.shtick.math.statistics.test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+import com.shtick.math.statistics.WeightedDatum;
+import com.shtick.math.statistics.data.DirectStatsDataSet;
+
+class DirectStatsDataSetTest {
+	private static final double ERROR_MARGIN = 0.00001;
+
+	@Test
+	void testAdd() {
+		{ // Multiple block case
+			DirectStatsDataSet data = new DirectStatsDataSet(3, 64);
+			for(int i=0;i<100;i++)
+				data.add(new double[] {i,i*0.5,-i}, i%3);
+			assertEquals(100, data.size());
+			assertEquals(3, data.getVariableCount());
+			for(int i=0;i<100;i++) {
+				assertEqualsWithinMargin(i%3, data.getWeight(i), "Weight at row "+i);
+				assertEqualsWithinMargin(i, data.getValue(i, 0), "Value at row "+i);
+				assertEqualsWithinMargin(i*0.5, data.getValue(i, 1), "Value at row "+i);
+				assertEqualsWithinMargin(-i, data.getValue(i, 2), "Value at row "+i);
+			}
+		}
+
+		{ // Growing block case
+			// Blocks start at 64KB, 2048 rows of 3 variables, and double up to 1MB, after which they are all 1MB.
+			DirectStatsDataSet data = new DirectStatsDataSet(3, 1<<20);
+			for(int i=0;i<200000;i++)
+				data.add(new double[] {i,i*0.5,-i}, i%3);
+			assertEquals(200000, data.size());
+			for(int i=0;i<200000;i++) {
+				assertEquals(i%3, data.getWeight(i), "Weight at row "+i);
+				assertEquals(i, data.getValue(i, 0), "Value at row "+i);
+				assertEquals(-i, data.getValue(i, 2), "Value at row "+i);
+			}
+		}
+
+		{ // Mismatched size case
+			DirectStatsDataSet data = new DirectStatsDataSet(3);
+			assertThrows(IllegalArgumentException.class,()->{
+				data.add(new double[] {1,2}, 1);
+			});
+		}
+
+		{ // Out of range case
+			DirectStatsDataSet data = new DirectStatsDataSet(3);
+			assertThrows(IndexOutOfBoundsException.class,()->{
+				data.getValue(0, 0);
+			});
+		}
+	}
+
+	@Test
+	void testIterator() {
+		DirectStatsDataSet data = new DirectStatsDataSet(2, 40);
+		for(int i=0;i<10;i++)
+			data.add(new double[] {i,10-i}, 1);
+		data.setMean(0, 4.5f);
+		int row = 0;
+		for(WeightedDatum datum:data) {
+			assertEqualsWithinMargin(1, datum.weight, "Weight at row "+row);
+			assertEqualsWithinMargin(row-4.5, datum.datum[0], "Value at row "+row);
+			assertEqualsWithinMargin(10-row, datum.datum[1], "Value at row "+row);
+			row++;
+		}
+		assertEquals(10, row);
+	}
+
+	@Test
+	void testMissingValues() {
+		DirectStatsDataSet source = new DirectStatsDataSet(70, 1<<12, true);
+		long[] presence = new long[WeightedDatum.getPresenceLength(70)];
+		double[] row = new double[70];
+		for(int r=0;r<20;r++) {
+			WeightedDatum.setAllPresent(presence, 70);
+			for(int i=0;i<70;i++) {
+				if((i+r)%9==0) {
+					row[i] = Double.NaN;
+					presence[i>>>6] &= ~(1L<<i);
+				}
+				else {
+					row[i] = r*100+i;
+				}
+			}
+			source.add(row, presence, 1);
+		}
+		assertTrue(source.allowsMissingValues());
+
+		DirectStatsDataSet copy = DirectStatsDataSet.copyOf(source);
+		assertTrue(copy.allowsMissingValues());
+		assertEquals(20, copy.size());
+		int r = 0;
+		for(WeightedDatum datum:copy) {
+			for(int i=0;i<70;i++) {
+				if((i+r)%9==0) {
+					assertFalse(datum.isPresent(i), "Presence of "+i+" at row "+r);
+					assertTrue(Double.isNaN(datum.datum[i]), "Value of "+i+" at row "+r);
+				}
+				else {
+					assertTrue(datum.isPresent(i), "Presence of "+i+" at row "+r);
+					assertEquals(r*100+i, datum.datum[i], "Value of "+i+" at row "+r);
+				}
+			}
+			r++;
+		}
+		assertEquals(20, r);
+
+		// Data sets without missing values reject rows that have them.
+		DirectStatsDataSet complete = new DirectStatsDataSet(70);
+		assertFalse(complete.allowsMissingValues());
+		assertThrows(IllegalArgumentException.class,()->{
+			complete.add(row, presence, 1);
+		});
+	}
+
+	@Test
+	void testParallelStream() {
+		DirectStatsDataSet data = new DirectStatsDataSet(2, 256);
+		double expectedSum = 0;
+		for(int i=0;i<10000;i++) {
+			data.add(new double[] {i,1}, 1);
+			expectedSum += i;
+		}
+		assertEquals(10000, data.spliterator().estimateSize());
+		assertEquals(10000, data.parallelStream().count());
+		double sum = data.parallelStream().mapToDouble((datum)->datum.datum[0]).sum();
+		assertEqualsWithinMargin(expectedSum, sum, "Parallel sum");
+	}
+
+	private static void assertEqualsWithinMargin(double expected, double actual, String message) {
+		assertTrue(actual>=expected-ERROR_MARGIN,message+" ("+expected+"!="+actual+")");
+		assertTrue(actual<=expected+ERROR_MARGIN,message+" ("+expected+"!="+actual+")");
+	}
+}
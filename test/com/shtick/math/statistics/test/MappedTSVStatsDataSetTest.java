@@ -0,0 +1,292 @@
+package com.shtick.math.statistics.test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.jupiter.api.Test;
+
+import com.shtick.math.statistics.CovarianceAccumulator;
+import com.shtick.math.statistics.PairwiseCovarianceAccumulator;
+import com.shtick.math.statistics.WeightedDatum;
+import com.shtick.math.statistics.data.FieldPredicate;
+import com.shtick.math.statistics.data.MappedTSVStatsDataSet;
+import com.shtick.math.statistics.data.TSVRowParser;
+
+class MappedTSVStatsDataSetTest {
+	private static final double ERROR_MARGIN = 0.00001;
+
+	@Test
+	void testParseNumber() {
+		String[] numbers = new String[] {"0","5","-3","+7","12.5","-0.001","3e2","1.5E-3","123456789012345678901","0.1","9007199254740993","4.9e-324","NaN"};
+		for(String number:numbers) {
+			ByteBuffer buffer = ByteBuffer.wrap(number.getBytes(StandardCharsets.US_ASCII));
+			assertEquals(Double.parseDouble(number), TSVRowParser.parseNumber(buffer, 0, buffer.limit()), number);
+			// Characters within a longer line.
+			String line = "x\t"+number+"\ty";
+			assertEquals(Double.parseDouble(number), TSVRowParser.parseNumber(line, 2, 2+number.length()), number);
+		}
+
+		{ // Failure cases
+			for(String number:new String[] {"","-","1e","abc","1.2.3"}) {
+				ByteBuffer buffer = ByteBuffer.wrap(number.getBytes(StandardCharsets.US_ASCII));
+				assertThrows(NumberFormatException.class,()->{
+					TSVRowParser.parseNumber(buffer, 0, buffer.limit());
+				},number);
+				assertThrows(NumberFormatException.class,()->{
+					TSVRowParser.parseNumber(number, 0, number.length());
+				},number);
+			}
+		}
+	}
+
+	@Test
+	void testIteration() throws IOException {
+		File file = createFile("A\tcountry\tB\tC\r\n1\tUS\t2\t3\r\n\r\n4\tGB\t5.5\t6\r\n7\tNZ\t8\t-9");
+		try {
+			Set<String> ignoreColumns = new HashSet<>();
+			ignoreColumns.add("country");
+			try(MappedTSVStatsDataSet data = new MappedTSVStatsDataSet(file, ignoreColumns)){
+				assertEquals(3, data.getVariableCount());
+				assertArrayEquals(new String[] {"A","B","C"}, data.getVariableNames());
+				assertEquals(3, data.size());
+				double[][] expected = new double[][] {{1,2,3},{4,5.5,6},{7,8,-9}};
+				int row = 0;
+				for(WeightedDatum datum:data) {
+					assertEqualsWithinMargin(1, datum.weight, "Weight at row "+row);
+					for(int i=0;i<3;i++)
+						assertEqualsWithinMargin(expected[row][i], datum.datum[i], "Value at row "+row+", column "+i);
+					row++;
+				}
+				assertEquals(3, row);
+
+				{ // Mean adjusted case
+					data.setMean(0, 4);
+					Iterator<WeightedDatum> iterator = data.iterator();
+					assertEqualsWithinMargin(-3, iterator.next().datum[0], "Mean adjusted value");
+				}
+			}
+		}
+		finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	void testAccumulate() throws IOException {
+		StringBuilder content = new StringBuilder("A\tB\tC\n");
+		for(int i=0;i<200;i++)
+			content.append(i%5).append('\t').append((i*7)%11).append('\t').append((i*i)%13).append('\n');
+		File file = createFile(content.toString());
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			try(MappedTSVStatsDataSet data = new MappedTSVStatsDataSet(file, new HashSet<>())){
+				CovarianceAccumulator expected = new CovarianceAccumulator(3);
+				expected.addAll(data);
+				for(long chunkSize:new long[] {1,7,100,1<<20}) {
+					CovarianceAccumulator actual = data.accumulate(pool, chunkSize);
+					assertEquals(expected.getCount(), actual.getCount(), "Row count for chunk size "+chunkSize);
+					double[] expectedMeans = expected.getMeans();
+					double[] actualMeans = actual.getMeans();
+					double[][] expectedCovariance = expected.getCovarianceMatrix();
+					double[][] actualCovariance = actual.getCovarianceMatrix();
+					for(int i=0;i<3;i++) {
+						assertEqualsWithinMargin(expectedMeans[i], actualMeans[i], "Mean for chunk size "+chunkSize);
+						for(int j=0;j<3;j++)
+							assertEqualsWithinMargin(expectedCovariance[i][j], actualCovariance[i][j], "Covariance for chunk size "+chunkSize);
+					}
+				}
+			}
+		}
+		finally {
+			pool.shutdown();
+			file.delete();
+		}
+	}
+
+	@Test
+	void testMismatchedRow() throws IOException {
+		File file = createFile("A\tB\n1\t2\n3\n");
+		try {
+			try(MappedTSVStatsDataSet data = new MappedTSVStatsDataSet(file, new HashSet<>())){
+				Iterator<WeightedDatum> iterator = data.iterator();
+				iterator.next();
+				assertThrows(Throwable.class,()->{
+					iterator.next();
+				});
+			}
+		}
+		finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	void testProjection() throws IOException {
+		File file = createFile("id\tA\tB\tcomment\tcountry\nx1\t1\t2\tnot a number\tUS\nx2\t3\t4\t\tGB\n");
+		try {
+			Set<String> ignoreColumns = new HashSet<>();
+			ignoreColumns.add("id");
+			ignoreColumns.add("comment");
+			ignoreColumns.add("country");
+			try(MappedTSVStatsDataSet data = new MappedTSVStatsDataSet(file, ignoreColumns)){
+				assertArrayEquals(new String[] {"A","B"}, data.getVariableNames());
+				double[][] expected = new double[][] {{1,2},{3,4}};
+				int row = 0;
+				for(WeightedDatum datum:data) {
+					assertEqualsWithinMargin(expected[row][0], datum.datum[0], "Value at row "+row);
+					assertEqualsWithinMargin(expected[row][1], datum.datum[1], "Value at row "+row);
+					row++;
+				}
+				assertEquals(2, row);
+			}
+		}
+		finally {
+			file.delete();
+		}
+
+		{ // Short row case, where a parsed column is missing
+			File shortFile = createFile("A\tB\tcountry\n1\t2\tUS\n3\n");
+			try {
+				Set<String> ignoreColumns = new HashSet<>();
+				ignoreColumns.add("country");
+				try(MappedTSVStatsDataSet data = new MappedTSVStatsDataSet(shortFile, ignoreColumns)){
+					Iterator<WeightedDatum> iterator = data.iterator();
+					iterator.next();
+					assertThrows(Throwable.class,()->{
+						iterator.next();
+					});
+				}
+			}
+			finally {
+				shortFile.delete();
+			}
+		}
+	}
+
+	@Test
+	void testFilters() throws IOException {
+		StringBuilder content = new StringBuilder("A\tcountry\telapse\tB\n");
+		for(int i=0;i<1000;i++)
+			content.append(i).append('\t').append((i%3==0)?"US":"GB").append('\t').append(i%100).append('\t').append(i*2).append('\n');
+		// A rejected row is never converted, so it may hold anything after the filtered columns.
+		content.append("x\tGB\t5\tnot a number\n");
+		File file = createFile(content.toString());
+		try {
+			Set<String> ignoreColumns = new HashSet<>();
+			ignoreColumns.add("country");
+			ignoreColumns.add("elapse");
+			Map<String,FieldPredicate> filters = new HashMap<>();
+			filters.put("country", FieldPredicate.equalTo("US"));
+			filters.put("elapse", FieldPredicate.inRange(10, 89.5));
+			try(MappedTSVStatsDataSet data = new MappedTSVStatsDataSet(file, ignoreColumns, false, filters)){
+				CovarianceAccumulator expected = new CovarianceAccumulator(2);
+				for(int i=0;i<1000;i++)
+					if((i%3==0)&&(i%100>=10)&&(i%100<=89))
+						expected.add(new double[] {i,i*2}, 1);
+				assertEquals(expected.getCount(), data.size());
+				CovarianceAccumulator iterated = new CovarianceAccumulator(2);
+				for(WeightedDatum datum:data) {
+					assertEquals(0, ((int)datum.datum[0])%3, "Rejected row "+datum.datum[0]);
+					iterated.add(datum);
+				}
+				assertEquals(expected.getCount(), iterated.getCount());
+				assertEqualsWithinMargin(expected.getMeans()[1], iterated.getMeans()[1], "Iterated mean");
+
+				CovarianceAccumulator accumulated = data.accumulate(ForkJoinPool.commonPool(), 512);
+				assertEquals(expected.getCount(), accumulated.getCount());
+				assertEqualsWithinMargin(expected.getCovarianceMatrix()[0][1], accumulated.getCovarianceMatrix()[0][1], "Accumulated covariance");
+			}
+
+			{ // Unknown column case
+				Map<String,FieldPredicate> unknown = new HashMap<>();
+				unknown.put("region", FieldPredicate.equalTo("EU"));
+				assertThrows(IllegalArgumentException.class,()->{
+					new MappedTSVStatsDataSet(file, ignoreColumns, false, unknown).close();
+				});
+			}
+		}
+		finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	void testMissingValues() throws IOException {
+		File file = createFile("A\tB\tC\n1\t\t3\r\n4\t5\n\t8\t9\n");
+		try {
+			try(MappedTSVStatsDataSet data = new MappedTSVStatsDataSet(file, new HashSet<>(), true)){
+				assertTrue(data.allowsMissingValues());
+				boolean[][] expectedPresence = new boolean[][] {{true,false,true},{true,true,false},{false,true,true}};
+				double[][] expectedValues = new double[][] {{1,0,3},{4,5,0},{0,8,9}};
+				int row = 0;
+				for(WeightedDatum datum:data) {
+					for(int i=0;i<3;i++) {
+						assertEquals(expectedPresence[row][i], datum.isPresent(i), "Presence at row "+row+", variable "+i);
+						if(expectedPresence[row][i])
+							assertEqualsWithinMargin(expectedValues[row][i], datum.datum[i], "Value at row "+row+", variable "+i);
+						else
+							assertTrue(Double.isNaN(datum.datum[i]), "Missing value at row "+row+", variable "+i);
+					}
+					row++;
+				}
+				assertEquals(3, row);
+			}
+
+			{ // Parallel accumulation case
+				try(MappedTSVStatsDataSet data = new MappedTSVStatsDataSet(file, new HashSet<>(), true)){
+					PairwiseCovarianceAccumulator expected = new PairwiseCovarianceAccumulator(3);
+					expected.addAll(data);
+					for(long chunkSize:new long[] {1,5,1024}) {
+						PairwiseCovarianceAccumulator actual = data.accumulatePairwise(ForkJoinPool.commonPool(), chunkSize);
+						for(int i=0;i<3;i++) {
+							for(int j=0;j<3;j++) {
+								assertEquals(expected.getPairCounts()[i][j], actual.getPairCounts()[i][j], "Pair count at "+i+","+j+" for chunk size "+chunkSize);
+								assertEqualsWithinMargin(expected.getCovarianceMatrix()[i][j], actual.getCovarianceMatrix()[i][j], "Covariance at "+i+","+j+" for chunk size "+chunkSize);
+							}
+						}
+					}
+					assertEquals(2, expected.getPairCounts()[0][0]);
+					assertEquals(1, expected.getPairCounts()[0][1]);
+					assertThrows(IllegalStateException.class,()->{
+						data.accumulate(ForkJoinPool.commonPool());
+					});
+				}
+			}
+
+			{ // Missing values not allowed case
+				try(MappedTSVStatsDataSet data = new MappedTSVStatsDataSet(file, new HashSet<>())){
+					assertThrows(Throwable.class,()->{
+						data.iterator().next();
+					});
+				}
+			}
+		}
+		finally {
+			file.delete();
+		}
+	}
+
+	private static File createFile(String content) throws IOException {
+		File file = File.createTempFile("psych", ".tsv");
+		try(FileWriter out = new FileWriter(file)){
+			out.write(content);
+		}
+		return file;
+	}
+
+	private static void assertEqualsWithinMargin(double expected, double actual, String message) {
+		assertTrue(actual>=expected-ERROR_MARGIN,message+" ("+expected+"!="+actual+")");
+		assertTrue(actual<=expected+ERROR_MARGIN,message+" ("+expected+"!="+actual+")");
+	}
+}
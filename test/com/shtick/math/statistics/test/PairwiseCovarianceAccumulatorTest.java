@@ -0,0 +1,198 @@
+package com.shtick.math.statistics.test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+import com.shtick.math.statistics.CovarianceAccumulator;
+import com.shtick.math.statistics.PairwiseCovarianceAccumulator;
+import com.shtick.math.statistics.WeightedDatum;
+
+class PairwiseCovarianceAccumulatorTest {
+	private static final double ERROR_MARGIN = 0.00001;
+	private static final double N = Double.NaN;
+	private static final double[][] DATA = new double[][] {{1,2,3},{2,N,1},{3,5,N},{N,4,4},{5,7,3},{6,8,1},{N,N,2}};
+	private static final double[] WEIGHTS = new double[] {1,2,1,0.5,1,3,1};
+
+	@Test
+	void testAdd() {
+		{ // Unweighted case
+			PairwiseCovarianceAccumulator accumulator = new PairwiseCovarianceAccumulator(3);
+			for(double[] datum:DATA)
+				accumulator.add(datum, 1);
+			assertPairwise(DATA, null, accumulator, "Unweighted");
+		}
+
+		{ // Weighted case
+			PairwiseCovarianceAccumulator accumulator = new PairwiseCovarianceAccumulator(3);
+			for(int i=0;i<DATA.length;i++)
+				accumulator.add(DATA[i], WEIGHTS[i]);
+			assertPairwise(DATA, WEIGHTS, accumulator, "Weighted");
+		}
+
+		{ // Presence bitmask case
+			PairwiseCovarianceAccumulator accumulator = new PairwiseCovarianceAccumulator(3);
+			WeightedDatum datum = new WeightedDatum();
+			datum.datum = new double[3];
+			datum.presence = new long[1];
+			for(int i=0;i<DATA.length;i++) {
+				WeightedDatum.setAllPresent(datum.presence, 3);
+				for(int j=0;j<3;j++) {
+					// Missing values hold a stale value, which must be ignored.
+					datum.datum[j] = Double.isNaN(DATA[i][j])?1000:DATA[i][j];
+					if(Double.isNaN(DATA[i][j]))
+						datum.presence[0] &= ~(1L<<j);
+				}
+				datum.weight = WEIGHTS[i];
+				accumulator.add(datum);
+			}
+			assertPairwise(DATA, WEIGHTS, accumulator, "Presence bitmask");
+		}
+
+		{ // Complete case, which should match CovarianceAccumulator
+			double[][] complete = new double[][] {{1,2,3},{5,7,3},{6,8,1},{2,2,2}};
+			PairwiseCovarianceAccumulator accumulator = new PairwiseCovarianceAccumulator(3);
+			CovarianceAccumulator expected = new CovarianceAccumulator(3);
+			for(double[] datum:complete) {
+				accumulator.add(datum, 1);
+				expected.add(datum, 1);
+			}
+			assertEqualsArrayWithinMargin(expected.getMeans(), accumulator.getMeans(), "Complete means");
+			assertEqualsMatrixWithinMargin(expected.getCovarianceMatrix(), accumulator.getCovarianceMatrix(), "Complete covariance");
+		}
+
+		{ // Never present together case
+			PairwiseCovarianceAccumulator accumulator = new PairwiseCovarianceAccumulator(2);
+			accumulator.add(new double[] {1,N}, 1);
+			accumulator.add(new double[] {N,2}, 1);
+			assertEquals(0, accumulator.getPairCounts()[0][1]);
+			assertTrue(Double.isNaN(accumulator.getCovarianceMatrix()[0][1]));
+		}
+
+		{ // Mismatched size case
+			PairwiseCovarianceAccumulator accumulator = new PairwiseCovarianceAccumulator(3);
+			assertThrows(Throwable.class,()->{
+				accumulator.add(new double[] {1,2}, 1);
+			});
+		}
+	}
+
+	@Test
+	void testAddBlock() {
+		double[][] data = new double[600][4];
+		double[] weights = new double[data.length];
+		double[] block = new double[data.length*4];
+		for(int r=0;r<data.length;r++) {
+			for(int i=0;i<4;i++) {
+				// Variable 0 is always present, so both the complete and partial paths are exercised.
+				boolean missing = (i>0)&&(((r*7+i*13)%(i+4))==0);
+				data[r][i] = missing?N:Math.sin(r*(i+1))*10+1e6*i+r*0.01*i;
+				block[r*4+i] = data[r][i];
+			}
+			weights[r] = (r%5==0)?0:(r%3)+0.5;
+		}
+
+		for(double[] w:new double[][] {null,weights}) {
+			double[] rowWeights = w;
+			if(rowWeights==null) {
+				rowWeights = new double[data.length];
+				Arrays.fill(rowWeights, 1);
+			}
+			PairwiseCovarianceAccumulator accumulator = new PairwiseCovarianceAccumulator(4);
+			accumulator.addBlock(block, rowWeights, data.length);
+			assertPairwise(data, rowWeights, accumulator, (w==null)?"Unweighted block":"Weighted block");
+		}
+
+		{ // Negative weight case
+			PairwiseCovarianceAccumulator accumulator = new PairwiseCovarianceAccumulator(3);
+			assertThrows(IllegalArgumentException.class,()->{
+				accumulator.addBlock(new double[] {1,2,3,4,5,6}, new double[] {1,-1}, 2);
+			});
+		}
+	}
+
+	@Test
+	void testMerge() {
+		PairwiseCovarianceAccumulator whole = new PairwiseCovarianceAccumulator(3);
+		PairwiseCovarianceAccumulator first = new PairwiseCovarianceAccumulator(3);
+		PairwiseCovarianceAccumulator second = new PairwiseCovarianceAccumulator(3);
+		for(int i=0;i<DATA.length;i++) {
+			whole.add(DATA[i], WEIGHTS[i]);
+			if(i<3)
+				first.add(DATA[i], WEIGHTS[i]);
+			else
+				second.add(DATA[i], WEIGHTS[i]);
+		}
+		first.merge(second);
+		assertPairwise(DATA, WEIGHTS, first, "Merged");
+
+		{ // Empty case
+			PairwiseCovarianceAccumulator empty = new PairwiseCovarianceAccumulator(3);
+			empty.merge(whole);
+			assertPairwise(DATA, WEIGHTS, empty, "Merged into empty");
+		}
+
+		{ // Mismatched case
+			assertThrows(Throwable.class,()->{
+				new PairwiseCovarianceAccumulator(3).merge(new PairwiseCovarianceAccumulator(2));
+			});
+		}
+	}
+
+	private static void assertPairwise(double[][] data, double[] weights, PairwiseCovarianceAccumulator accumulator, String message) {
+		int variableCount = data[0].length;
+		long[][] counts = accumulator.getPairCounts();
+		double[] means = accumulator.getMeans();
+		double[][] covariance = accumulator.getCovarianceMatrix();
+		for(int i=0;i<variableCount;i++) {
+			for(int j=0;j<variableCount;j++) {
+				long count = 0;
+				double weightTotal = 0;
+				double meanI = 0;
+				double meanJ = 0;
+				for(int r=0;r<data.length;r++) {
+					double weight = (weights==null)?1:weights[r];
+					if(Double.isNaN(data[r][i])||Double.isNaN(data[r][j])||(weight==0))
+						continue;
+					count++;
+					weightTotal += weight;
+					meanI += data[r][i]*weight;
+					meanJ += data[r][j]*weight;
+				}
+				meanI /= weightTotal;
+				meanJ /= weightTotal;
+				double expected = 0;
+				for(int r=0;r<data.length;r++) {
+					double weight = (weights==null)?1:weights[r];
+					if(Double.isNaN(data[r][i])||Double.isNaN(data[r][j])||(weight==0))
+						continue;
+					expected += (data[r][i]-meanI)*(data[r][j]-meanJ)*weight;
+				}
+				expected /= weightTotal;
+				assertEquals(count, counts[i][j], message+" pair count ("+i+","+j+")");
+				assertEqualsWithinMargin(expected, covariance[i][j], message+" covariance ("+i+","+j+")");
+				if(i==j)
+					assertEqualsWithinMargin(meanI, means[i], message+" mean ("+i+")");
+			}
+		}
+	}
+
+	private static void assertEqualsWithinMargin(double expected, double actual, String message) {
+		assertTrue(actual>=expected-ERROR_MARGIN,message+" ("+expected+"!="+actual+")");
+		assertTrue(actual<=expected+ERROR_MARGIN,message+" ("+expected+"!="+actual+")");
+	}
+
+	private static void assertEqualsArrayWithinMargin(double[] expected, double[] actual, String message) {
+		assertEquals(expected.length,actual.length,message+" (Unequal lengths)");
+		for(int i=0;i<expected.length;i++)
+			assertEqualsWithinMargin(expected[i],actual[i],message+" (Mismatch at "+i+")");
+	}
+
+	private static void assertEqualsMatrixWithinMargin(double[][] expected, double[][] actual, String message) {
+		assertEquals(expected.length,actual.length,message+" (Unequal rows)");
+		for(int i=0;i<expected.length;i++)
+			assertEqualsArrayWithinMargin(expected[i],actual[i],message+" (Row "+i+")");
+	}
+}
@@ -0,0 +1,151 @@
+package com.shtick.math.statistics.test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.jupiter.api.Test;
+
+import com.shtick.math.statistics.CovarianceAccumulator;
+import com.shtick.math.statistics.PairwiseCovarianceAccumulator;
+import com.shtick.math.statistics.ParallelCovarianceEngine;
+import com.shtick.math.statistics.StatsDataSet;
+import com.shtick.math.statistics.WeightedDatum;
+import com.shtick.math.statistics.data.DirectStatsDataSet;
+
+class ParallelCovarianceEngineTest {
+	private static final double ERROR_MARGIN = 0.00001;
+
+	@Test
+	void testAccumulate() {
+		DirectStatsDataSet data = new DirectStatsDataSet(4);
+		Random random = new Random(1);
+		for(int i=0;i<50000;i++) {
+			double x = random.nextGaussian();
+			data.add(new double[] {x, x*2+random.nextGaussian(), random.nextDouble(), i%10}, (i%7==0)?0:1+(i%3));
+		}
+		CovarianceAccumulator expected = new CovarianceAccumulator(4);
+		expected.addAll(data);
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			ParallelCovarianceEngine engine = new ParallelCovarianceEngine(pool);
+
+			{ // Indexed case, with progress
+				List<Double> progress = new ArrayList<>();
+				CovarianceAccumulator accumulator = engine.accumulate(data, (task,taskProgress,overallProgress)->progress.add(taskProgress));
+				assertEquals(expected.getCount(), accumulator.getCount());
+				assertEqualsWithinMargin(expected.getWeightTotal(), accumulator.getWeightTotal(), "Weight total");
+				assertEqualsCovarianceWithinMargin(expected.getCovarianceMatrix(), accumulator.getCovarianceMatrix(), "Indexed covariance");
+				assertTrue(progress.size()>2, "Progress reported "+progress.size()+" times");
+				for(int i=1;i<progress.size();i++)
+					assertTrue(progress.get(i)>=progress.get(i-1), "Progress decreased");
+				assertEqualsWithinMargin(1, progress.get(progress.size()-1), "Final progress");
+			}
+
+			{ // Reused datum case
+				StatsDataSet reusing = new ReusingDataSet(data, true);
+				CovarianceAccumulator accumulator = engine.accumulate(reusing, null);
+				assertEquals(expected.getCount(), accumulator.getCount());
+				assertEqualsCovarianceWithinMargin(expected.getCovarianceMatrix(), accumulator.getCovarianceMatrix(), "Reused datum covariance");
+			}
+
+			{ // Unknown size case, which must not be counted before it is read
+				List<Double> progress = new ArrayList<>();
+				StatsDataSet unsized = new ReusingDataSet(data, false);
+				CovarianceAccumulator accumulator = engine.accumulate(unsized, (task,taskProgress,overallProgress)->progress.add(taskProgress));
+				assertEquals(expected.getCount(), accumulator.getCount());
+				assertEqualsCovarianceWithinMargin(expected.getCovarianceMatrix(), accumulator.getCovarianceMatrix(), "Unknown size covariance");
+				for(int i=1;i<progress.size();i++)
+					assertTrue(progress.get(i)>=progress.get(i-1), "Progress decreased");
+			}
+
+			{ // Pairwise case
+				PairwiseCovarianceAccumulator accumulator = engine.accumulatePairwise(data, null);
+				assertEquals(expected.getCount(), accumulator.getPairCounts()[3][2]);
+				assertEqualsCovarianceWithinMargin(expected.getCovarianceMatrix(), accumulator.getCovarianceMatrix(), "Pairwise covariance");
+			}
+
+			{ // Empty case
+				CovarianceAccumulator accumulator = engine.accumulate(new DirectStatsDataSet(4), null);
+				assertEquals(0, accumulator.getCount());
+			}
+		}
+		finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * A data set that can only be iterated, and which reuses its datum.
+	 * If its size isn't known, it can't be counted either.
+	 */
+	private static class ReusingDataSet extends StatsDataSet {
+		private DirectStatsDataSet data;
+		private boolean sizeKnown;
+
+		public ReusingDataSet(DirectStatsDataSet data, boolean sizeKnown) {
+			this.data = data;
+			this.sizeKnown = sizeKnown;
+		}
+
+		@Override
+		public Iterator<WeightedDatum> iterator() {
+			WeightedDatum datum = new WeightedDatum();
+			datum.datum = new double[data.getVariableCount()];
+			return new Iterator<WeightedDatum>() {
+				private int row;
+
+				@Override
+				public boolean hasNext() {
+					return row<data.size();
+				}
+
+				@Override
+				public WeightedDatum next() {
+					data.getRow(row++, datum);
+					return datum;
+				}
+			};
+		}
+
+		@Override
+		public boolean reusesDatum() {
+			return true;
+		}
+
+		@Override
+		public void setMean(int var, float mean) {}
+
+		@Override
+		public boolean isSizeKnown() {
+			return sizeKnown;
+		}
+
+		@Override
+		public int size() {
+			if(!sizeKnown)
+				throw new UnsupportedOperationException("Data set counted.");
+			return data.size();
+		}
+
+		@Override
+		public int getVariableCount() {
+			return data.getVariableCount();
+		}
+	}
+
+	private static void assertEqualsWithinMargin(double expected, double actual, String message) {
+		assertTrue(actual>=expected-ERROR_MARGIN,message+" ("+expected+"!="+actual+")");
+		assertTrue(actual<=expected+ERROR_MARGIN,message+" ("+expected+"!="+actual+")");
+	}
+
+	private static void assertEqualsCovarianceWithinMargin(double[][] expected, double[][] actual, String message) {
+		for(int i=0;i<expected.length;i++)
+			for(int j=0;j<expected.length;j++)
+				assertEqualsWithinMargin(expected[i][j], actual[i][j], message+" ("+i+","+j+")");
+	}
+}
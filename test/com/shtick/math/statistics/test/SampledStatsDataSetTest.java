@@ -0,0 +1,96 @@
+package com.shtick.math.statistics.test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import com.shtick.math.statistics.WeightedDatum;
+import com.shtick.math.statistics.data.DirectStatsDataSet;
+import com.shtick.math.statistics.data.SampledStatsDataSet;
+import com.shtick.math.statistics.pca.PrincipleComponentAnalysis;
+import com.shtick.math.statistics.pca.SampledPrincipleComponentSystem;
+
+class SampledStatsDataSetTest {
+	private static final double ERROR_MARGIN = 0.00001;
+
+	@Test
+	void testSample() {
+		DirectStatsDataSet source = new DirectStatsDataSet(2);
+		for(int i=0;i<100;i++)
+			source.add(new double[] {i,-i}, (i==50)?0:1);
+
+		{ // Capacity larger than the source case
+			SampledStatsDataSet sample = new SampledStatsDataSet(source, 1000, new Random(1));
+			assertEquals(99, sample.size());
+			assertEquals(99, sample.getPopulationSize());
+			int row = 0;
+			for(WeightedDatum datum:sample) {
+				int expected = (row<50)?row:row+1;
+				assertEqualsWithinMargin(expected, datum.datum[0], "Value at row "+row);
+				assertEqualsWithinMargin(-expected, datum.datum[1], "Value at row "+row);
+				row++;
+			}
+		}
+
+		{ // Uniform sample case
+			int[] counts = new int[100];
+			int trials = 2000;
+			Random random = new Random(2);
+			for(int trial=0;trial<trials;trial++) {
+				SampledStatsDataSet sample = new SampledStatsDataSet(source, 10, random);
+				assertEquals(10, sample.size());
+				assertEquals(99, sample.getPopulationSize());
+				for(WeightedDatum datum:sample) {
+					assertEqualsWithinMargin(-datum.datum[0], datum.datum[1], "Sampled row");
+					counts[(int)datum.datum[0]]++;
+				}
+			}
+			assertEquals(0, counts[50], "Zero weight row sampled");
+			double expected = trials*10.0/99;
+			for(int i=0;i<100;i++)
+				if(i!=50)
+					assertTrue(Math.abs(counts[i]-expected)<expected*0.35, "Row "+i+" sampled "+counts[i]+" times, expected about "+expected);
+		}
+
+		{ // Failure case
+			assertThrows(IllegalArgumentException.class,()->{
+				new SampledStatsDataSet(source, 0, new Random());
+			});
+		}
+	}
+
+	@Test
+	void testGetCapacity() {
+		assertEquals(1000, SampledStatsDataSet.getCapacity(3, 32000));
+		assertEquals(1, SampledStatsDataSet.getCapacity(3, 0));
+	}
+
+	@Test
+	void testSampledPrincipleComponents() throws Throwable {
+		DirectStatsDataSet source = new DirectStatsDataSet(2);
+		Random random = new Random(3);
+		for(int i=0;i<20000;i++) {
+			double x = random.nextGaussian();
+			source.add(new double[] {10+x, 5+x+random.nextGaussian()*0.1}, 1);
+		}
+		SampledPrincipleComponentSystem system = PrincipleComponentAnalysis.getPrincipleComponents(source, 2000, new Random(4), null);
+		assertEquals(2000, system.sampleSize);
+		assertEquals(20000, system.populationSize);
+		assertEquals(2, system.eigenvalueStandardErrors.length);
+		assertEquals(2, system.meanStandardErrors.length);
+		for(int i=0;i<2;i++) {
+			assertEqualsWithinMargin(Math.abs(system.eigenvalues[i])*Math.sqrt(2.0/1999), system.eigenvalueStandardErrors[i], "Eigenvalue standard error "+i);
+			// The sample mean should be within a few standard errors of the true mean.
+			double trueMean = (i==0)?10:5;
+			assertTrue(Math.abs(system.mean[i]-trueMean)<5*system.meanStandardErrors[i]+0.01, "Mean "+i+" was "+system.mean[i]);
+			assertTrue(system.meanStandardErrors[i]>0);
+		}
+	}
+
+	private static void assertEqualsWithinMargin(double expected, double actual, String message) {
+		assertTrue(actual>=expected-ERROR_MARGIN,message+" ("+expected+"!="+actual+")");
+		assertTrue(actual<=expected+ERROR_MARGIN,message+" ("+expected+"!="+actual+")");
+	}
+}
@@ -0,0 +1,163 @@
+package com.shtick.math.statistics.test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+import com.shtick.math.statistics.CovarianceAccumulator;
+import com.shtick.math.statistics.CovariancePartial;
+import com.shtick.math.statistics.cluster.ShardCoordinator;
+import com.shtick.math.statistics.cluster.ShardWorker;
+import com.shtick.math.statistics.pca.PrincipleComponentAnalysis;
+import com.shtick.math.statistics.pca.PrincipleComponentSystem;
+
+class ShardCoordinatorTest {
+	private static final double ERROR_MARGIN = 0.00001;
+
+	@Test
+	void testCollect() throws Throwable {
+		File directory = Files.createTempDirectory("psych").toFile();
+		try {
+			CovarianceAccumulator expected = new CovarianceAccumulator(2);
+			File[] shards = createShards(directory, expected);
+			Set<String> ignoreColumns = new HashSet<>();
+			ignoreColumns.add("country");
+			PrincipleComponentSystem system;
+			try(ShardCoordinator coordinator = new ShardCoordinator(shards, ignoreColumns, 0)){
+				// A worker that takes a shard and disconnects without replying, so its shard must be handed to another worker.
+				Thread lostWorker = startLostWorker(coordinator);
+
+				List<Thread> workers = startWorkers(coordinator, 3);
+				system = coordinator.getPrincipleComponents(null);
+				for(Thread worker:workers)
+					worker.join(10000);
+				lostWorker.join(10000);
+			}
+			PrincipleComponentSystem expectedSystem = PrincipleComponentAnalysis.getPrincipleComponents(expected, null);
+			for(int i=0;i<2;i++) {
+				assertEqualsWithinMargin(expectedSystem.mean[i], system.mean[i], "Mean "+i);
+				assertEqualsWithinMargin(expectedSystem.eigenvalues[i], system.eigenvalues[i], "Eigenvalue "+i);
+			}
+
+			{ // Partial case
+				try(ShardCoordinator coordinator = new ShardCoordinator(shards, ignoreColumns, 0)){
+					startWorkers(coordinator, 1);
+					CovariancePartial partial = coordinator.collect(null);
+					assertArrayEquals(new String[] {"A","B"}, partial.getVariableNames());
+					assertEquals(expected.getCount(), partial.getAccumulator().getCount());
+					assertEqualsWithinMargin(expected.getCovarianceMatrix()[1][0], partial.getAccumulator().getCovarianceMatrix()[1][0], "Collected covariance");
+				}
+			}
+
+			{ // Every worker lost case
+				try(ShardCoordinator coordinator = new ShardCoordinator(shards, ignoreColumns, 0)){
+					Thread lostWorker1 = startLostWorker(coordinator);
+					Thread lostWorker2 = startLostWorker(coordinator);
+					assertThrows(IOException.class,()->{
+						coordinator.collect(null, 200);
+					});
+					lostWorker1.join(10000);
+					lostWorker2.join(10000);
+				}
+			}
+
+			{ // Unreadable shard case
+				createFile(new File(directory, "day-3.tsv"), "A\tcountry\tB\n1\tUS\tnot a number\n");
+				try(ShardCoordinator coordinator = new ShardCoordinator(shards, ignoreColumns, 0)){
+					startWorkers(coordinator, 2);
+					assertThrows(IOException.class,()->{
+						coordinator.collect(null);
+					});
+				}
+			}
+		}
+		finally {
+			for(File file:directory.listFiles())
+				file.delete();
+			directory.delete();
+		}
+	}
+
+	private static File[] createShards(File directory, CovarianceAccumulator expected) throws IOException {
+		File[] shards = new File[6];
+		int row = 0;
+		for(int shard=0;shard<shards.length;shard++) {
+			StringBuilder content = new StringBuilder("A\tcountry\tB\n");
+			for(int i=0;i<50+shard*13;i++,row++) {
+				double a = row%19;
+				double b = a*0.5+(row*row)%7;
+				expected.add(new double[] {a,b}, 1);
+				content.append(a).append("\tUS\t").append(b).append('\n');
+			}
+			shards[shard] = new File(directory, "day-"+shard+".tsv");
+			createFile(shards[shard], content.toString());
+		}
+		return shards;
+	}
+
+	/**
+	 * Starts a worker that takes a shard and disconnects without replying.
+	 */
+	private static Thread startLostWorker(ShardCoordinator coordinator) throws IOException {
+		Socket lost = new Socket(InetAddress.getLoopbackAddress(), coordinator.getPort());
+		DataOutputStream lostOut = new DataOutputStream(lost.getOutputStream());
+		lostOut.writeInt(0x50535943);
+		lostOut.writeInt(1);
+		lostOut.flush();
+		Thread lostWorker = new Thread(()->{
+			try(Socket socket = lost){
+				DataInputStream in = new DataInputStream(socket.getInputStream());
+				int ignoreCount = in.readInt();
+				for(int i=0;i<ignoreCount;i++)
+					in.readUTF();
+				in.readInt();
+				in.readUTF();
+			}
+			catch(IOException t) {}
+		});
+		lostWorker.start();
+		return lostWorker;
+	}
+
+	private static List<Thread> startWorkers(ShardCoordinator coordinator, int count) {
+		ArrayList<Thread> workers = new ArrayList<>();
+		for(int i=0;i<count;i++) {
+			Thread worker = new Thread(()->{
+				try {
+					new ShardWorker(InetAddress.getLoopbackAddress().getHostAddress(), coordinator.getPort()).run();
+				}
+				catch(IOException t) {}
+			});
+			worker.setDaemon(true);
+			worker.start();
+			workers.add(worker);
+		}
+		return workers;
+	}
+
+	private static void createFile(File file, String content) throws IOException {
+		try(OutputStream out = new FileOutputStream(file)){
+			out.write(content.getBytes(StandardCharsets.UTF_8));
+		}
+	}
+
+	private static void assertEqualsWithinMargin(double expected, double actual, String message) {
+		assertTrue(actual>=expected-ERROR_MARGIN,message+" ("+expected+"!="+actual+")");
+		assertTrue(actual<=expected+ERROR_MARGIN,message+" ("+expected+"!="+actual+")");
+	}
+}
@@ -0,0 +1,107 @@
+package com.shtick.math.statistics.test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.jupiter.api.Test;
+
+import com.shtick.math.statistics.CovarianceAccumulator;
+import com.shtick.math.statistics.PairwiseCovarianceAccumulator;
+import com.shtick.math.statistics.WeightedDatum;
+import com.shtick.math.statistics.data.ShardedStatsDataSet;
+
+class ShardedStatsDataSetTest {
+	private static final double ERROR_MARGIN = 0.00001;
+
+	@Test
+	void testShards() throws IOException {
+		File directory = Files.createTempDirectory("psych").toFile();
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			CovarianceAccumulator expected = new CovarianceAccumulator(2);
+			int row = 0;
+			for(int shard=0;shard<7;shard++) {
+				// Shards may order their columns differently, as long as the variables match.
+				StringBuilder content = new StringBuilder((shard%2==0)?"A\tcountry\tB\n":"country\tA\tB\n");
+				for(int i=0;i<100+shard*37;i++,row++) {
+					double a = row%17;
+					double b = (row*row)%23;
+					expected.add(new double[] {a,b}, 1);
+					if(shard%2==0)
+						content.append(a).append("\tUS\t").append(b).append('\n');
+					else
+						content.append("US\t").append(a).append('\t').append(b).append('\n');
+				}
+				createFile(new File(directory, "day-"+shard+".tsv"+((shard%3==0)?".gz":"")), content.toString(), shard%3==0);
+			}
+			Set<String> ignoreColumns = new HashSet<>();
+			ignoreColumns.add("country");
+			try(ShardedStatsDataSet data = new ShardedStatsDataSet(ShardedStatsDataSet.findShards(directory.getPath()), ignoreColumns)){
+				assertEquals(7, data.getShards().length);
+				assertArrayEquals(new String[] {"A","B"}, data.getVariableNames());
+				assertEquals(row, data.size());
+
+				CovarianceAccumulator iterated = new CovarianceAccumulator(2);
+				for(WeightedDatum datum:data)
+					iterated.add(datum);
+				assertEquals(expected.getCount(), iterated.getCount());
+				assertEqualsWithinMargin(expected.getCovarianceMatrix()[0][1], iterated.getCovarianceMatrix()[0][1], "Iterated covariance");
+
+				CovarianceAccumulator accumulated = data.accumulate(pool);
+				assertEquals(expected.getCount(), accumulated.getCount());
+				for(int i=0;i<2;i++) {
+					assertEqualsWithinMargin(expected.getMeans()[i], accumulated.getMeans()[i], "Accumulated mean "+i);
+					for(int j=0;j<2;j++)
+						assertEqualsWithinMargin(expected.getCovarianceMatrix()[i][j], accumulated.getCovarianceMatrix()[i][j], "Accumulated covariance "+i+","+j);
+				}
+
+				PairwiseCovarianceAccumulator pairwise = data.accumulatePairwise(pool);
+				assertEquals(expected.getCount(), pairwise.getPairCounts()[1][0]);
+				assertEqualsWithinMargin(expected.getCovarianceMatrix()[1][0], pairwise.getCovarianceMatrix()[1][0], "Pairwise covariance");
+			}
+
+			{ // Glob case
+				File[] shards = ShardedStatsDataSet.findShards(new File(directory, "*.gz").getPath());
+				assertEquals(3, shards.length);
+				assertEquals("day-0.tsv.gz", shards[0].getName());
+				assertThrows(IOException.class,()->{
+					ShardedStatsDataSet.findShards(new File(directory, "*.csv").getPath());
+				});
+			}
+
+			{ // Mismatched header case
+				createFile(new File(directory, "day-9.tsv"), "A\tC\n1\t2\n", false);
+				assertThrows(IOException.class,()->{
+					new ShardedStatsDataSet(ShardedStatsDataSet.findShards(directory.getPath()), ignoreColumns).close();
+				});
+			}
+		}
+		finally {
+			pool.shutdown();
+			for(File file:directory.listFiles())
+				file.delete();
+			directory.delete();
+		}
+	}
+
+	private static void createFile(File file, String content, boolean compress) throws IOException {
+		try(OutputStream out = compress?new GZIPOutputStream(new FileOutputStream(file)):new FileOutputStream(file)){
+			out.write(content.getBytes(StandardCharsets.UTF_8));
+		}
+	}
+
+	private static void assertEqualsWithinMargin(double expected, double actual, String message) {
+		assertTrue(actual>=expected-ERROR_MARGIN,message+" ("+expected+"!="+actual+")");
+		assertTrue(actual<=expected+ERROR_MARGIN,message+" ("+expected+"!="+actual+")");
+	}
+}
@@ -0,0 +1,128 @@
+package com.shtick.math.statistics.test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+import com.shtick.math.statistics.CovarianceAccumulator;
+import com.shtick.math.statistics.DoubleMatrix;
+import com.shtick.math.statistics.Eigensystem;
+import com.shtick.math.statistics.SymmetricMatrix;
+
+class SymmetricMatrixTest {
+	private static final double ERROR_MARGIN = 0.00001;
+
+	@Test
+	void testElements() {
+		{ // Set and copy
+			SymmetricMatrix matrix = new SymmetricMatrix(4);
+			for(int i=0;i<4;i++)
+				for(int j=i;j<4;j++)
+					matrix.setElementAt(i, j, i*10+j);
+			matrix.setElementAt(3, 1, 13.5);
+			SymmetricMatrix copy = new SymmetricMatrix(matrix);
+			matrix.setElementAt(0, 0, -1);
+			for(int i=0;i<4;i++) {
+				for(int j=0;j<4;j++) {
+					double expected = Math.min(i, j)*10+Math.max(i, j)+(((i==1)&&(j==3))||((i==3)&&(j==1))?0.5:0);
+					assertEquals(expected, copy.getElementAt(i, j), "("+i+","+j+")");
+				}
+			}
+			assertArrayEquals(new double[] {0,11,22,33}, copy.getDiagonal());
+			assertEquals(-1, matrix.getElementAt(0, 0));
+		}
+
+		{ // Conversion
+			double[][] array = new double[][] {{4,2,1},{2,5,3},{1,3,6}};
+			SymmetricMatrix matrix = new SymmetricMatrix(array);
+			assertEquals(3, matrix.getSize());
+			double[][] expanded = matrix.toArray();
+			for(int i=0;i<3;i++)
+				assertArrayEquals(array[i], expanded[i]);
+			DoubleMatrix full = matrix.toDoubleMatrix();
+			assertEquals(3, full.getRows());
+			assertEquals(3, full.getColumns());
+			assertEquals(3, full.getElementAt(2, 1));
+		}
+
+		{ // Bad sizes
+			assertThrows(IllegalArgumentException.class,()->{
+				new SymmetricMatrix(0);
+			});
+			assertThrows(IllegalArgumentException.class,()->{
+				new SymmetricMatrix(new double[][] {{1,2},{3}});
+			});
+			assertThrows(IndexOutOfBoundsException.class,()->{
+				new SymmetricMatrix(2).getElementAt(0, 2);
+			});
+		}
+	}
+
+	@Test
+	void testAccumulation() {
+		double[][] data = new double[][] {{1,2,3},{-1,0.5,2},{4,-2,0}};
+		double[][] expected = new double[3][3];
+		SymmetricMatrix matrix = new SymmetricMatrix(3);
+		for(double[] datum:data) {
+			matrix.scaleAndAddOuterProduct(1, datum, 0.5);
+			for(int i=0;i<3;i++)
+				for(int j=0;j<3;j++)
+					expected[i][j] += 0.5*datum[i]*datum[j];
+		}
+		SymmetricMatrix copy = new SymmetricMatrix(matrix.toArray());
+		matrix.add(copy);
+		matrix.scale(0.25);
+		for(int i=0;i<3;i++)
+			for(int j=0;j<3;j++)
+				assertEqualsWithinMargin(expected[i][j]*0.5, matrix.getElementAt(i, j), "("+i+","+j+")");
+
+		{ // Decayed
+			SymmetricMatrix decayed = new SymmetricMatrix(3);
+			double[][] decayedExpected = new double[3][3];
+			for(double[] datum:data) {
+				decayed.scaleAndAddOuterProduct(0.75, datum, 2);
+				for(int i=0;i<3;i++)
+					for(int j=0;j<3;j++)
+						decayedExpected[i][j] = decayedExpected[i][j]*0.75+2*datum[i]*datum[j];
+			}
+			for(int i=0;i<3;i++)
+				for(int j=0;j<3;j++)
+					assertEqualsWithinMargin(decayedExpected[i][j], decayed.getElementAt(i, j), "Decayed ("+i+","+j+")");
+		}
+
+		assertThrows(IllegalArgumentException.class,()->{
+			matrix.add(new SymmetricMatrix(2));
+		});
+		assertThrows(IllegalArgumentException.class,()->{
+			matrix.scaleAndAddOuterProduct(1, new double[2], 1);
+		});
+	}
+
+	@Test
+	void testCovariance() throws Throwable {
+		CovarianceAccumulator accumulator = new CovarianceAccumulator(3);
+		for(int i=0;i<60;i++) {
+			double[] datum = new double[] {i%7, (i*3)%11, i%7+(i%5)*0.5};
+			accumulator.add(datum, 1);
+		}
+		double[][] expected = accumulator.getCovarianceMatrix();
+		SymmetricMatrix covariance = accumulator.getCovariance();
+		for(int i=0;i<3;i++)
+			for(int j=0;j<3;j++)
+				assertEqualsWithinMargin(expected[i][j], covariance.getElementAt(i, j), "Covariance ("+i+","+j+")");
+
+		// The returned matrix is a copy.
+		covariance.scale(2);
+		assertEqualsWithinMargin(expected[0][0], accumulator.getCovariance().getElementAt(0, 0), "Covariance after scaling copy");
+
+		Eigensystem expectedSystem = new DoubleMatrix(expected).getEigensystem();
+		Eigensystem system = accumulator.getCovariance().toDoubleMatrix().getEigensystem();
+		for(int i=0;i<3;i++)
+			assertEqualsWithinMargin(expectedSystem.eigenvalues[i], system.eigenvalues[i], "Eigenvalue "+i);
+	}
+
+	private static void assertEqualsWithinMargin(double expected, double actual, String message) {
+		assertTrue(actual>=expected-ERROR_MARGIN,message+" ("+expected+"!="+actual+")");
+		assertTrue(actual<=expected+ERROR_MARGIN,message+" ("+expected+"!="+actual+")");
+	}
+}
@@ -46,6 +46,25 @@ class VectorMathTest {
 		}
 	}
 
+	@Test
+	void testDotProductRange() {
+		double[] a = new double[20];
+		double[] b = new double[20];
+		for(int i=0;i<20;i++) {
+			a[i] = i+1;
+			b[i] = 0.5*(i%7)-1;
+		}
+		// Lengths either side of each multiple of the four-way unrolling, with elements outside of the ranges that must not be included.
+		for(int length=0;length<=9;length++) {
+			double expected = 0;
+			for(int i=0;i<length;i++)
+				expected += a[3+i]*b[7+i];
+			double result = VectorMath.dotProduct(a, 3, b, 7, length);
+			assertTrue(result>=expected-ERROR_MARGIN,"Length "+length+" ("+expected+"!="+result+")");
+			assertTrue(result<=expected+ERROR_MARGIN,"Length "+length+" ("+expected+"!="+result+")");
+		}
+	}
+
 	@Test
 	void testNormalize() {
 		{ // Normal success case